@@ -1,5 +1,56 @@
+import com.sun.management.ThreadMXBean;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.Normalizer;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 /**
  * Sistema completo simulado de API RESTful para E-commerce.
@@ -12,82 +63,163 @@ public class ECommerceApp {
     /**
      * Classe que representa um produto no catálogo.
      * Possui atributos de id, nome, preço e estoque, com métodos para manipular estoque.
+     * Estoque físico e unidades retidas por carrinhos ficam num único AtomicLong, atualizado por
+     * compare-and-set: reduções e reservas concorrentes nunca vendem além do disponível, e o
+     * disponível para venda (estoque - reservado) é lido em O(1).
      */
     public static class Produto {
         private int id;
         private String nome;
         private double preco;
-        private int estoque;
+        private final long precoCentavos; // preço exato, usado nos totais dos pedidos
+        // estoque físico nos 32 bits altos, unidades reservadas nos 32 bits baixos
+        private final AtomicLong estado;
 
         public Produto(int id, String nome, double preco, int estoque) {
             this.id = id;
             this.nome = nome;
             this.preco = preco;
-            this.estoque = estoque;
+            this.precoCentavos = Math.round(preco * 100);
+            this.estado = new AtomicLong(empacotar(estoque, 0));
         }
 
         public int getId() { return id; }
         public String getNome() { return nome; }
         public double getPreco() { return preco; }
-        public int getEstoque() { return estoque; }
+        public long getPrecoCentavos() { return precoCentavos; }
+        public int getEstoque() { return estoque(estado.get()); }
+        public int getReservado() { return reservado(estado.get()); }
+
+        /**
+         * Unidades que ainda podem ser prometidas a um novo carrinho.
+         * @return estoque físico menos as unidades reservadas
+         */
+        public int getDisponivel() {
+            long atual = estado.get();
+            return estoque(atual) - reservado(atual);
+        }
 
         /**
          * Adiciona unidades ao estoque do produto.
          * @param quantidade quantidade a adicionar
          */
         public void adicionarEstoque(int quantidade) {
-            if (quantidade > 0) this.estoque += quantidade;
+            if (quantidade > 0) atualizar(quantidade, 0, 0);
         }
 
         /**
          * Reduz o estoque do produto se houver quantidade suficiente.
+         * A verificação e a baixa acontecem num único compare-and-set, sem travas.
+         * Unidades reservadas por outros carrinhos não podem ser vendidas.
          * @param quantidade quantidade a reduzir
          * @return true se operação for bem sucedida
          */
         public boolean reduzirEstoque(int quantidade) {
-            if (quantidade > 0 && estoque >= quantidade) {
-                estoque -= quantidade;
-                return true;
-            }
+            if (quantidade <= 0) return false;
+            if (atualizar(-quantidade, 0, quantidade)) return true;
+            Metricas.ESTOQUE_ESGOTADO.increment();
+            return false;
+        }
+
+        /**
+         * Retém unidades para um carrinho, se houver disponível.
+         * @param quantidade quantidade a reservar
+         * @return true se a reserva foi feita
+         */
+        public boolean reservar(int quantidade) {
+            if (quantidade <= 0) return false;
+            if (atualizar(0, quantidade, quantidade)) return true;
+            Metricas.RESERVA_RECUSADA.increment();
             return false;
         }
 
+        /**
+         * Devolve ao disponível unidades reservadas (carrinho expirado ou item removido).
+         * @param quantidade quantidade a liberar
+         */
+        public void liberarReserva(int quantidade) {
+            if (quantidade > 0) atualizar(0, -quantidade, 0);
+        }
+
+        /**
+         * Converte uma reserva em venda: baixa o estoque e a reserva juntos. Nunca falha.
+         * @param quantidade quantidade reservada a baixar
+         */
+        public void confirmarReserva(int quantidade) {
+            if (quantidade > 0) atualizar(-quantidade, -quantidade, 0);
+        }
+
+        // Aplica os deltas se o disponível atual for pelo menos o exigido.
+        private boolean atualizar(int deltaEstoque, int deltaReservado, int exigido) {
+            while (true) {
+                long atual = estado.get();
+                int estoque = estoque(atual);
+                int reservado = reservado(atual);
+                if (estoque - reservado < exigido) return false;
+                if (estado.compareAndSet(atual, empacotar(estoque + deltaEstoque, reservado + deltaReservado))) return true;
+            }
+        }
+
+        private static long empacotar(int estoque, int reservado) {
+            return ((long) estoque << 32) | (reservado & 0xFFFFFFFFL);
+        }
+
+        private static int estoque(long estado) { return (int) (estado >>> 32); }
+        private static int reservado(long estado) { return (int) estado; }
+
         @Override
         public String toString() {
-            return "Produto[id=" + id + ", nome='" + nome + "', preço=R$" + String.format("%.2f", preco) + ", estoque=" + estoque + "]";
+            long atual = estado.get();
+            return "Produto[id=" + id + ", nome='" + nome + "', preço=R$" + String.format("%.2f", preco) + ", estoque=" + estoque(atual)
+                    + ", disponível=" + (estoque(atual) - reservado(atual)) + "]";
         }
     }
 
     /**
      * Classe que representa um usuário do sistema.
-     * Contém dados basicos, senha (em texto simples para exemplo) e flag de administrador.
+     * Contém dados basicos, hash da senha ({@link HashSenha}) e flag de administrador.
      */
     public static class Usuario {
         private int id;
         private String nome;
         private String email;
-        private String senha;
+        private final String hashSenha;
         private boolean admin;
 
         public Usuario(int id, String nome, String email, String senha, boolean admin) {
+            this(id, nome, email, senha, admin, false);
+        }
+
+        private Usuario(int id, String nome, String email, String senha, boolean admin, boolean jaCodificada) {
             this.id = id;
             this.nome = nome;
             this.email = email;
-            this.senha = senha;
+            this.hashSenha = jaCodificada ? senha : HashSenha.gerar(senha);
             this.admin = admin;
         }
 
+        /**
+         * Recria um usuário a partir do que foi gravado (ver {@link ArquivoCarga}).
+         * @param senhaGravada hash da senha; uma senha em texto é convertida
+         * @return usuário restaurado
+         */
+        static Usuario restaurar(int id, String nome, String email, String senhaGravada, boolean admin) {
+            return new Usuario(id, nome, email, senhaGravada, admin, HashSenha.codificada(senhaGravada));
+        }
+
         public int getId() { return id; }
         public String getNome() { return nome; }
         public String getEmail() { return email; }
+        String getHashSenha() { return hashSenha; } // usado só pela exportação
 
         /**
          * Verifica se a senha fornecida bate com a senha do usuário.
+         * Deriva o hash com PBKDF2, de propósito lento: use sessões para as requisições seguintes.
          * @param senha senha para autenticar
          * @return true se senha estiver correta
          */
         public boolean autenticar(String senha) {
-            return this.senha.equals(senha);
+            return HashSenha.confere(senha, hashSenha);
         }
 
         public boolean isAdmin() {
@@ -103,104 +235,632 @@ public class ECommerceApp {
     /**
      * Classe que representa um pedido feito por um usuário.
      * Contém múltiplos itens e quantidades, calcula total e controla pagamento e reduções de estoque.
+     * Os métodos são sincronizados no próprio pedido; o estoque é compartilhado entre pedidos
+     * e protegido pelo {@link Produto}.
+     * Enquanto o pedido não é pago, suas unidades ficam reservadas no estoque por um prazo que
+     * é renovado a cada item adicionado; {@link ReservasEstoque} libera as reservas vencidas.
      */
     public static class Pedido {
         private int id;
         private Usuario comprador;
         private Date dataPedido;
-        private Map<Produto, Integer> itens = new HashMap<>();
+        private final ItensPedido itens = new ItensPedido();
         private boolean pago;
+        private final ReservasEstoque reservas;
+        private boolean retido; // true enquanto todas as quantidades de itens estão reservadas
+        private boolean agendado;
+        private long prazoReserva;
+        private Consumer<Pedido> aoAbandonar; // ver abandonarQuandoOcioso
+        private boolean abandonado;
+        private long totalCentavos; // soma de preço x quantidade, mantida a cada alteração dos itens
 
         public Pedido(int id, Usuario comprador) {
+            this(id, comprador, ReservasEstoque.padrao());
+        }
+
+        public Pedido(int id, Usuario comprador, ReservasEstoque reservas) {
             this.id = id;
             this.comprador = comprador;
             this.dataPedido = new Date();
             this.pago = false;
+            this.reservas = reservas;
         }
 
         public int getId() { return id; }
         public Usuario getComprador() { return comprador; }
         public Date getDataPedido() { return dataPedido; }
-        public boolean isPago() { return pago; }
+        public synchronized boolean isPago() { return pago; }
 
         /**
-         * Tenta adicionar item ao pedido.
-         * Verifica validade da quantidade e estoque disponível antes de adicionar.
+         * Tenta adicionar item ao pedido, reservando a quantidade no estoque.
+         * Se as reservas anteriores do pedido já venceram, tenta refazê-las antes.
+         * Itens com o mesmo id de produto são somados na mesma linha.
          * @param produto produto a ser adicionado
          * @param quantidade quantidade desejada
          * @return true se adicionado com sucesso
          */
-        public boolean adicionarItem(Produto produto, int quantidade) {
-            if (produto == null || quantidade <= 0 || produto.getEstoque() < quantidade) return false;
+        public synchronized boolean adicionarItem(Produto produto, int quantidade) {
+            long inicio = System.nanoTime();
+            boolean adicionado = reservarItem(produto, quantidade);
+            (adicionado ? Metricas.ADICIONAR_ITEM : Metricas.ADICIONAR_ITEM_RECUSADO).registrar(System.nanoTime() - inicio);
+            return adicionado;
+        }
 
-            if (itens.containsKey(produto)) {
-                int atual = itens.get(produto);
-                if (produto.getEstoque() < atual + quantidade) return false;
-                itens.put(produto, atual + quantidade);
-            } else {
-                itens.put(produto, quantidade);
-            }
+        private boolean reservarItem(Produto produto, int quantidade) {
+            if (pago || abandonado || produto == null || quantidade <= 0) return false;
+            if (!retido && itens.tamanho() > 0 && !reterItens()) return false;
+            int posicao = itens.posicao(produto.getId());
+            Produto linha = posicao < 0 ? produto : itens.produto(posicao);
+            if (!linha.reservar(quantidade)) return false;
+
+            retido = true;
+            itens.adicionar(linha, quantidade);
+            totalCentavos += linha.getPrecoCentavos() * quantidade;
+            renovarPrazo();
             return true;
         }
 
         /**
-         * Remove item do pedido.
+         * Remove item do pedido, liberando a reserva correspondente.
          * @param produto produto a remover
          * @return true se removido
          */
-        public boolean removerItem(Produto produto) {
-            if (produto == null || !itens.containsKey(produto)) return false;
-            itens.remove(produto);
+        public synchronized boolean removerItem(Produto produto) {
+            return produto != null && removerItem(produto.getId());
+        }
+
+        /**
+         * Remove a linha do produto com o id informado, liberando a reserva correspondente.
+         * @param produtoId id do produto a remover
+         * @return true se removido
+         */
+        public synchronized boolean removerItem(int produtoId) {
+            int posicao = itens.posicao(produtoId);
+            if (pago || posicao < 0) return false;
+            Produto produto = itens.produto(posicao);
+            int quantidade = itens.remover(produtoId);
+            totalCentavos -= produto.getPrecoCentavos() * quantidade;
+            if (retido) produto.liberarReserva(quantidade);
+            return true;
+        }
+
+        /**
+         * Chamado pelo {@link ReservasEstoque} quando o prazo agendado chega.
+         * Libera as reservas se o prazo de fato venceu; se foi renovado, reagenda.
+         * @param agora instante atual, em nanossegundos de System.nanoTime()
+         */
+        synchronized void expirarReservas(long agora) {
+            agendado = false;
+            if (pago || abandonado || (!retido && aoAbandonar == null)) return;
+            if (prazoReserva - agora > 0) {
+                agendado = true;
+                reservas.agendar(this, prazoReserva);
+                return;
+            }
+            if (retido) {
+                for (int i = 0; i < itens.tamanho(); i++) {
+                    itens.produto(i).liberarReserva(itens.quantidade(i));
+                }
+                retido = false;
+            }
+            if (aoAbandonar != null) {
+                abandonado = true;
+                aoAbandonar.accept(this);
+            }
+        }
+
+        /**
+         * Faz o pedido ser abandonado se passar um prazo de reserva inteiro sem item novo, a
+         * contar de agora: as reservas são liberadas, {@code aoAbandonar} é chamado (pela thread
+         * do {@link ReservasEstoque}, sob o monitor do pedido) e o pedido passa a recusar itens.
+         * @param aoAbandonar quem guarda o pedido como carrinho e deve esquecê-lo
+         */
+        synchronized void abandonarQuandoOcioso(Consumer<Pedido> aoAbandonar) {
+            this.aoAbandonar = aoAbandonar;
+            renovarPrazo();
+        }
+
+        synchronized boolean isAbandonado() { return abandonado; }
+
+        // Refaz todas as reservas em ordem de id, ou nenhuma.
+        private boolean reterItens() {
+            int[] ordem = itens.ordemPorId();
+            for (int i = 0; i < ordem.length; i++) {
+                if (!itens.produto(ordem[i]).reservar(itens.quantidade(ordem[i]))) {
+                    for (int j = 0; j < i; j++) {
+                        itens.produto(ordem[j]).liberarReserva(itens.quantidade(ordem[j]));
+                    }
+                    return false;
+                }
+            }
+            retido = true;
             return true;
         }
 
+        private void renovarPrazo() {
+            prazoReserva = System.nanoTime() + reservas.getValidadeNanos();
+            if (!agendado) {
+                agendado = true;
+                reservas.agendar(this, prazoReserva);
+            }
+        }
+
         /**
          * Marca pedido como pago e efetua a redução de estoque dos produtos.
-         * Verifica se há estoque suficiente antes da aprovação.
+         * Com as reservas válidas, a baixa apenas as confirma e não pode falhar. Se venceram, a
+         * baixa é tudo-ou-nada: os itens são baixados em ordem de id e, se algum não tiver
+         * estoque, os já baixados são devolvidos. Compras simultâneas nunca vendem além do estoque.
          * @return true se o pagamento e atualização forem efetuados
          */
-        public boolean pagarPedido() {
+        public synchronized boolean pagarPedido() {
+            long inicio = System.nanoTime();
+            boolean pagou = baixarEstoque();
+            (pagou ? Metricas.PAGAMENTO : Metricas.PAGAMENTO_RECUSADO).registrar(System.nanoTime() - inicio);
+            return pagou;
+        }
+
+        private boolean baixarEstoque() {
             if (pago) return false; // Já pago
-            for (Map.Entry<Produto, Integer> entry : itens.entrySet()) {
-                if (entry.getKey().getEstoque() < entry.getValue()) return false; // Estoque insuficiente
+            if (retido) {
+                for (int i = 0; i < itens.tamanho(); i++) {
+                    itens.produto(i).confirmarReserva(itens.quantidade(i));
+                }
+                retido = false;
+                pago = true;
+                return true;
             }
-            for (Map.Entry<Produto, Integer> entry : itens.entrySet()) {
-                entry.getKey().reduzirEstoque(entry.getValue());
+            int[] ordem = itens.ordemPorId();
+            for (int i = 0; i < ordem.length; i++) {
+                if (!itens.produto(ordem[i]).reduzirEstoque(itens.quantidade(ordem[i]))) {
+                    for (int j = 0; j < i; j++) {
+                        itens.produto(ordem[j]).adicionarEstoque(itens.quantidade(ordem[j])); // Desfaz a baixa
+                    }
+                    return false; // Estoque insuficiente
+                }
             }
             pago = true;
             return true;
         }
 
         /**
-         * Calcula o valor total do pedido baseado em todos os itens e quantidades.
+         * Valor total do pedido. O total é mantido em centavos a cada item adicionado ou
+         * removido, então a consulta é O(1) e não acumula erro de arredondamento.
          * @return valor total do pedido
          */
-        public double total() {
-            double soma = 0;
-            for (Map.Entry<Produto, Integer> entry : itens.entrySet()) {
-                soma += entry.getKey().getPreco() * entry.getValue();
-            }
-            return soma;
+        public synchronized double total() {
+            return totalCentavos / 100.0;
+        }
+
+        /**
+         * Valor total exato do pedido, em O(1).
+         * @return total em centavos
+         */
+        public synchronized long totalCentavos() {
+            return totalCentavos;
+        }
+
+        /**
+         * Valor de uma linha do pedido (preço x quantidade), em O(1).
+         * @param produto produto da linha
+         * @return total da linha em centavos, ou 0 se o produto não está no pedido
+         */
+        public synchronized long totalItemCentavos(Produto produto) {
+            int posicao = itens.posicao(produto.getId());
+            return posicao < 0 ? 0 : itens.produto(posicao).getPrecoCentavos() * itens.quantidade(posicao);
+        }
+
+        /**
+         * Quantidade pedida de um produto, em O(1).
+         * @param produtoId id do produto
+         * @return quantidade, ou 0 se o produto não está no pedido
+         */
+        public synchronized int getQuantidade(int produtoId) {
+            int posicao = itens.posicao(produtoId);
+            return posicao < 0 ? 0 : itens.quantidade(posicao);
         }
 
-        public Map<Produto, Integer> getItens() {
-            return Collections.unmodifiableMap(itens);
+        public synchronized int getQuantidadeLinhas() {
+            return itens.tamanho();
+        }
+
+        /**
+         * Cópia dos itens, na ordem em que foram adicionados.
+         * @return mapa produto -&gt; quantidade
+         */
+        public synchronized Map<Produto, Integer> getItens() {
+            Map<Produto, Integer> copia = new LinkedHashMap<>();
+            for (int i = 0; i < itens.tamanho(); i++) {
+                copia.put(itens.produto(i), itens.quantidade(i));
+            }
+            return Collections.unmodifiableMap(copia);
         }
 
         @Override
-        public String toString() {
+        public synchronized String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append("Pedido #").append(id).append(" - Comprador: ").append(comprador.getNome()).append("\n");
             sb.append("Data: ").append(dataPedido).append(", Pago: ").append(pago).append("\nItens:\n");
-            for (Map.Entry<Produto, Integer> item : itens.entrySet()) {
-                sb.append(" - ").append(item.getKey().getNome())
-                  .append(" x").append(item.getValue())
-                  .append(" = R$").append(String.format("%.2f", item.getKey().getPreco() * item.getValue()))
-                  .append("\n");
+            for (int i = 0; i < itens.tamanho(); i++) {
+                Produto produto = itens.produto(i);
+                sb.append(" - ").append(produto.getNome())
+                  .append(" x").append(itens.quantidade(i))
+                  .append(" = R$");
+                formatarCentavos(sb, produto.getPrecoCentavos() * itens.quantidade(i));
+                sb.append("\n");
             }
-            sb.append("Total: R$").append(String.format("%.2f", total())).append("\n");
+            sb.append("Total: R$");
+            formatarCentavos(sb, totalCentavos);
+            sb.append("\n");
             return sb.toString();
         }
+
+        // Escreve "1234.56" sem passar por String.format.
+        private static void formatarCentavos(StringBuilder sb, long centavos) {
+            if (centavos < 0) {
+                sb.append('-');
+                centavos = -centavos;
+            }
+            long resto = centavos % 100;
+            sb.append(centavos / 100).append('.');
+            if (resto < 10) sb.append('0');
+            sb.append(resto);
+        }
+    }
+
+    /**
+     * Linhas de um pedido, indexadas pelo id do produto.
+     * Quantidades e ids ficam em arrays paralelos de primitivos, na ordem de inserção; um índice
+     * de endereçamento aberto (sondagem linear) leva do id à posição em O(1). Adicionar a um
+     * produto já presente só soma a quantidade, sem alocar nada. Não é thread-safe: o
+     * {@link Pedido} acessa sob sua própria trava.
+     */
+    public static class ItensPedido {
+        private int[] ids = new int[8];
+        private int[] quantidades = new int[8];
+        private Produto[] produtos = new Produto[8];
+        private int tamanho;
+        // posição + 1 de cada id; 0 marca espaço vazio. Capacidade sempre potência de 2.
+        private int[] indice = new int[16];
+
+        public int tamanho() { return tamanho; }
+        public int produtoId(int posicao) { return ids[posicao]; }
+        public int quantidade(int posicao) { return quantidades[posicao]; }
+        public Produto produto(int posicao) { return produtos[posicao]; }
+
+        /**
+         * Posição da linha do produto.
+         * @param produtoId id do produto
+         * @return posição na ordem de inserção, ou -1 se ausente
+         */
+        public int posicao(int produtoId) {
+            int mascara = indice.length - 1;
+            for (int i = espalhar(produtoId) & mascara; indice[i] != 0; i = (i + 1) & mascara) {
+                if (ids[indice[i] - 1] == produtoId) return indice[i] - 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Soma a quantidade à linha do produto, criando-a no fim se ainda não existir.
+         * @param produto produto da linha
+         * @param quantidade quantidade a somar
+         * @return posição da linha
+         */
+        public int adicionar(Produto produto, int quantidade) {
+            int posicao = posicao(produto.getId());
+            if (posicao >= 0) {
+                quantidades[posicao] += quantidade;
+                return posicao;
+            }
+            if (tamanho == ids.length) {
+                int capacidade = tamanho * 2;
+                ids = Arrays.copyOf(ids, capacidade);
+                quantidades = Arrays.copyOf(quantidades, capacidade);
+                produtos = Arrays.copyOf(produtos, capacidade);
+            }
+            posicao = tamanho++;
+            ids[posicao] = produto.getId();
+            quantidades[posicao] = quantidade;
+            produtos[posicao] = produto;
+            if (tamanho * 2 > indice.length) {
+                reindexar(indice.length * 2);
+            } else {
+                indexar(posicao);
+            }
+            return posicao;
+        }
+
+        /**
+         * Remove a linha do produto, mantendo a ordem das demais.
+         * @param produtoId id do produto
+         * @return quantidade que estava na linha, ou 0 se ausente
+         */
+        public int remover(int produtoId) {
+            int posicao = posicao(produtoId);
+            if (posicao < 0) return 0;
+            int quantidade = quantidades[posicao];
+            int depois = tamanho - posicao - 1;
+            System.arraycopy(ids, posicao + 1, ids, posicao, depois);
+            System.arraycopy(quantidades, posicao + 1, quantidades, posicao, depois);
+            System.arraycopy(produtos, posicao + 1, produtos, posicao, depois);
+            produtos[--tamanho] = null;
+            reindexar(indice.length);
+            return quantidade;
+        }
+
+        /**
+         * Posições das linhas em ordem crescente de id, para baixas sempre na mesma ordem.
+         * @return posições ordenadas
+         */
+        public int[] ordemPorId() {
+            long[] chaves = new long[tamanho];
+            for (int i = 0; i < tamanho; i++) {
+                chaves[i] = ((long) ids[i] << 32) | i;
+            }
+            Arrays.sort(chaves);
+            int[] ordem = new int[tamanho];
+            for (int i = 0; i < tamanho; i++) {
+                ordem[i] = (int) chaves[i];
+            }
+            return ordem;
+        }
+
+        private void reindexar(int capacidade) {
+            indice = new int[capacidade];
+            for (int i = 0; i < tamanho; i++) {
+                indexar(i);
+            }
+        }
+
+        private void indexar(int posicao) {
+            int mascara = indice.length - 1;
+            int i = espalhar(ids[posicao]) & mascara;
+            while (indice[i] != 0) {
+                i = (i + 1) & mascara;
+            }
+            indice[i] = posicao + 1;
+        }
+
+        private static int espalhar(int id) {
+            int h = id * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * Expira em lote as reservas de estoque de carrinhos abandonados.
+     * Usa uma roda de temporização (timer wheel): cada posição corresponde a um intervalo
+     * de tempo e guarda os pedidos cujo prazo cai nele. Uma única thread avança a roda e
+     * processa a posição inteira de uma vez, independentemente de quantos carrinhos existam;
+     * prazos renovados ou além de uma volta completa são simplesmente reagendados.
+     */
+    public static class ReservasEstoque implements AutoCloseable {
+        private static volatile ReservasEstoque padrao;
+
+        private final long validadeNanos;
+        private final long intervaloNanos;
+        private final ConcurrentLinkedQueue<Pedido>[] posicoes;
+        private final long inicio = System.nanoTime();
+        private volatile long proximoIntervalo = 1;
+        private ScheduledExecutorService relogio;
+
+        /**
+         * Cria a roda sem thread própria; use {@link #iniciar()} ou chame {@link #avancar(long)}.
+         * @param validade duração de uma reserva sem novas adições
+         * @param intervalo resolução da roda
+         * @param posicoes quantidade de posições da roda
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public ReservasEstoque(Duration validade, Duration intervalo, int posicoes) {
+            this.validadeNanos = validade.toNanos();
+            this.intervaloNanos = intervalo.toNanos();
+            this.posicoes = new ConcurrentLinkedQueue[posicoes];
+            for (int i = 0; i < posicoes; i++) {
+                this.posicoes[i] = new ConcurrentLinkedQueue<>();
+            }
+        }
+
+        /**
+         * Instância compartilhada: reservas de 15 minutos, roda de 1 segundo por posição.
+         * @return a roda padrão, já em funcionamento
+         */
+        public static ReservasEstoque padrao() {
+            ReservasEstoque r = padrao;
+            if (r == null) {
+                synchronized (ReservasEstoque.class) {
+                    r = padrao;
+                    if (r == null) {
+                        r = new ReservasEstoque(Duration.ofMinutes(15), Duration.ofSeconds(1), 1024);
+                        r.iniciar();
+                        padrao = r;
+                    }
+                }
+            }
+            return r;
+        }
+
+        public long getValidadeNanos() { return validadeNanos; }
+
+        /**
+         * Inicia a thread única (daemon) que avança a roda a cada intervalo.
+         */
+        public synchronized void iniciar() {
+            if (relogio != null) return;
+            relogio = Executors.newSingleThreadScheduledExecutor(tarefa -> {
+                Thread t = new Thread(tarefa, "reservas-estoque");
+                t.setDaemon(true);
+                return t;
+            });
+            relogio.scheduleAtFixedRate(() -> avancar(System.nanoTime()), intervaloNanos, intervaloNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void agendar(Pedido pedido, long prazo) {
+            long intervalo = Math.max(proximoIntervalo, (prazo - inicio) / intervaloNanos + 1);
+            posicoes[(int) (intervalo % posicoes.length)].add(pedido);
+        }
+
+        /**
+         * Processa todas as posições cujo intervalo já terminou.
+         * @param agora instante atual, em nanossegundos de System.nanoTime()
+         */
+        public synchronized void avancar(long agora) {
+            long ate = (agora - inicio) / intervaloNanos;
+            for (long i = proximoIntervalo; i <= ate; i++) {
+                ConcurrentLinkedQueue<Pedido> posicao = posicoes[(int) (i % posicoes.length)];
+                proximoIntervalo = i + 1; // reagendamentos a partir daqui vão para posições futuras
+                for (int n = posicao.size(); n > 0; n--) {
+                    Pedido pedido = posicao.poll();
+                    if (pedido == null) break;
+                    pedido.expirarReservas(agora);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (relogio != null) relogio.shutdownNow();
+        }
+    }
+
+    /**
+     * Catálogo de produtos indexado, para não percorrer listas a cada busca.
+     * Mantém um índice por id com acesso O(1), um índice ordenado por preço para consultas
+     * por faixa, um índice de termos do nome (normalizados, sem acento) para busca por
+     * prefixo e a ordem por id para listagem paginada por cursor.
+     * Todos os índices são estruturas concorrentes (hash e skip lists): leituras nunca
+     * bloqueiam e seguem funcionando enquanto produtos são cadastrados ou removidos.
+     */
+    public static class Catalogo {
+        private static final Comparator<Produto> POR_PRECO =
+                Comparator.comparingDouble(Produto::getPreco).thenComparingInt(Produto::getId);
+
+        private final Map<Integer, Produto> porId = new ConcurrentHashMap<>();
+        private final ConcurrentSkipListMap<Integer, Produto> ordemId = new ConcurrentSkipListMap<>();
+        private final ConcurrentSkipListSet<Produto> porPreco = new ConcurrentSkipListSet<>(POR_PRECO);
+        private final ConcurrentSkipListMap<String, Set<Produto>> porTermo = new ConcurrentSkipListMap<>();
+
+        /**
+         * Cadastra o produto em todos os índices, substituindo outro com o mesmo id.
+         * @param produto produto a cadastrar
+         */
+        public void adicionar(Produto produto) {
+            Produto anterior = porId.put(produto.getId(), produto);
+            if (anterior != null) desindexar(anterior);
+            ordemId.put(produto.getId(), produto);
+            porPreco.add(produto);
+            for (String termo : termos(produto.getNome())) {
+                porTermo.computeIfAbsent(termo, t -> ConcurrentHashMap.newKeySet()).add(produto);
+            }
+        }
+
+        /**
+         * Remove o produto de todos os índices.
+         * @param id id do produto
+         * @return produto removido ou null se não existia
+         */
+        public Produto remover(int id) {
+            Produto produto = porId.remove(id);
+            if (produto != null) {
+                ordemId.remove(id, produto);
+                desindexar(produto);
+            }
+            return produto;
+        }
+
+        /**
+         * Busca um produto pelo id em O(1).
+         * @param id id do produto
+         * @return produto ou null se não existir
+         */
+        public Produto buscar(int id) {
+            return porId.get(id);
+        }
+
+        public int tamanho() {
+            return porId.size();
+        }
+
+        /**
+         * Lista produtos em ordem de id a partir de um cursor, sem percorrer os anteriores.
+         * @param depoisDoId último id da página anterior (Integer.MIN_VALUE para a primeira)
+         * @param quantidade tamanho da página
+         * @return produtos da página
+         */
+        public List<Produto> listar(int depoisDoId, int quantidade) {
+            List<Produto> pagina = new ArrayList<>(Math.min(quantidade, 256));
+            for (Produto p : ordemId.tailMap(depoisDoId, false).values()) {
+                if (pagina.size() == quantidade) break;
+                pagina.add(p);
+            }
+            return pagina;
+        }
+
+        /**
+         * Produtos com preço na faixa [minimo, maximo], do mais barato ao mais caro.
+         * @param minimo preço mínimo
+         * @param maximo preço máximo
+         * @param limite quantidade máxima de resultados
+         * @return produtos encontrados
+         */
+        public List<Produto> buscarPorPreco(double minimo, double maximo, int limite) {
+            List<Produto> resultado = new ArrayList<>();
+            if (minimo > maximo) return resultado;
+            Produto de = new Produto(Integer.MIN_VALUE, "", minimo, 0);
+            Produto ate = new Produto(Integer.MAX_VALUE, "", maximo, 0);
+            for (Produto p : porPreco.subSet(de, true, ate, true)) {
+                if (resultado.size() == limite) break;
+                resultado.add(p);
+            }
+            return resultado;
+        }
+
+        /**
+         * Busca por nome: cada termo da consulta deve ser prefixo de algum termo do nome
+         * ("fone blu" encontra "Fone Bluetooth"). Maiúsculas e acentos são ignorados.
+         * @param consulta texto digitado
+         * @param limite quantidade máxima de resultados
+         * @return produtos encontrados, em ordem de id
+         */
+        public List<Produto> buscarPorNome(String consulta, int limite) {
+            Set<Produto> candidatos = null;
+            for (String termo : termos(consulta)) {
+                Set<Produto> encontrados = new HashSet<>();
+                for (Set<Produto> produtos : porTermo.subMap(termo, true, termo + Character.MAX_VALUE, true).values()) {
+                    encontrados.addAll(produtos);
+                }
+                if (candidatos == null) {
+                    candidatos = encontrados;
+                } else {
+                    candidatos.retainAll(encontrados);
+                }
+                if (candidatos.isEmpty()) break;
+            }
+            if (candidatos == null) return new ArrayList<>();
+            return candidatos.stream()
+                    .sorted(Comparator.comparingInt(Produto::getId))
+                    .limit(limite)
+                    .collect(Collectors.toList());
+        }
+
+        private void desindexar(Produto produto) {
+            porPreco.remove(produto);
+            for (String termo : termos(produto.getNome())) {
+                Set<Produto> produtos = porTermo.get(termo);
+                if (produtos != null) produtos.remove(produto);
+            }
+        }
+
+        // Minúsculas, sem acentos, separado em letras e dígitos.
+        private static List<String> termos(String texto) {
+            String normalizado = Normalizer.normalize(texto, Normalizer.Form.NFD)
+                    .replaceAll("\\p{M}", "")
+                    .toLowerCase(Locale.ROOT);
+            List<String> termos = new ArrayList<>();
+            for (String termo : normalizado.split("[^\\p{L}\\p{N}]+")) {
+                if (!termo.isEmpty()) termos.add(termo);
+            }
+            return termos;
+        }
     }
 
     /**
@@ -208,7 +868,13 @@ public class ECommerceApp {
      * Mapeia usuários por email para facilitar login.
      */
     public static class AuthController {
+        // Comparado quando o email não existe, para que a resposta leve o mesmo tempo.
+        private static final String HASH_FICTICIO = HashSenha.gerar("");
+
         private Map<String, Usuario> usuariosPorEmail = new HashMap<>();
+        private final CacheSessoes<Usuario> sessoes = new CacheSessoes<>(100_000, Duration.ofMinutes(30));
+        // 5 tentativas seguidas por email e origem, repostas a uma a cada 12 s.
+        private final LimitadorLogin tentativas = new LimitadorLogin(5, Duration.ofSeconds(12));
 
         /**
          * Inicializa com lista de usuários.
@@ -227,52 +893,1795 @@ public class ECommerceApp {
          * @return usuário autenticado ou null se falhou
          */
         public Usuario login(String email, String senha) {
+            return login(email, senha, "");
+        }
+
+        /**
+         * Autentica usuário limitando as tentativas por email e origem (o IP do cliente, por exemplo).
+         * Com as tentativas esgotadas a recusa é imediata, sem calcular o hash da senha.
+         * @param email email fornecido
+         * @param senha senha fornecida
+         * @param origem identificador de quem tenta
+         * @return usuário autenticado ou null se falhou ou se as tentativas acabaram
+         *         (ver {@link #tentativasEsgotadas})
+         */
+        public Usuario login(String email, String senha, String origem) {
+            if (!tentativas.tentar(email, origem)) {
+                Metricas.LOGIN_BLOQUEADO.increment();
+                return null;
+            }
+            long inicio = System.nanoTime();
             Usuario usu = usuariosPorEmail.get(email);
-            if (usu != null && usu.autenticar(senha)) {
+            if (usu == null) {
+                HashSenha.confere(senha, HASH_FICTICIO);
+            } else if (usu.autenticar(senha)) {
+                tentativas.zerar(email, origem);
+                Metricas.LOGIN.registrar(System.nanoTime() - inicio);
                 return usu;
             }
+            Metricas.LOGIN_RECUSADO.registrar(System.nanoTime() - inicio);
             return null;
         }
-    }
 
-    /**
-     * Método principal que roda toda a aplicação.
-     * Simula interações típicas de um usuário com sistema de e-commerce via linha de comando.
-     */
-    public static void main(String[] args) {
-        Scanner sc = new Scanner(System.in);
+        public boolean tentativasEsgotadas(String email, String origem) {
+            return tentativas.esgotado(email, origem);
+        }
 
-        // Listas para armazenar dados em memória
-        List<Usuario> usuarios = new ArrayList<>();
-        List<Produto> produtos = new ArrayList<>();
-        List<Pedido> pedidos = new ArrayList<>();
+        /**
+         * Abre uma sessão para um usuário já autenticado por {@link #login}.
+         * @param usuario usuário autenticado
+         * @return token opaco da sessão
+         */
+        public String abrirSessao(Usuario usuario) {
+            return sessoes.abrir(usuario);
+        }
 
-        // Inicialização com dados de exemplo
-        usuarios.add(new Usuario(1, "Admin", "admin@shop.com", "admin123", true));
-        usuarios.add(new Usuario(2, "João Cliente", "joao@mail.com", "passjoao", false));
+        /**
+         * Valida o token de uma sessão em O(1), sem recalcular hash de senha, e renova seu prazo.
+         * @param token token devolvido por {@link #abrirSessao}
+         * @return usuário da sessão ou null se o token for desconhecido ou tiver expirado
+         */
+        public Usuario validarSessao(String token) {
+            return sessoes.validar(token);
+        }
 
-        produtos.add(new Produto(1, "Smartphone", 1800.50, 10));
-        produtos.add(new Produto(2, "Fone Bluetooth", 350.99, 25));
-        produtos.add(new Produto(3, "Mouse Gamer", 150.00, 40));
+        public boolean encerrarSessao(String token) {
+            return sessoes.encerrar(token);
+        }
+    }
 
-        AuthController authController = new AuthController(usuarios);
+    /**
+     * Limite de tentativas de login por par (email, origem), contra força bruta.
+     * <p>
+     * Cada par tem um balde de fichas: até {@code rajada} tentativas seguidas, repostas a uma a
+     * cada {@code reposicao}. O balde é guardado na forma compacta do GCRA: um único long com o
+     * instante teórico da próxima chegada, reposto de forma preguiçosa na própria consulta, sem
+     * threads em segundo plano. A chave é um hash de 64 bits do par com semente aleatória, então
+     * cada balde ocupa 16 bytes e nenhuma String é criada por consulta.
+     * <p>
+     * Os baldes ficam em faixas independentes, cada uma uma tabela de endereçamento aberto com trava
+     * própria. Um balde que já se encheu de novo equivale a um balde ausente: quando a tabela da
+     * faixa enche, ela é reconstruída só com os baldes ainda em uso, o que descarta os ociosos.
+     */
+    public static class LimitadorLogin {
+        private static final int FAIXAS = 64;
 
-        // Login
-        System.out.println("Bem-vindo à API RESTful Simulada E-commerce");
-        System.out.print("Informe seu email: ");
-        String email = sc.nextLine();
-        System.out.print("Informe sua senha: ");
-        String senha = sc.nextLine();
+        private final long intervaloNanos;
+        private final long toleranciaNanos;
+        private final long semente = new SecureRandom().nextLong();
+        private final long inicio = System.nanoTime();
+        private final Faixa[] faixas = new Faixa[FAIXAS];
 
-        Usuario usuario = authController.login(email, senha);
+        /**
+         * @param rajada tentativas permitidas em sequência
+         * @param reposicao tempo para repor uma tentativa
+         */
+        public LimitadorLogin(int rajada, Duration reposicao) {
+            if (rajada <= 0 || reposicao.isNegative() || reposicao.isZero()) {
+                throw new IllegalArgumentException("Rajada e reposição devem ser positivas");
+            }
+            this.intervaloNanos = reposicao.toNanos();
+            this.toleranciaNanos = Math.multiplyExact(rajada - 1L, intervaloNanos);
+            for (int i = 0; i < FAIXAS; i++) {
+                faixas[i] = new Faixa();
+            }
+        }
 
-        if (usuario == null) {
-            System.out.println("Falha na autenticação. Encerrando.");
-            sc.close();
-            return;
+        /**
+         * Consome uma tentativa do par.
+         * @param conta email usado no login
+         * @param origem identificador de quem tenta
+         * @return false, sem consumir nada, se as tentativas se esgotaram
+         */
+        public boolean tentar(String conta, String origem) {
+            long chave = chave(conta, origem);
+            Faixa faixa = faixas[faixa(chave)];
+            long agora = agora();
+            synchronized (faixa) {
+                int i = faixa.posicao(chave);
+                long chegada = i >= 0 ? Math.max(faixa.chegadas[i], agora) : agora;
+                if (chegada - toleranciaNanos > agora) {
+                    return false;
+                }
+                if (i < 0) {
+                    i = faixa.inserir(chave, agora);
+                }
+                faixa.chegadas[i] = chegada + intervaloNanos;
+                return true;
+            }
         }
 
-        System.out.println("Login realizado com sucesso! Usuário: " + usuario.getNome());
+        /**
+         * Consulta o par sem consumir tentativa.
+         * @param conta email usado no login
+         * @param origem identificador de quem tenta
+         * @return true se a próxima tentativa seria recusada
+         */
+        public boolean esgotado(String conta, String origem) {
+            long chave = chave(conta, origem);
+            Faixa faixa = faixas[faixa(chave)];
+            long agora = agora();
+            synchronized (faixa) {
+                int i = faixa.posicao(chave);
+                return i >= 0 && faixa.chegadas[i] - toleranciaNanos > agora;
+            }
+        }
+
+        /**
+         * Devolve todas as tentativas do par, depois de um login bem-sucedido.
+         * @param conta email usado no login
+         * @param origem identificador de quem tenta
+         */
+        public void zerar(String conta, String origem) {
+            long chave = chave(conta, origem);
+            Faixa faixa = faixas[faixa(chave)];
+            synchronized (faixa) {
+                int i = faixa.posicao(chave);
+                if (i >= 0) {
+                    faixa.chegadas[i] = 0L; // cheio: sai na próxima reconstrução
+                }
+            }
+        }
+
+        /**
+         * @return baldes guardados, incluindo ociosos ainda não descartados
+         */
+        public int tamanho() {
+            int total = 0;
+            for (Faixa faixa : faixas) {
+                synchronized (faixa) {
+                    total += faixa.tamanho;
+                }
+            }
+            return total;
+        }
+
+        // Sempre positivo, para que 0 signifique "balde cheio".
+        private long agora() {
+            return System.nanoTime() - inicio + 1;
+        }
+
+        private long chave(String conta, String origem) {
+            long h = semente;
+            for (int i = 0; i < conta.length(); i++) {
+                h = (h ^ conta.charAt(i)) * 0x100000001B3L;
+            }
+            h = (h ^ 0xFFFF) * 0x100000001B3L;
+            for (int i = 0; i < origem.length(); i++) {
+                h = (h ^ origem.charAt(i)) * 0x100000001B3L;
+            }
+            // finalizador do MurmurHash3, para espalhar os bits usados por faixa e posição
+            h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+            h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return h == 0 ? 1 : h;
+        }
+
+        private static int faixa(long chave) {
+            return (int) (chave >>> 58) & (FAIXAS - 1);
+        }
+
+        private final class Faixa {
+            long[] chaves = new long[16]; // 0 = posição livre
+            long[] chegadas = new long[16];
+            int tamanho;
+
+            int posicao(long chave) {
+                int mascara = chaves.length - 1;
+                for (int i = (int) chave & mascara; chaves[i] != 0; i = (i + 1) & mascara) {
+                    if (chaves[i] == chave) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            int inserir(long chave, long agora) {
+                if ((tamanho + 1) * 4 > chaves.length * 3) {
+                    reconstruir(agora);
+                }
+                int mascara = chaves.length - 1;
+                int i = (int) chave & mascara;
+                while (chaves[i] != 0) {
+                    i = (i + 1) & mascara;
+                }
+                chaves[i] = chave;
+                tamanho++;
+                return i;
+            }
+
+            // Mantém só os baldes que ainda não se encheram e dimensiona para 4x esse número.
+            private void reconstruir(long agora) {
+                int emUso = 0;
+                for (int i = 0; i < chaves.length; i++) {
+                    if (chaves[i] != 0 && chegadas[i] > agora) {
+                        emUso++;
+                    }
+                }
+                int capacidade = Math.max(16, Integer.highestOneBit(Math.max(1, emUso * 4 - 1)) << 1);
+                long[] antigasChaves = chaves;
+                long[] antigasChegadas = chegadas;
+                chaves = new long[capacidade];
+                chegadas = new long[capacidade];
+                tamanho = 0;
+                int mascara = capacidade - 1;
+                for (int i = 0; i < antigasChaves.length; i++) {
+                    if (antigasChaves[i] != 0 && antigasChegadas[i] > agora) {
+                        int j = (int) antigasChaves[i] & mascara;
+                        while (chaves[j] != 0) {
+                            j = (j + 1) & mascara;
+                        }
+                        chaves[j] = antigasChaves[i];
+                        chegadas[j] = antigasChegadas[i];
+                        tamanho++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hash de senha com PBKDF2 (HMAC-SHA256) e sal aleatório, guardado como
+     * "pbkdf2$iterações$sal$hash" (Base64). As iterações ficam no próprio hash, então mudar
+     * -Decommerce.pbkdf2.iteracoes não invalida senhas já gravadas.
+     */
+    public static final class HashSenha {
+        private static final int ITERACOES = Integer.getInteger("ecommerce.pbkdf2.iteracoes", 100_000);
+        private static final SecureRandom ALEATORIO = new SecureRandom();
+
+        private HashSenha() {}
+
+        /**
+         * Gera o hash de uma senha com sal novo.
+         * @param senha senha em texto
+         * @return hash codificado
+         */
+        public static String gerar(String senha) {
+            byte[] sal = new byte[16];
+            ALEATORIO.nextBytes(sal);
+            byte[] hash = derivar(senha, sal, ITERACOES, 32);
+            Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+            return "pbkdf2$" + ITERACOES + "$" + base64.encodeToString(sal) + "$" + base64.encodeToString(hash);
+        }
+
+        /**
+         * Diz se o valor já é um hash gerado por {@link #gerar}.
+         * @param valor senha gravada
+         * @return true se for um hash
+         */
+        public static boolean codificada(String valor) {
+            return valor.startsWith("pbkdf2$");
+        }
+
+        /**
+         * Confere uma senha com um hash gerado por {@link #gerar}, em tempo constante.
+         * @param senha senha em texto
+         * @param codificado hash codificado
+         * @return true se a senha confere
+         */
+        public static boolean confere(String senha, String codificado) {
+            String[] partes = codificado.split("\\$");
+            if (partes.length != 4 || !partes[0].equals("pbkdf2")) return false;
+            byte[] sal = Base64.getDecoder().decode(partes[2]);
+            byte[] esperado = Base64.getDecoder().decode(partes[3]);
+            return MessageDigest.isEqual(esperado, derivar(senha, sal, Integer.parseInt(partes[1]), esperado.length));
+        }
+
+        private static byte[] derivar(String senha, byte[] sal, int iteracoes, int bytes) {
+            PBEKeySpec especificacao = new PBEKeySpec(senha.toCharArray(), sal, iteracoes, bytes * 8);
+            try {
+                return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(especificacao).getEncoded();
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("PBKDF2 indisponível", e);
+            } finally {
+                especificacao.clearPassword();
+            }
+        }
+    }
+
+    /**
+     * Cache de sessões em memória: token opaco -&gt; valor, com capacidade limitada e expiração.
+     * As entradas são repartidas em faixas pelo hash do token; cada faixa é um LinkedHashMap em
+     * ordem de acesso com trava própria, então consulta, renovação e descarte do menos usado
+     * são O(1) e threads em faixas diferentes não disputam trava. Uma sessão ociosa além da
+     * validade deixa de valer na consulta seguinte; quando a faixa enche, sai a menos usada.
+     * @param <V> valor associado à sessão
+     */
+    public static class CacheSessoes<V> {
+        private static final int FAIXAS = 64;
+
+        private final Faixa<V>[] faixas;
+        private final long validadeNanos;
+        private final SecureRandom aleatorio = new SecureRandom();
+
+        /**
+         * @param capacidade quantidade máxima aproximada de sessões
+         * @param validade tempo máximo ocioso de uma sessão
+         */
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        public CacheSessoes(int capacidade, Duration validade) {
+            this.validadeNanos = validade.toNanos();
+            this.faixas = new Faixa[FAIXAS];
+            for (int i = 0; i < FAIXAS; i++) {
+                faixas[i] = new Faixa<>(Math.max(1, capacidade / FAIXAS));
+            }
+        }
+
+        /**
+         * Cria uma sessão com token aleatório de 256 bits.
+         * @param valor valor da sessão
+         * @return token
+         */
+        public String abrir(V valor) {
+            byte[] bytes = new byte[32];
+            aleatorio.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            Faixa<V> faixa = faixa(token);
+            long agora = System.nanoTime();
+            synchronized (faixa) {
+                faixa.descartarExpiradas(agora, validadeNanos);
+                faixa.put(token, new Entrada<>(valor, agora));
+            }
+            return token;
+        }
+
+        /**
+         * Consulta e renova uma sessão.
+         * @param token token da sessão
+         * @return valor ou null se a sessão não existe ou expirou
+         */
+        public V validar(String token) {
+            if (token == null) return null;
+            Faixa<V> faixa = faixa(token);
+            long agora = System.nanoTime();
+            synchronized (faixa) {
+                Entrada<V> entrada = faixa.get(token);
+                if (entrada == null) return null;
+                if (agora - entrada.ultimoAcesso > validadeNanos) {
+                    faixa.remove(token);
+                    return null;
+                }
+                entrada.ultimoAcesso = agora;
+                return entrada.valor;
+            }
+        }
+
+        public boolean encerrar(String token) {
+            if (token == null) return false;
+            Faixa<V> faixa = faixa(token);
+            synchronized (faixa) {
+                return faixa.remove(token) != null;
+            }
+        }
+
+        public int tamanho() {
+            int total = 0;
+            for (Faixa<V> faixa : faixas) {
+                synchronized (faixa) {
+                    total += faixa.size();
+                }
+            }
+            return total;
+        }
+
+        private Faixa<V> faixa(String token) {
+            int h = token.hashCode();
+            return faixas[(h ^ (h >>> 16)) & (FAIXAS - 1)];
+        }
+
+        private static final class Entrada<V> {
+            final V valor;
+            long ultimoAcesso;
+
+            Entrada(V valor, long ultimoAcesso) {
+                this.valor = valor;
+                this.ultimoAcesso = ultimoAcesso;
+            }
+        }
+
+        private static final class Faixa<V> extends LinkedHashMap<String, Entrada<V>> {
+            private static final long serialVersionUID = 1L;
+            private final int capacidade;
+
+            Faixa(int capacidade) {
+                super(16, 0.75f, true);
+                this.capacidade = capacidade;
+            }
+
+            // As mais antigas ficam no começo: para na primeira ainda válida.
+            void descartarExpiradas(long agora, long validadeNanos) {
+                Iterator<Entrada<V>> entradas = values().iterator();
+                while (entradas.hasNext() && agora - entradas.next().ultimoAcesso > validadeNanos) {
+                    entradas.remove();
+                }
+            }
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entrada<V>> maisAntiga) {
+                return size() > capacidade;
+            }
+        }
+    }
+
+    /**
+     * Servidor HTTP da API, sobre o HttpServer embutido no JDK.
+     * Cada requisição roda numa thread virtual própria quando o Java em execução tem threads
+     * virtuais (21+); em versões anteriores, num pool de threads sob demanda.
+     * Rotas (parâmetros em query string ou corpo application/x-www-form-urlencoded, respostas JSON):
+     * <ul>
+     *   <li>POST /login (email, senha) - devolve o token da sessão; 429 após tentativas demais</li>
+     *   <li>POST /logout</li>
+     *   <li>GET /produtos (depois, quantidade, q) e GET /produtos/{id}</li>
+     *   <li>GET /carrinho, POST /carrinho/itens (produto, quantidade), DELETE /carrinho/itens/{id}</li>
+     *   <li>POST /carrinho/pagar</li>
+     *   <li>GET /metricas (texto, ver {@link Metricas})</li>
+     * </ul>
+     * As rotas de carrinho exigem o cabeçalho "Authorization: Bearer &lt;token&gt;". Sem carrinho,
+     * GET /carrinho responde um vazio com id null; o carrinho é descartado se as reservas vencerem.
+     */
+    public static class ServidorHttp implements AutoCloseable {
+        private static final int LIMITE_CORPO = 64 * 1024;
+        private static final int PAGINA_MAXIMA = 100;
+
+        static {
+            // Sem TCP_NODELAY, cabeçalhos e corpo saem em pacotes separados e cada resposta
+            // espera o ACK atrasado do cliente (~40 ms): a vazão cai para centenas de req/s.
+            if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
+        }
+
+        private final AuthController auth;
+        private final Catalogo catalogo;
+        private final ReservasEstoque reservas;
+        // Carrinho atual de cada usuário (por id), criado no primeiro item. Sai do mapa ao ser
+        // pago ou quando as reservas vencem sem item novo; pedidos pagos não ficam guardados.
+        private final Map<Integer, Pedido> carrinhos = new ConcurrentHashMap<>();
+        private final AtomicInteger proximoPedido = new AtomicInteger(1);
+        private final HttpServer servidor;
+        private final ExecutorService executor;
+
+        /**
+         * Cria o servidor sem iniciá-lo.
+         * @param endereco endereço e porta de escuta (porta 0 escolhe uma livre)
+         * @param auth autenticação dos usuários
+         * @param catalogo catálogo de produtos
+         * @param reservas roda de expiração das reservas dos carrinhos
+         * @throws IOException se não for possível abrir a porta
+         */
+        public ServidorHttp(InetSocketAddress endereco, AuthController auth, Catalogo catalogo, ReservasEstoque reservas)
+                throws IOException {
+            this.auth = auth;
+            this.catalogo = catalogo;
+            this.reservas = reservas;
+            this.servidor = HttpServer.create(endereco, 1024);
+            this.executor = executorPorRequisicao();
+            servidor.setExecutor(executor);
+            servidor.createContext("/login", this::login);
+            servidor.createContext("/logout", this::logout);
+            servidor.createContext("/produtos", this::produtos);
+            servidor.createContext("/carrinho", this::carrinho);
+            servidor.createContext("/metricas", this::metricas);
+        }
+
+        public void iniciar() {
+            servidor.start();
+        }
+
+        public int getPorta() {
+            return servidor.getAddress().getPort();
+        }
+
+        @Override
+        public void close() {
+            servidor.stop(1);
+            executor.shutdown();
+        }
+
+        // Threads virtuais via reflexão, para compilar e rodar também antes do Java 21.
+        private static ExecutorService executorPorRequisicao() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(tarefa -> {
+                    Thread thread = new Thread(tarefa, "http");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        private void login(HttpExchange troca) throws IOException {
+            try (troca) {
+                if (!exigirMetodo(troca, "POST")) return;
+                Map<String, String> parametros = parametros(troca);
+                String email = parametros.getOrDefault("email", "");
+                String origem = troca.getRemoteAddress().getAddress().getHostAddress();
+                Usuario usuario = auth.login(email, parametros.getOrDefault("senha", ""), origem);
+                if (usuario == null) {
+                    if (auth.tentativasEsgotadas(email, origem)) {
+                        troca.getResponseHeaders().set("Retry-After", "12");
+                        erro(troca, 429, "muitas tentativas");
+                    } else {
+                        erro(troca, 401, "credenciais inválidas");
+                    }
+                    return;
+                }
+                String token = auth.abrirSessao(usuario);
+                EscritorJson json = new EscritorJson();
+                json.inicioObjeto().campo("token").valor(token).campo("usuario");
+                escreverUsuario(json, usuario);
+                json.fimObjeto();
+                responder(troca, 200, json);
+            }
+        }
+
+        private void logout(HttpExchange troca) throws IOException {
+            try (troca) {
+                if (!exigirMetodo(troca, "POST")) return;
+                if (!auth.encerrarSessao(token(troca))) {
+                    erro(troca, 401, "sessão inválida");
+                    return;
+                }
+                responder(troca, 200, new EscritorJson().inicioObjeto().campo("ok").valor(true).fimObjeto());
+            }
+        }
+
+        private void metricas(HttpExchange troca) throws IOException {
+            try (troca) {
+                if (!exigirMetodo(troca, "GET")) return;
+                byte[] corpo = Metricas.escrever(new StringBuilder(1024)).toString().getBytes(StandardCharsets.UTF_8);
+                troca.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                troca.sendResponseHeaders(200, corpo.length);
+                troca.getResponseBody().write(corpo);
+            }
+        }
+
+        private void produtos(HttpExchange troca) throws IOException {
+            try (troca) {
+                if (!exigirMetodo(troca, "GET")) return;
+                String resto = troca.getRequestURI().getPath().substring("/produtos".length());
+                EscritorJson json = new EscritorJson();
+                if (resto.length() > 1) {
+                    Produto produto = catalogo.buscar(inteiro(resto.substring(1), -1));
+                    if (produto == null) {
+                        erro(troca, 404, "produto não encontrado");
+                        return;
+                    }
+                    escreverProduto(json, produto);
+                } else {
+                    Map<String, String> parametros = parametros(troca);
+                    int quantidade = Math.max(1, Math.min(PAGINA_MAXIMA, inteiro(parametros.get("quantidade"), 20)));
+                    String busca = parametros.get("q");
+                    List<Produto> pagina = busca != null
+                            ? catalogo.buscarPorNome(busca, quantidade)
+                            : catalogo.listar(inteiro(parametros.get("depois"), Integer.MIN_VALUE), quantidade);
+                    json.inicioObjeto().campo("produtos").inicioLista();
+                    for (Produto produto : pagina) {
+                        escreverProduto(json, produto);
+                    }
+                    json.fimLista();
+                    if (busca == null && pagina.size() == quantidade) {
+                        json.campo("proximo").valor(pagina.get(pagina.size() - 1).getId());
+                    }
+                    json.fimObjeto();
+                }
+                responder(troca, 200, json);
+            }
+        }
+
+        private void carrinho(HttpExchange troca) throws IOException {
+            try (troca) {
+                Usuario usuario = auth.validarSessao(token(troca));
+                if (usuario == null) {
+                    erro(troca, 401, "sessão inválida");
+                    return;
+                }
+                String caminho = troca.getRequestURI().getPath();
+                String metodo = troca.getRequestMethod();
+                // Só a adição de um item cria o carrinho; consultar não guarda nada.
+                Pedido pedido = carrinhos.get(usuario.getId());
+                if (caminho.equals("/carrinho") && metodo.equals("GET")) {
+                    responder(troca, 200, pedido == null ? escreverCarrinhoVazio(new EscritorJson())
+                                                         : escreverPedido(new EscritorJson(), pedido));
+                } else if (caminho.equals("/carrinho/itens") && metodo.equals("POST")) {
+                    Map<String, String> parametros = parametros(troca);
+                    Produto produto = catalogo.buscar(inteiro(parametros.get("produto"), -1));
+                    int quantidade = inteiro(parametros.get("quantidade"), 1);
+                    boolean adicionado = false;
+                    if (produto != null) {
+                        pedido = carrinhos.computeIfAbsent(usuario.getId(), id -> novoPedido(usuario));
+                        adicionado = pedido.adicionarItem(produto, quantidade);
+                        if (!adicionado && pedido.isAbandonado()) {
+                            // Abandonado entre a busca e a adição: o item vai para um carrinho novo.
+                            pedido = carrinhos.computeIfAbsent(usuario.getId(), id -> novoPedido(usuario));
+                            adicionado = pedido.adicionarItem(produto, quantidade);
+                        }
+                    }
+                    if (produto == null) {
+                        erro(troca, 404, "produto não encontrado");
+                    } else if (!adicionado) {
+                        erro(troca, 409, "quantidade inválida ou estoque insuficiente");
+                    } else {
+                        responder(troca, 200, escreverPedido(new EscritorJson(), pedido));
+                    }
+                } else if (caminho.startsWith("/carrinho/itens/") && metodo.equals("DELETE")) {
+                    if (pedido != null && pedido.removerItem(inteiro(caminho.substring("/carrinho/itens/".length()), -1))) {
+                        responder(troca, 200, escreverPedido(new EscritorJson(), pedido));
+                    } else {
+                        erro(troca, 404, "item não está no carrinho");
+                    }
+                } else if (caminho.equals("/carrinho/pagar") && metodo.equals("POST")) {
+                    if (pedido == null || pedido.getQuantidadeLinhas() == 0) {
+                        erro(troca, 409, "pedido vazio");
+                    } else if (!pedido.pagarPedido()) {
+                        erro(troca, 409, "estoque insuficiente");
+                    } else {
+                        carrinhos.remove(usuario.getId(), pedido);
+                        responder(troca, 200, escreverPedido(new EscritorJson(), pedido));
+                    }
+                } else {
+                    erro(troca, 404, "rota não encontrada");
+                }
+            }
+        }
+
+        private Pedido novoPedido(Usuario usuario) {
+            Pedido pedido = new Pedido(proximoPedido.getAndIncrement(), usuario, reservas);
+            pedido.abandonarQuandoOcioso(abandonado -> carrinhos.remove(usuario.getId(), abandonado));
+            return pedido;
+        }
+
+        private static void escreverUsuario(EscritorJson json, Usuario usuario) {
+            json.inicioObjeto()
+                .campo("id").valor(usuario.getId())
+                .campo("nome").valor(usuario.getNome())
+                .campo("email").valor(usuario.getEmail())
+                .fimObjeto();
+        }
+
+        private static void escreverProduto(EscritorJson json, Produto produto) {
+            json.inicioObjeto()
+                .campo("id").valor(produto.getId())
+                .campo("nome").valor(produto.getNome())
+                .campo("precoCentavos").valor(produto.getPrecoCentavos())
+                .campo("disponivel").valor(produto.getDisponivel())
+                .fimObjeto();
+        }
+
+        private static EscritorJson escreverPedido(EscritorJson json, Pedido pedido) {
+            synchronized (pedido) {
+                ItensPedido itens = pedido.itens;
+                json.inicioObjeto()
+                    .campo("id").valor(pedido.getId())
+                    .campo("pago").valor(pedido.pago)
+                    .campo("itens").inicioLista();
+                for (int i = 0; i < itens.tamanho(); i++) {
+                    Produto produto = itens.produto(i);
+                    json.inicioObjeto()
+                        .campo("produto").valor(produto.getId())
+                        .campo("nome").valor(produto.getNome())
+                        .campo("quantidade").valor(itens.quantidade(i))
+                        .campo("totalCentavos").valor(produto.getPrecoCentavos() * itens.quantidade(i))
+                        .fimObjeto();
+                }
+                json.fimLista().campo("totalCentavos").valor(pedido.totalCentavos).fimObjeto();
+            }
+            return json;
+        }
+
+        private static EscritorJson escreverCarrinhoVazio(EscritorJson json) {
+            return json.inicioObjeto()
+                .campo("id").valor((String) null)
+                .campo("pago").valor(false)
+                .campo("itens").inicioLista().fimLista()
+                .campo("totalCentavos").valor(0L)
+                .fimObjeto();
+        }
+
+        private static boolean exigirMetodo(HttpExchange troca, String metodo) throws IOException {
+            if (troca.getRequestMethod().equals(metodo)) return true;
+            troca.getResponseHeaders().set("Allow", metodo);
+            erro(troca, 405, "método não permitido");
+            return false;
+        }
+
+        private static String token(HttpExchange troca) {
+            String autorizacao = troca.getRequestHeaders().getFirst("Authorization");
+            if (autorizacao == null || !autorizacao.startsWith("Bearer ")) return null;
+            return autorizacao.substring("Bearer ".length()).trim();
+        }
+
+        // Junta query string e corpo de formulário; o corpo prevalece.
+        private static Map<String, String> parametros(HttpExchange troca) throws IOException {
+            Map<String, String> parametros = new HashMap<>();
+            decodificar(troca.getRequestURI().getRawQuery(), parametros);
+            try (InputStream corpo = troca.getRequestBody()) {
+                byte[] bytes = corpo.readNBytes(LIMITE_CORPO);
+                if (bytes.length > 0) decodificar(new String(bytes, StandardCharsets.UTF_8), parametros);
+            }
+            return parametros;
+        }
+
+        private static void decodificar(String texto, Map<String, String> destino) {
+            if (texto == null || texto.isEmpty()) return;
+            for (String par : texto.split("&")) {
+                int igual = par.indexOf('=');
+                String nome = igual < 0 ? par : par.substring(0, igual);
+                String valor = igual < 0 ? "" : par.substring(igual + 1);
+                destino.put(URLDecoder.decode(nome, StandardCharsets.UTF_8), URLDecoder.decode(valor, StandardCharsets.UTF_8));
+            }
+        }
+
+        private static int inteiro(String texto, int padrao) {
+            if (texto == null) return padrao;
+            try {
+                return Integer.parseInt(texto.trim());
+            } catch (NumberFormatException e) {
+                return padrao;
+            }
+        }
+
+        private static void erro(HttpExchange troca, int status, String mensagem) throws IOException {
+            responder(troca, status, new EscritorJson().inicioObjeto().campo("erro").valor(mensagem).fimObjeto());
+        }
+
+        // Resposta com tamanho fixo, para manter a conexão viva entre requisições.
+        private static void responder(HttpExchange troca, int status, EscritorJson json) throws IOException {
+            troca.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            troca.sendResponseHeaders(status, json.tamanho());
+            json.escreverEm(troca.getResponseBody());
+        }
+    }
+
+    /**
+     * Codificador JSON incremental, sem reflexão e sem árvore intermediária.
+     * Os valores são escritos direto como bytes UTF-8 num buffer que cresce sob demanda; as
+     * vírgulas entre campos e elementos são controladas por uma pilha de um bit por nível.
+     * Não é thread-safe: cada resposta usa sua própria instância.
+     */
+    public static class EscritorJson {
+        private byte[] buffer = new byte[256];
+        private int tamanho;
+        private long primeiros; // bit n ligado: nível n ainda não tem elementos
+        private int nivel;
+        private boolean aposCampo;
+
+        public EscritorJson inicioObjeto() {
+            separar();
+            return abrir('{');
+        }
+
+        public EscritorJson fimObjeto() {
+            return fechar('}');
+        }
+
+        public EscritorJson inicioLista() {
+            separar();
+            return abrir('[');
+        }
+
+        public EscritorJson fimLista() {
+            return fechar(']');
+        }
+
+        /**
+         * Escreve o nome de um campo; o próximo valor escrito pertence a ele.
+         * @param nome nome do campo (texto simples, sem escape)
+         * @return este escritor
+         */
+        public EscritorJson campo(String nome) {
+            separar();
+            anexar('"');
+            for (int i = 0; i < nome.length(); i++) {
+                anexar(nome.charAt(i));
+            }
+            anexar('"');
+            anexar(':');
+            aposCampo = true;
+            return this;
+        }
+
+        public EscritorJson valor(long numero) {
+            separar();
+            if (numero < 0) {
+                anexar('-');
+                if (numero == Long.MIN_VALUE) {
+                    texto("9223372036854775808");
+                    return this;
+                }
+                numero = -numero;
+            }
+            int inicio = tamanho;
+            do {
+                anexar((char) ('0' + numero % 10));
+                numero /= 10;
+            } while (numero != 0);
+            for (int i = inicio, j = tamanho - 1; i < j; i++, j--) {
+                byte b = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = b;
+            }
+            return this;
+        }
+
+        public EscritorJson valor(boolean logico) {
+            separar();
+            texto(logico ? "true" : "false");
+            return this;
+        }
+
+        /**
+         * Escreve um texto entre aspas, escapando aspas, barras e caracteres de controle.
+         * @param texto texto a escrever, ou null
+         * @return este escritor
+         */
+        public EscritorJson valor(String texto) {
+            separar();
+            if (texto == null) {
+                texto("null");
+                return this;
+            }
+            anexar('"');
+            for (int i = 0; i < texto.length(); i++) {
+                char c = texto.charAt(i);
+                if (c == '"' || c == '\\') {
+                    anexar('\\');
+                    anexar(c);
+                } else if (c < 0x20) {
+                    texto("\\u00");
+                    anexar(Character.forDigit(c >> 4, 16));
+                    anexar(Character.forDigit(c & 0xF, 16));
+                } else if (c < 0x80) {
+                    anexar(c);
+                } else if (c < 0x800) {
+                    anexar((char) (0xC0 | (c >> 6)));
+                    anexar((char) (0x80 | (c & 0x3F)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < texto.length()
+                        && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                    int ponto = Character.toCodePoint(c, texto.charAt(++i));
+                    anexar((char) (0xF0 | (ponto >> 18)));
+                    anexar((char) (0x80 | ((ponto >> 12) & 0x3F)));
+                    anexar((char) (0x80 | ((ponto >> 6) & 0x3F)));
+                    anexar((char) (0x80 | (ponto & 0x3F)));
+                } else if (Character.isSurrogate(c)) {
+                    anexar('?'); // surrogate sem par, como em getBytes
+                } else {
+                    anexar((char) (0xE0 | (c >> 12)));
+                    anexar((char) (0x80 | ((c >> 6) & 0x3F)));
+                    anexar((char) (0x80 | (c & 0x3F)));
+                }
+            }
+            anexar('"');
+            return this;
+        }
+
+        public int tamanho() {
+            return tamanho;
+        }
+
+        public void escreverEm(OutputStream saida) throws IOException {
+            saida.write(buffer, 0, tamanho);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, 0, tamanho, StandardCharsets.UTF_8);
+        }
+
+        private EscritorJson abrir(char c) {
+            anexar(c);
+            nivel++;
+            primeiros |= 1L << nivel;
+            return this;
+        }
+
+        private EscritorJson fechar(char c) {
+            nivel--;
+            anexar(c);
+            return this;
+        }
+
+        // Vírgula antes de todo elemento que não é o primeiro do nível (exceto valor de campo).
+        private void separar() {
+            if (aposCampo) {
+                aposCampo = false;
+                return;
+            }
+            if (nivel == 0) return;
+            long bit = 1L << nivel;
+            if ((primeiros & bit) != 0) {
+                primeiros &= ~bit;
+            } else {
+                anexar(',');
+            }
+        }
+
+        private void texto(String ascii) {
+            for (int i = 0; i < ascii.length(); i++) {
+                anexar(ascii.charAt(i));
+            }
+        }
+
+        private void anexar(char c) {
+            if (tamanho == buffer.length) buffer = Arrays.copyOf(buffer, tamanho * 2);
+            buffer[tamanho++] = (byte) c;
+        }
+    }
+
+    /**
+     * Histograma de latências em baldes fixos, no estilo do HdrHistogram: 32 baldes lineares por
+     * potência de dois, então cada valor é representado com erro de no máximo ~3%, de 1 ns até
+     * ~18 min (acima disso cai no último balde). Registrar é um incremento atômico num array
+     * pré-alocado, sem alocação e sem trava. As contagens são repartidas em faixas pela thread, para
+     * núcleos diferentes não disputarem a mesma linha de cache; a leitura soma as faixas.
+     */
+    public static class Histograma {
+        private static final int BITS_SUB = 5;
+        private static final int SUB = 1 << BITS_SUB;
+        private static final int MAIOR_EXPOENTE = 40; // 2^40 ns, ~18 min
+        static final int BALDES = (MAIOR_EXPOENTE - BITS_SUB + 2) * SUB;
+        private static final int FAIXAS = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+        private static final int PASSO = BALDES + 16; // 128 bytes entre faixas
+
+        private final String nome;
+        private final AtomicLongArray contagens = new AtomicLongArray(FAIXAS * PASSO);
+        private final LongAdder soma = new LongAdder();
+
+        Histograma(String nome) {
+            this.nome = nome;
+        }
+
+        public String getNome() { return nome; }
+
+        /**
+         * Registra uma amostra, sem alocar.
+         * @param nanos latência em nanossegundos
+         */
+        public void registrar(long nanos) {
+            int faixa = (int) Thread.currentThread().getId() & (FAIXAS - 1);
+            contagens.getAndIncrement(faixa * PASSO + indice(Math.max(0L, nanos)));
+            soma.add(nanos);
+        }
+
+        static int indice(long valor) {
+            if (valor < SUB) return (int) valor;
+            int expoente = 63 - Long.numberOfLeadingZeros(valor);
+            if (expoente > MAIOR_EXPOENTE) return BALDES - 1;
+            return (expoente - BITS_SUB + 1) * SUB + (int) (valor >>> (expoente - BITS_SUB)) - SUB;
+        }
+
+        // Maior valor representado pelo balde (o "valor equivalente" reportado).
+        static long limiteDoBalde(int indice) {
+            if (indice < SUB) return indice;
+            int expoente = indice / SUB + BITS_SUB - 1;
+            return ((long) (SUB + indice % SUB + 1) << (expoente - BITS_SUB)) - 1;
+        }
+
+        /** Contagens somadas das faixas; sob escrita concorrente o retrato é aproximado. */
+        public Retrato retrato() {
+            long[] baldes = new long[BALDES];
+            long total = 0L;
+            for (int f = 0; f < FAIXAS; f++) {
+                for (int i = 0; i < BALDES; i++) {
+                    long c = contagens.get(f * PASSO + i);
+                    baldes[i] += c;
+                    total += c;
+                }
+            }
+            return new Retrato(baldes, total, soma.sum());
+        }
+
+        static final class Retrato {
+            private final long[] baldes;
+            private final long contagem;
+            private final long soma;
+
+            Retrato(long[] baldes, long contagem, long soma) {
+                this.baldes = baldes;
+                this.contagem = contagem;
+                this.soma = soma;
+            }
+
+            public long getContagem() { return contagem; }
+
+            public double media() {
+                return contagem == 0 ? 0.0 : (double) soma / contagem;
+            }
+
+            /**
+             * Valor abaixo do qual (ou igual) estão {@code percentil}% das amostras.
+             * @param percentil de 0 a 100
+             * @return valor do balde correspondente, ou 0 se não há amostras
+             */
+            public long percentil(double percentil) {
+                long alvo = Math.max(1L, (long) Math.ceil(contagem * percentil / 100.0));
+                long acumulado = 0L;
+                for (int i = 0; i < baldes.length; i++) {
+                    acumulado += baldes[i];
+                    if (acumulado >= alvo) return limiteDoBalde(i);
+                }
+                return 0L;
+            }
+
+            public long maximo() {
+                for (int i = baldes.length - 1; i >= 0; i--) {
+                    if (baldes[i] != 0) return limiteDoBalde(i);
+                }
+                return 0L;
+            }
+        }
+    }
+
+    /**
+     * Métricas dos caminhos quentes do e-commerce: latência do login e das operações de pedido,
+     * separadas por resultado, em {@link Histograma}s, e contadores {@link LongAdder} de recusas por
+     * falta de estoque. Registrar não aloca. A leitura é exposta por JMX ({@link #registrarJmx}),
+     * como texto ({@link #escrever}) e em GET /metricas do {@link ServidorHttp}.
+     */
+    public static final class Metricas {
+        private static final List<Histograma> HISTOGRAMAS = new CopyOnWriteArrayList<>();
+        private static final Map<String, LongAdder> CONTADORES = new ConcurrentSkipListMap<>();
+        private static final Locale PT_BR = Locale.forLanguageTag("pt-BR");
+
+        static final Histograma LOGIN = histograma("auth.login.ok");
+        static final Histograma LOGIN_RECUSADO = histograma("auth.login.recusado");
+        static final Histograma ADICIONAR_ITEM = histograma("pedido.adicionarItem.ok");
+        static final Histograma ADICIONAR_ITEM_RECUSADO = histograma("pedido.adicionarItem.recusado");
+        static final Histograma PAGAMENTO = histograma("pedido.pagar.ok");
+        static final Histograma PAGAMENTO_RECUSADO = histograma("pedido.pagar.recusado");
+        static final LongAdder LOGIN_BLOQUEADO = contador("auth.login.bloqueado");
+        static final LongAdder ESTOQUE_ESGOTADO = contador("produto.estoque_esgotado");
+        static final LongAdder RESERVA_RECUSADA = contador("produto.reserva_recusada");
+
+        private Metricas() {}
+
+        private static Histograma histograma(String nome) {
+            Histograma histograma = new Histograma(nome);
+            HISTOGRAMAS.add(histograma);
+            return histograma;
+        }
+
+        private static LongAdder contador(String nome) {
+            LongAdder contador = new LongAdder();
+            CONTADORES.put(nome, contador);
+            return contador;
+        }
+
+        /**
+         * Uma linha por métrica; latências em microssegundos:
+         * "pedido.pagar.ok  contagem=10 média=3,1 p50=2,9 p99=8,2 p99,9=15,1 máx=15,1".
+         */
+        static StringBuilder escrever(StringBuilder sb) {
+            for (Histograma histograma : HISTOGRAMAS) {
+                Histograma.Retrato retrato = histograma.retrato();
+                sb.append(String.format(PT_BR, "%-30s contagem=%d média=%.1f p50=%.1f p99=%.1f p99,9=%.1f máx=%.1f%n",
+                        histograma.getNome(), retrato.getContagem(), retrato.media() / 1_000.0,
+                        retrato.percentil(50) / 1_000.0, retrato.percentil(99) / 1_000.0,
+                        retrato.percentil(99.9) / 1_000.0, retrato.maximo() / 1_000.0));
+            }
+            for (Map.Entry<String, LongAdder> contador : CONTADORES.entrySet()) {
+                sb.append(String.format("%-30s contagem=%d%n", contador.getKey(), contador.getValue().sum()));
+            }
+            return sb;
+        }
+
+        /** Publica as métricas no MBeanServer da plataforma como {@code ecommerce:type=Metricas}. */
+        static void registrarJmx() throws JMException {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Jmx(), new ObjectName("ecommerce:type=Metricas"));
+        }
+
+        // Atributos somente leitura: "<histograma>.contagem|media_us|p50_us|p99_us|p999_us|max_us" e "<contador>".
+        private static final class Jmx implements DynamicMBean {
+            private static final String[] SUFIXOS = {"contagem", "media_us", "p50_us", "p99_us", "p999_us", "max_us"};
+
+            @Override
+            public Object getAttribute(String atributo) throws AttributeNotFoundException {
+                LongAdder contador = CONTADORES.get(atributo);
+                if (contador != null) return contador.sum();
+                int ponto = atributo.lastIndexOf('.');
+                String nome = ponto < 0 ? "" : atributo.substring(0, ponto);
+                for (Histograma histograma : HISTOGRAMAS) {
+                    if (histograma.getNome().equals(nome)) {
+                        Histograma.Retrato retrato = histograma.retrato();
+                        switch (atributo.substring(ponto + 1)) {
+                            case "contagem": return retrato.getContagem();
+                            case "media_us": return retrato.media() / 1_000.0;
+                            case "p50_us": return retrato.percentil(50) / 1_000.0;
+                            case "p99_us": return retrato.percentil(99) / 1_000.0;
+                            case "p999_us": return retrato.percentil(99.9) / 1_000.0;
+                            case "max_us": return retrato.maximo() / 1_000.0;
+                            default: break;
+                        }
+                    }
+                }
+                throw new AttributeNotFoundException(atributo);
+            }
+
+            @Override
+            public AttributeList getAttributes(String[] atributos) {
+                AttributeList lista = new AttributeList();
+                for (String atributo : atributos) {
+                    try {
+                        lista.add(new Attribute(atributo, getAttribute(atributo)));
+                    } catch (AttributeNotFoundException e) {
+                        // atributos desconhecidos ficam de fora, como pede a interface
+                    }
+                }
+                return lista;
+            }
+
+            @Override
+            public void setAttribute(Attribute atributo) throws AttributeNotFoundException {
+                throw new AttributeNotFoundException("Métricas são somente leitura: " + atributo.getName());
+            }
+
+            @Override
+            public AttributeList setAttributes(AttributeList atributos) {
+                return new AttributeList();
+            }
+
+            @Override
+            public Object invoke(String acao, Object[] parametros, String[] assinatura) throws ReflectionException {
+                throw new ReflectionException(new NoSuchMethodException(acao));
+            }
+
+            @Override
+            public MBeanInfo getMBeanInfo() {
+                List<MBeanAttributeInfo> atributos = new ArrayList<>();
+                for (Histograma histograma : HISTOGRAMAS) {
+                    for (String sufixo : SUFIXOS) {
+                        String tipo = sufixo.equals("contagem") ? Long.class.getName() : Double.class.getName();
+                        atributos.add(new MBeanAttributeInfo(histograma.getNome() + "." + sufixo, tipo,
+                                "Latência de " + histograma.getNome(), true, false, false));
+                    }
+                }
+                for (String nome : CONTADORES.keySet()) {
+                    atributos.add(new MBeanAttributeInfo(nome, Long.class.getName(), nome, true, false, false));
+                }
+                return new MBeanInfo(Metricas.class.getName(), "Métricas do e-commerce",
+                        atributos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+            }
+        }
+    }
+
+    /**
+     * Importação e exportação em massa de produtos e usuários, em CSV ou num formato binário compacto.
+     * <p>
+     * CSV: UTF-8, um registro por linha, campos separados por vírgula. Textos com vírgula ou aspas
+     * vão entre aspas, com as aspas internas dobradas. O preço é em centavos e admin é 0 ou 1.
+     * <pre>
+     * produto,id,nome,preço,estoque
+     * usuario,id,nome,email,senha,admin
+     * </pre>
+     * A senha é o hash exportado ("pbkdf2$..."); uma senha em texto também é aceita e convertida,
+     * ao custo de um PBKDF2 por usuário.
+     * <p>
+     * Binário: [int mágico][int versão] seguido de blocos [int tamanho][registros]. Produto é
+     * [byte 1][int id][texto nome][long preço][int estoque] e usuário é [byte 2][int id][texto nome]
+     * [texto email][texto senha][byte admin], com os textos como [short bytes][UTF-8].
+     * <p>
+     * A leitura mapeia o arquivo em pedaços de 64 MB, alinhados a linhas ou a blocos, e os processa
+     * em paralelo no ForkJoinPool comum. Números e tipos são lidos direto dos bytes; só viram String
+     * os textos guardados nos objetos. A escrita é sequencial, por um único buffer reaproveitado.
+     */
+    public static class ArquivoCarga {
+        public enum Formato { CSV, BINARIO }
+
+        private static final int MAGICO = 0x45434152; // "ECAR"
+        private static final int VERSAO = 1;
+        private static final byte PRODUTO = 1;
+        private static final byte USUARIO = 2;
+        private static final long PEDACO = Long.getLong("ecommerce.carga.pedaco", 64L << 20);
+        private static final int TAMANHO_BLOCO = 1 << 20;
+        private static final int MAIOR_REGISTRO = 1 << 18; // três textos de até 64 KB e o resto
+        private static final byte[] CSV_PRODUTO = "produto".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] CSV_USUARIO = "usuario".getBytes(StandardCharsets.US_ASCII);
+
+        private ArquivoCarga() {}
+
+        /**
+         * Lê o arquivo (o formato é reconhecido pelo cabeçalho), cadastra os produtos no catálogo
+         * e acrescenta os usuários à lista, em ordem de id.
+         * @param arquivo arquivo gerado por {@link #exportar} ou no mesmo formato
+         * @param catalogo catálogo que recebe os produtos
+         * @param usuarios lista que recebe os usuários
+         * @return quantidade de registros lidos
+         * @throws IOException se o arquivo não puder ser lido ou tiver um registro inválido
+         */
+        public static int importar(Path arquivo, Catalogo catalogo, List<Usuario> usuarios) throws IOException {
+            ConcurrentLinkedQueue<Usuario> lidos = new ConcurrentLinkedQueue<>();
+            AtomicInteger registros = new AtomicInteger();
+            try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+                long tamanho = canal.size();
+                boolean binario = ehBinario(canal, tamanho);
+                long[] limites = binario ? limitesBlocos(canal, tamanho) : limitesCsv(tamanho);
+                ForkJoinPool.commonPool().invoke(new TarefaLeitura(arquivo, canal, tamanho, binario, limites,
+                        0, limites.length - 1, catalogo, lidos, registros));
+            } catch (RuntimeException e) {
+                // O ForkJoinPool pode relançar uma cópia da exceção da outra thread, com a original como causa.
+                Throwable original = e.getCause() != null && e.getCause().getClass() == e.getClass() ? e.getCause() : e;
+                if (original instanceof UncheckedIOException) throw ((UncheckedIOException) original).getCause();
+                throw (RuntimeException) original;
+            }
+            List<Usuario> ordenados = new ArrayList<>(lidos);
+            ordenados.sort(Comparator.comparingInt(Usuario::getId));
+            usuarios.addAll(ordenados);
+            return registros.get();
+        }
+
+        /**
+         * Grava os produtos, em ordem de id, e depois os usuários.
+         * @param arquivo arquivo de destino, sobrescrito se existir
+         * @param formato CSV ou binário
+         * @param catalogo produtos a gravar (estoque físico, sem as reservas)
+         * @param usuarios usuários a gravar, com o hash da senha
+         * @throws IOException se a gravação falhar
+         * @throws IllegalArgumentException se um texto tiver quebra de linha ou mais de 64 KB
+         */
+        public static void exportar(Path arquivo, Formato formato, Catalogo catalogo, Collection<Usuario> usuarios) throws IOException {
+            try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                Escrita escrita = new Escrita(canal, formato == Formato.BINARIO);
+                List<Produto> pagina = catalogo.listar(Integer.MIN_VALUE, 4096);
+                while (!pagina.isEmpty()) {
+                    for (Produto p : pagina) {
+                        escrita.produto(p.getId(), p.getNome(), p.getPrecoCentavos(), p.getEstoque());
+                    }
+                    pagina = catalogo.listar(pagina.get(pagina.size() - 1).getId(), 4096);
+                }
+                for (Usuario u : usuarios) {
+                    escrita.usuario(u.getId(), u.getNome(), u.getEmail(), u.getHashSenha(), u.isAdmin());
+                }
+                escrita.terminar();
+            }
+        }
+
+        private static boolean ehBinario(FileChannel canal, long tamanho) throws IOException {
+            if (tamanho < 8) return false;
+            ByteBuffer cabecalho = ByteBuffer.allocate(8);
+            while (cabecalho.hasRemaining() && canal.read(cabecalho, cabecalho.position()) > 0) {
+                // lê os 8 bytes
+            }
+            if (cabecalho.getInt(0) != MAGICO) return false;
+            if (cabecalho.getInt(4) != VERSAO) {
+                throw new IOException("Versão de arquivo de carga não suportada: " + cabecalho.getInt(4));
+            }
+            return true;
+        }
+
+        // Divisões nominais; cada pedaço trata as linhas que começam dentro dele.
+        private static long[] limitesCsv(long tamanho) {
+            int pedacos = (int) Math.max(1, (tamanho + PEDACO - 1) / PEDACO);
+            long[] limites = new long[pedacos + 1];
+            for (int i = 1; i < pedacos; i++) {
+                limites[i] = i * PEDACO;
+            }
+            limites[pedacos] = tamanho;
+            return limites;
+        }
+
+        // Percorre só os cabeçalhos dos blocos e agrupa blocos inteiros em pedaços de ~64 MB.
+        private static long[] limitesBlocos(FileChannel canal, long tamanho) throws IOException {
+            long[] limites = new long[16];
+            int quantidade = 0;
+            limites[quantidade++] = 8;
+            ByteBuffer cabecalho = ByteBuffer.allocate(4);
+            long posicao = 8;
+            while (posicao < tamanho) {
+                cabecalho.clear();
+                while (cabecalho.hasRemaining()) {
+                    if (canal.read(cabecalho, posicao + cabecalho.position()) < 0) {
+                        throw new IOException("Bloco truncado na posição " + posicao);
+                    }
+                }
+                int bloco = cabecalho.getInt(0);
+                if (bloco < 0 || posicao + 4 + bloco > tamanho) {
+                    throw new IOException("Bloco inválido na posição " + posicao);
+                }
+                posicao += 4 + bloco;
+                if (posicao - limites[quantidade - 1] >= PEDACO || posicao == tamanho) {
+                    if (quantidade == limites.length) limites = Arrays.copyOf(limites, quantidade * 2);
+                    limites[quantidade++] = posicao;
+                }
+            }
+            if (quantidade == 1) limites[quantidade++] = tamanho;
+            return Arrays.copyOf(limites, quantidade);
+        }
+
+        private static class TarefaLeitura extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final Path arquivo;
+            private final FileChannel canal;
+            private final long tamanho;
+            private final boolean binario;
+            private final long[] limites;
+            private final int inicio;
+            private final int fim;
+            private final Catalogo catalogo;
+            private final Queue<Usuario> usuarios;
+            private final AtomicInteger registros;
+
+            TarefaLeitura(Path arquivo, FileChannel canal, long tamanho, boolean binario, long[] limites, int inicio, int fim,
+                          Catalogo catalogo, Queue<Usuario> usuarios, AtomicInteger registros) {
+                this.arquivo = arquivo;
+                this.canal = canal;
+                this.tamanho = tamanho;
+                this.binario = binario;
+                this.limites = limites;
+                this.inicio = inicio;
+                this.fim = fim;
+                this.catalogo = catalogo;
+                this.usuarios = usuarios;
+                this.registros = registros;
+            }
+
+            @Override
+            protected void compute() {
+                if (fim - inicio > 1) {
+                    int meio = (inicio + fim) >>> 1;
+                    invokeAll(new TarefaLeitura(arquivo, canal, tamanho, binario, limites, inicio, meio, catalogo, usuarios, registros),
+                              new TarefaLeitura(arquivo, canal, tamanho, binario, limites, meio, fim, catalogo, usuarios, registros));
+                    return;
+                }
+                long de = limites[inicio];
+                long ate = limites[fim];
+                try {
+                    Leitura leitura;
+                    if (binario) {
+                        leitura = new Leitura(arquivo, canal.map(FileChannel.MapMode.READ_ONLY, de, ate - de), de, true);
+                        leitura.blocos();
+                    } else {
+                        // Um byte antes, para saber se o pedaço começa numa linha, e folga para a última linha.
+                        long mapaDe = Math.max(0, de - 1);
+                        long mapaAte = Math.min(tamanho, ate + MAIOR_REGISTRO);
+                        leitura = new Leitura(arquivo, canal.map(FileChannel.MapMode.READ_ONLY, mapaDe, mapaAte - mapaDe),
+                                mapaDe, mapaAte == tamanho);
+                        leitura.linhas((int) (de - mapaDe), (int) (ate - mapaDe));
+                    }
+                    for (Produto p : leitura.produtos) {
+                        catalogo.adicionar(p);
+                    }
+                    usuarios.addAll(leitura.usuarios);
+                    registros.addAndGet(leitura.produtos.size() + leitura.usuarios.size());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        // Estado de leitura de um pedaço mapeado; não é compartilhado entre threads.
+        private static final class Leitura {
+            private final Path arquivo;
+            private final ByteBuffer mapa;
+            private final long base;            // posição do mapa no arquivo, para as mensagens de erro
+            private final boolean fimDoArquivo; // o mapa vai até o fim do arquivo
+            final List<Produto> produtos = new ArrayList<>();
+            final List<Usuario> usuarios = new ArrayList<>();
+            private byte[] texto = new byte[256];
+            private int posicao;
+
+            Leitura(Path arquivo, ByteBuffer mapa, long base, boolean fimDoArquivo) {
+                this.arquivo = arquivo;
+                this.mapa = mapa;
+                this.base = base;
+                this.fimDoArquivo = fimDoArquivo;
+            }
+
+            void blocos() throws IOException {
+                try {
+                    lerBlocos();
+                } catch (IndexOutOfBoundsException e) {
+                    throw invalido(posicao); // registro que passa do fim do bloco
+                }
+            }
+
+            private void lerBlocos() throws IOException {
+                while (posicao < mapa.limit()) {
+                    int fimBloco = posicao + 4 + mapa.getInt(posicao);
+                    posicao += 4;
+                    while (posicao < fimBloco) {
+                        int inicioRegistro = posicao;
+                        byte tipo = mapa.get(posicao++);
+                        int id = mapa.getInt(posicao);
+                        posicao += 4;
+                        if (tipo == PRODUTO) {
+                            String nome = textoBinario();
+                            long preco = mapa.getLong(posicao);
+                            int estoque = mapa.getInt(posicao + 8);
+                            posicao += 12;
+                            produtos.add(produto(id, nome, preco, estoque, inicioRegistro));
+                        } else if (tipo == USUARIO) {
+                            String nome = textoBinario();
+                            String email = textoBinario();
+                            String senha = textoBinario();
+                            usuarios.add(Usuario.restaurar(id, nome, email, senha, mapa.get(posicao++) != 0));
+                        } else {
+                            throw invalido(inicioRegistro);
+                        }
+                    }
+                    if (posicao != fimBloco) throw invalido(fimBloco);
+                }
+            }
+
+            private String textoBinario() {
+                int tamanho = mapa.getShort(posicao) & 0xFFFF;
+                if (tamanho > texto.length) texto = new byte[Math.max(tamanho, texto.length * 2)];
+                mapa.get(posicao + 2, texto, 0, tamanho);
+                posicao += 2 + tamanho;
+                return new String(texto, 0, tamanho, StandardCharsets.UTF_8);
+            }
+
+            // Processa as linhas que começam em [de, ate) do mapa; a última pode passar de ate.
+            void linhas(int de, int ate) throws IOException {
+                posicao = de;
+                if (de > 0 && mapa.get(de - 1) != '\n') pularLinha(); // a linha começou no pedaço anterior
+                while (posicao < ate) {
+                    int inicioLinha = posicao;
+                    int fimTipo = posicao;
+                    while (fimTipo < mapa.limit() && mapa.get(fimTipo) != ',' && mapa.get(fimTipo) != '\n') {
+                        fimTipo++;
+                    }
+                    if (fimTipo == inicioLinha || (fimTipo == inicioLinha + 1 && mapa.get(inicioLinha) == '\r')) {
+                        pularLinha(); // linha em branco
+                        continue;
+                    }
+                    boolean produto = igual(inicioLinha, fimTipo, CSV_PRODUTO);
+                    if (!produto && !igual(inicioLinha, fimTipo, CSV_USUARIO)) throw invalido(inicioLinha);
+                    posicao = fimTipo;
+                    int id = inteiro(numeroCsv(inicioLinha), inicioLinha);
+                    String nome = textoCsv(inicioLinha);
+                    if (produto) {
+                        long preco = numeroCsv(inicioLinha);
+                        int estoque = inteiro(numeroCsv(inicioLinha), inicioLinha);
+                        fimDaLinha(inicioLinha);
+                        produtos.add(produto(id, nome, preco, estoque, inicioLinha));
+                    } else {
+                        String email = textoCsv(inicioLinha);
+                        String senha = textoCsv(inicioLinha);
+                        long admin = numeroCsv(inicioLinha);
+                        fimDaLinha(inicioLinha);
+                        if (admin != 0 && admin != 1) throw invalido(inicioLinha);
+                        usuarios.add(Usuario.restaurar(id, nome, email, senha, admin == 1));
+                    }
+                }
+            }
+
+            private Produto produto(int id, String nome, long precoCentavos, int estoque, int inicioRegistro) throws IOException {
+                if (precoCentavos < 0 || estoque < 0) throw invalido(inicioRegistro);
+                return new Produto(id, nome, precoCentavos / 100.0, estoque);
+            }
+
+            private boolean igual(int de, int ate, byte[] palavra) {
+                if (ate - de != palavra.length) return false;
+                for (int i = 0; i < palavra.length; i++) {
+                    if (mapa.get(de + i) != palavra[i]) return false;
+                }
+                return true;
+            }
+
+            // Consome a vírgula e o campo seguinte, entre aspas ou não.
+            private String textoCsv(int inicioLinha) throws IOException {
+                if (posicao >= mapa.limit() || mapa.get(posicao) != ',') throw invalido(inicioLinha);
+                posicao++;
+                int tamanho = 0;
+                if (posicao < mapa.limit() && mapa.get(posicao) == '"') {
+                    posicao++;
+                    while (true) {
+                        if (posicao >= mapa.limit()) throw invalido(inicioLinha);
+                        byte b = mapa.get(posicao++);
+                        if (b == '"') {
+                            if (posicao < mapa.limit() && mapa.get(posicao) == '"') {
+                                posicao++;
+                            } else {
+                                break;
+                            }
+                        } else if (b == '\n') {
+                            throw invalido(inicioLinha);
+                        }
+                        tamanho = acrescentar(tamanho, b);
+                    }
+                } else {
+                    while (posicao < mapa.limit()) {
+                        byte b = mapa.get(posicao);
+                        if (b == ',' || b == '\n' || b == '\r') break;
+                        tamanho = acrescentar(tamanho, b);
+                        posicao++;
+                    }
+                }
+                return new String(texto, 0, tamanho, StandardCharsets.UTF_8);
+            }
+
+            private int acrescentar(int tamanho, byte b) {
+                if (tamanho == texto.length) texto = Arrays.copyOf(texto, tamanho * 2);
+                texto[tamanho] = b;
+                return tamanho + 1;
+            }
+
+            private long numeroCsv(int inicioLinha) throws IOException {
+                if (posicao >= mapa.limit() || mapa.get(posicao) != ',') throw invalido(inicioLinha);
+                posicao++;
+                boolean negativo = posicao < mapa.limit() && mapa.get(posicao) == '-';
+                if (negativo) posicao++;
+                int digitos = 0;
+                long valor = 0;
+                while (posicao < mapa.limit()) {
+                    int d = mapa.get(posicao) - '0';
+                    if (d < 0 || d > 9) break;
+                    if (++digitos > 18) throw invalido(inicioLinha);
+                    valor = valor * 10 + d;
+                    posicao++;
+                }
+                if (digitos == 0) throw invalido(inicioLinha);
+                return negativo ? -valor : valor;
+            }
+
+            private int inteiro(long valor, int inicioLinha) throws IOException {
+                if (valor < Integer.MIN_VALUE || valor > Integer.MAX_VALUE) throw invalido(inicioLinha);
+                return (int) valor;
+            }
+
+            private void fimDaLinha(int inicioLinha) throws IOException {
+                if (posicao < mapa.limit() && mapa.get(posicao) == '\r') posicao++;
+                if (posicao < mapa.limit() && mapa.get(posicao) == '\n') {
+                    posicao++;
+                } else if (posicao < mapa.limit() || !fimDoArquivo) {
+                    throw invalido(inicioLinha);
+                }
+            }
+
+            private void pularLinha() throws IOException {
+                int inicioLinha = posicao;
+                while (posicao < mapa.limit()) {
+                    if (mapa.get(posicao++) == '\n') return;
+                }
+                if (!fimDoArquivo) throw invalido(inicioLinha); // linha maior que a folga do mapa
+            }
+
+            private IOException invalido(int posicaoNoMapa) {
+                return new IOException("Registro inválido em " + arquivo + " na posição " + (base + posicaoNoMapa));
+            }
+        }
+
+        // Registros codificados direto num buffer de um bloco, gravado no canal quando enche.
+        private static final class Escrita {
+            private final FileChannel canal;
+            private final boolean binario;
+            private final ByteBuffer buffer = ByteBuffer.allocate(TAMANHO_BLOCO + MAIOR_REGISTRO);
+            private final byte[] digitos = new byte[21];
+            private int inicioBloco; // posição, no buffer, do tamanho do bloco binário em andamento
+
+            Escrita(FileChannel canal, boolean binario) {
+                this.canal = canal;
+                this.binario = binario;
+                if (binario) {
+                    buffer.putInt(MAGICO).putInt(VERSAO);
+                    inicioBloco = buffer.position();
+                    buffer.putInt(0);
+                }
+            }
+
+            void produto(int id, String nome, long precoCentavos, int estoque) throws IOException {
+                if (binario) {
+                    buffer.put(PRODUTO).putInt(id);
+                    textoBinario(nome);
+                    buffer.putLong(precoCentavos).putInt(estoque);
+                } else {
+                    buffer.put(CSV_PRODUTO);
+                    numero(id);
+                    textoCsv(nome);
+                    numero(precoCentavos);
+                    numero(estoque);
+                    buffer.put((byte) '\n');
+                }
+                registroEscrito();
+            }
+
+            void usuario(int id, String nome, String email, String hashSenha, boolean admin) throws IOException {
+                if (binario) {
+                    buffer.put(USUARIO).putInt(id);
+                    textoBinario(nome);
+                    textoBinario(email);
+                    textoBinario(hashSenha);
+                    buffer.put((byte) (admin ? 1 : 0));
+                } else {
+                    buffer.put(CSV_USUARIO);
+                    numero(id);
+                    textoCsv(nome);
+                    textoCsv(email);
+                    textoCsv(hashSenha);
+                    numero(admin ? 1 : 0);
+                    buffer.put((byte) '\n');
+                }
+                registroEscrito();
+            }
+
+            void terminar() throws IOException {
+                if (binario && buffer.position() == inicioBloco + 4) buffer.position(inicioBloco); // bloco vazio
+                esvaziar(false);
+            }
+
+            private void registroEscrito() throws IOException {
+                if (buffer.position() >= TAMANHO_BLOCO) esvaziar(binario);
+            }
+
+            private void esvaziar(boolean novoBloco) throws IOException {
+                if (binario && buffer.position() > inicioBloco) {
+                    buffer.putInt(inicioBloco, buffer.position() - inicioBloco - 4);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    canal.write(buffer);
+                }
+                buffer.clear();
+                if (novoBloco) {
+                    inicioBloco = 0;
+                    buffer.putInt(0);
+                }
+            }
+
+            private void textoBinario(String texto) {
+                int inicio = buffer.position();
+                buffer.putShort((short) 0);
+                buffer.putShort(inicio, (short) utf8(texto, false));
+            }
+
+            private void textoCsv(String texto) {
+                buffer.put((byte) ',');
+                boolean aspas = texto.indexOf(',') >= 0 || texto.indexOf('"') >= 0;
+                if (aspas) buffer.put((byte) '"');
+                utf8(texto, aspas);
+                if (aspas) buffer.put((byte) '"');
+            }
+
+            // UTF-8 direto no buffer, sem o array intermediário de getBytes.
+            private int utf8(String texto, boolean dobrarAspas) {
+                int inicio = buffer.position();
+                for (int i = 0; i < texto.length(); i++) {
+                    char c = texto.charAt(i);
+                    if (c == '\n' || c == '\r') {
+                        throw new IllegalArgumentException("Texto com quebra de linha não cabe no arquivo de carga: " + texto);
+                    }
+                    if (c < 0x80) {
+                        buffer.put((byte) c);
+                        if (c == '"' && dobrarAspas) buffer.put((byte) c);
+                    } else if (c < 0x800) {
+                        buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < texto.length() && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, texto.charAt(++i));
+                        buffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                              .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+                    } else if (Character.isSurrogate(c)) {
+                        buffer.put((byte) '?'); // surrogate sem par, como em getBytes
+                    } else {
+                        buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+                    }
+                    if (buffer.position() - inicio > 0xFFFF) {
+                        throw new IllegalArgumentException("Texto com mais de 64 KB não cabe no arquivo de carga");
+                    }
+                }
+                return buffer.position() - inicio;
+            }
+
+            // Vírgula e decimal em ASCII sem criar String; usa o valor negativo para cobrir Long.MIN_VALUE.
+            private void numero(long valor) {
+                int i = digitos.length;
+                long resto = valor < 0 ? valor : -valor;
+                do {
+                    digitos[--i] = (byte) ('0' - resto % 10);
+                    resto /= 10;
+                } while (resto != 0);
+                if (valor < 0) digitos[--i] = '-';
+                digitos[--i] = ',';
+                buffer.put(digitos, i, digitos.length - i);
+            }
+        }
+    }
+
+    /**
+     * Método principal que roda toda a aplicação.
+     * Simula interações típicas de um usuário com sistema de e-commerce via linha de comando.
+     */
+    public static void main(String[] args) {
+        Scanner sc = new Scanner(System.in);
+        try {
+            Metricas.registrarJmx();
+        } catch (JMException e) {
+            System.out.println("Métricas indisponíveis por JMX: " + e.getMessage());
+        }
+
+        // Listas para armazenar dados em memória
+        List<Usuario> usuarios = new ArrayList<>();
+        Catalogo catalogo = new Catalogo();
+        List<Pedido> pedidos = new ArrayList<>();
+
+        // Inicialização com dados de exemplo
+        usuarios.add(new Usuario(1, "Admin", "admin@shop.com", "admin123", true));
+        usuarios.add(new Usuario(2, "João Cliente", "joao@mail.com", "passjoao", false));
+
+        catalogo.adicionar(new Produto(1, "Smartphone", 1800.50, 10));
+        catalogo.adicionar(new Produto(2, "Fone Bluetooth", 350.99, 25));
+        catalogo.adicionar(new Produto(3, "Mouse Gamer", 150.00, 40));
+
+        // Com -Decommerce.importar=<arquivo> produtos e usuários também são carregados do arquivo (ArquivoCarga)
+        String importar = System.getProperty("ecommerce.importar");
+        if (importar != null) {
+            try {
+                long inicio = System.nanoTime();
+                int registros = ArquivoCarga.importar(Paths.get(importar), catalogo, usuarios);
+                System.out.println(registros + " registros importados em " + (System.nanoTime() - inicio) / 1_000_000L + " ms");
+            } catch (IOException e) {
+                System.out.println("Não foi possível importar " + importar + ": " + e.getMessage());
+            }
+        }
+
+        // Com -Decommerce.exportar=<arquivo> grava produtos e usuários (CSV, ou binário se terminar em .bin) e sai
+        String exportar = System.getProperty("ecommerce.exportar");
+        if (exportar != null) {
+            try {
+                ArquivoCarga.exportar(Paths.get(exportar),
+                        exportar.endsWith(".bin") ? ArquivoCarga.Formato.BINARIO : ArquivoCarga.Formato.CSV, catalogo, usuarios);
+                System.out.println("Exportado para " + exportar);
+            } catch (IOException e) {
+                System.out.println("Não foi possível exportar para " + exportar + ": " + e.getMessage());
+            }
+            sc.close();
+            return;
+        }
+
+        AuthController authController = new AuthController(usuarios);
+
+        // Com -Decommerce.http.porta=8080 a aplicação serve a API por HTTP em vez do console
+        String porta = System.getProperty("ecommerce.http.porta");
+        if (porta != null) {
+            try {
+                ServidorHttp servidor = new ServidorHttp(new InetSocketAddress(Integer.parseInt(porta)),
+                        authController, catalogo, ReservasEstoque.padrao());
+                servidor.iniciar();
+                System.out.println("API HTTP em http://localhost:" + servidor.getPorta() + "/produtos");
+            } catch (IOException e) {
+                System.out.println("Não foi possível abrir a porta " + porta + ": " + e.getMessage());
+            }
+            sc.close();
+            return;
+        }
+
+        // Login
+        System.out.println("Bem-vindo à API RESTful Simulada E-commerce");
+        System.out.print("Informe seu email: ");
+        String email = sc.nextLine();
+        System.out.print("Informe sua senha: ");
+        String senha = sc.nextLine();
+
+        Usuario usuario = authController.login(email, senha);
+
+        if (usuario == null) {
+            System.out.println("Falha na autenticação. Encerrando.");
+            sc.close();
+            return;
+        }
+
+        System.out.println("Login realizado com sucesso! Usuário: " + usuario.getNome());
 
         // Criação do pedido inicial
         Pedido pedido = new Pedido(pedidos.size() + 1, usuario);
@@ -285,6 +2694,8 @@ public class ECommerceApp {
             System.out.println("2 - Adicionar produto ao pedido");
             System.out.println("3 - Finalizar pagamento do pedido");
             System.out.println("4 - Mostrar resumo do pedido");
+            System.out.println("5 - Buscar produtos por nome");
+            System.out.println("6 - Buscar produtos por faixa de preço");
             System.out.println("0 - Sair");
 
             int opcao = -1;
@@ -295,20 +2706,22 @@ public class ECommerceApp {
             switch (opcao) {
                 case 1:
                     System.out.println("Produtos disponíveis:");
-                    for (Produto p : produtos) {
-                        System.out.println(p);
+                    int ultimoId = Integer.MIN_VALUE;
+                    while (true) {
+                        List<Produto> pagina = catalogo.listar(ultimoId, 20);
+                        for (Produto p : pagina) {
+                            System.out.println(p);
+                        }
+                        if (pagina.size() < 20) break;
+                        ultimoId = pagina.get(pagina.size() - 1).getId();
+                        System.out.print("Mostrar mais? (s/n): ");
+                        if (!sc.nextLine().trim().equalsIgnoreCase("s")) break;
                     }
                     break;
                 case 2:
                     System.out.print("Informe o ID do produto: ");
                     int produtoId = Integer.parseInt(sc.nextLine());
-                    Produto produtoSelecionado = null;
-                    for (Produto p : produtos) {
-                        if (p.getId() == produtoId) {
-                            produtoSelecionado = p;
-                            break;
-                        }
-                    }
+                    Produto produtoSelecionado = catalogo.buscar(produtoId);
                     if (produtoSelecionado == null) {
                         System.out.println("Produto não encontrado.");
                         break;
@@ -322,7 +2735,7 @@ public class ECommerceApp {
                     }
                     break;
                 case 3:
-                    if (pedido.getItens().isEmpty()) {
+                    if (pedido.getQuantidadeLinhas() == 0) {
                         System.out.println("Pedido vazio! Adicione produtos antes de pagar.");
                         break;
                     }
@@ -338,6 +2751,21 @@ public class ECommerceApp {
                     System.out.println("Resumo do pedido atual:");
                     System.out.println(pedido);
                     break;
+                case 5:
+                    System.out.print("Nome: ");
+                    List<Produto> porNome = catalogo.buscarPorNome(sc.nextLine(), 50);
+                    if (porNome.isEmpty()) System.out.println("Nenhum produto encontrado.");
+                    porNome.forEach(System.out::println);
+                    break;
+                case 6:
+                    System.out.print("Preço mínimo: ");
+                    double minimo = Double.parseDouble(sc.nextLine().replace(',', '.'));
+                    System.out.print("Preço máximo: ");
+                    double maximo = Double.parseDouble(sc.nextLine().replace(',', '.'));
+                    List<Produto> porPreco = catalogo.buscarPorPreco(minimo, maximo, 50);
+                    if (porPreco.isEmpty()) System.out.println("Nenhum produto encontrado.");
+                    porPreco.forEach(System.out::println);
+                    break;
                 case 0:
                     continuar = false;
                     System.out.println("Saindo do sistema. Obrigado!");
@@ -348,4 +2776,117 @@ public class ECommerceApp {
         }
         sc.close();
     }
+
+    /**
+     * Microbenchmarks dos caminhos quentes do e-commerce, sem dependências externas.
+     * Mede vazão, latência média e bytes alocados por operação, com 1 thread e com todas as CPUs.
+     * Uso (depois de compilar): java -cp <saída> 'ECommerceApp$Benchmark'
+     */
+    public static class Benchmark {
+        interface Operacao {
+            void executar(long iteracao);
+        }
+
+        private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        public static void main(String[] args) throws InterruptedException {
+            // O custo real do PBKDF2 tornaria o cadastro dos usuários de teste lento demais.
+            if (System.getProperty("ecommerce.pbkdf2.iteracoes") == null) {
+                System.setProperty("ecommerce.pbkdf2.iteracoes", "1000");
+            }
+            int cpus = Runtime.getRuntime().availableProcessors();
+            Produto[] produtos = new Produto[100];
+            for (int i = 0; i < produtos.length; i++) {
+                produtos[i] = new Produto(i + 1, "Produto " + (i + 1), 10.0 + i, Integer.MAX_VALUE / 2);
+            }
+            List<Usuario> usuarios = new ArrayList<>();
+            String[] senhas = new String[10_000];
+            for (int i = 0; i < senhas.length; i++) {
+                senhas[i] = "senha" + i;
+                usuarios.add(new Usuario(i, "Usuário " + i, "u" + i + "@shop.com", senhas[i], false));
+            }
+            AuthController auth = new AuthController(usuarios);
+            Usuario comprador = usuarios.get(0);
+            String[] tokens = new String[senhas.length];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = auth.abrirSessao(usuarios.get(i));
+            }
+
+            for (int threads : cpus > 1 ? new int[] {1, cpus} : new int[] {1}) {
+                medir("Pedido.adicionarItem", threads, 1_000_000, () -> {
+                    Pedido pedido = new Pedido(1, comprador);
+                    return i -> pedido.adicionarItem(produtos[(int) (i % produtos.length)], 1);
+                });
+                medir("Pedido.total", threads, 1_000_000, () -> {
+                    Pedido pedido = new Pedido(1, comprador);
+                    for (Produto p : produtos) {
+                        pedido.adicionarItem(p, 2);
+                    }
+                    return i -> pedido.total();
+                });
+                medir("Pedido.pagarPedido", threads, 200_000, () -> i -> {
+                    Pedido pedido = new Pedido(1, comprador);
+                    pedido.adicionarItem(produtos[(int) (i % produtos.length)], 1);
+                    pedido.adicionarItem(produtos[(int) ((i + 1) % produtos.length)], 1);
+                    pedido.pagarPedido();
+                    produtos[(int) (i % produtos.length)].adicionarEstoque(1);
+                    produtos[(int) ((i + 1) % produtos.length)].adicionarEstoque(1);
+                });
+                medir("AuthController.login", threads, 2_000, () -> i -> {
+                    int k = (int) (i % senhas.length);
+                    auth.login(usuarios.get(k).getEmail(), senhas[k]);
+                });
+                medir("AuthController.validarSessao", threads, 2_000_000, () -> i -> {
+                    auth.validarSessao(tokens[(int) (i % tokens.length)]);
+                });
+                Histograma histograma = new Histograma("benchmark");
+                medir("Histograma.registrar", threads, 20_000_000, () -> i -> histograma.registrar(i & 0xFFFFF));
+            }
+            System.out.print(Metricas.escrever(new StringBuilder()));
+        }
+
+        /**
+         * Executa a operação criada pela fábrica em cada thread (o estado por thread, como
+         * um Pedido próprio, é montado fora da medição) e imprime o resultado.
+         */
+        static void medir(String nome, int threads, long iteracoes, Supplier<Operacao> fabrica)
+                throws InterruptedException {
+            executar(threads, iteracoes / 10, fabrica, new long[1]); // aquecimento
+            long[] alocado = new long[1];
+            long duracao = executar(threads, iteracoes, fabrica, alocado);
+            long total = iteracoes * threads;
+            System.out.printf("%-30s %2d thread(s) %,14.0f ops/s %10.1f ns/op %8.1f B/op%n",
+                    nome, threads, total / (duracao / 1e9), (double) duracao * threads / total, (double) alocado[0] / total);
+        }
+
+        private static long executar(int threads, long iteracoes, Supplier<Operacao> fabrica, long[] alocado)
+                throws InterruptedException {
+            CountDownLatch largada = new CountDownLatch(1);
+            LongAdder bytes = new LongAdder();
+            Thread[] trabalhadores = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                Operacao operacao = fabrica.get();
+                trabalhadores[t] = new Thread(() -> {
+                    try {
+                        largada.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long antes = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+                    for (long i = 0; i < iteracoes; i++) {
+                        operacao.executar(i);
+                    }
+                    bytes.add(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - antes);
+                });
+                trabalhadores[t].start();
+            }
+            long inicio = System.nanoTime();
+            largada.countDown();
+            for (Thread t : trabalhadores) {
+                t.join();
+            }
+            alocado[0] = bytes.sum();
+            return System.nanoTime() - inicio;
+        }
+    }
 }
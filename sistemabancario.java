@@ -1,174 +1,5391 @@
+import com.sun.management.ThreadMXBean;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.text.Normalizer;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 
 class Cliente {
     private String nome;
     private String cpf;
-    private String senha;
-    private List<Conta> contas = new ArrayList<>();
+    private String hashSenha; // PBKDF2, ver HashSenha; a senha em texto nunca é guardada
+    private List<Conta> contas = new CopyOnWriteArrayList<>();
+    private final List<Conta> visaoContas = Collections.unmodifiableList(contas);
 
     public Cliente(String nome, String cpf, String senha) {
+        this(nome, cpf, senha, false);
+    }
+
+    private Cliente(String nome, String cpf, String senha, boolean jaCodificada) {
         this.nome = nome;
         this.cpf = cpf;
-        this.senha = senha;
+        this.hashSenha = jaCodificada ? senha : HashSenha.gerar(senha);
+    }
+
+    // Persistência: dados gravados antes do hash traziam a senha em texto, que é convertida aqui.
+    static Cliente restaurar(String nome, String cpf, String senhaGravada) {
+        return new Cliente(nome, cpf, senhaGravada, HashSenha.codificada(senhaGravada));
     }
 
     public String getNome() { return nome; }
     public String getCpf() { return cpf; }
+    String getHashSenha() { return hashSenha; } // usado só pela persistência do Banco
 
+    /** Confere a senha pelo PBKDF2, de propósito lento; requisições seguintes devem usar sessão. */
     public boolean autenticar(String senha) {
-        return Objects.equals(this.senha, senha);
+        return HashSenha.confere(senha, hashSenha);
     }
 
     public void adicionarConta(Conta conta) {
         contas.add(conta);
     }
 
-    public List<Conta> getContas() { return contas; }
+    /** Visão somente leitura, sem cópia, das contas do cliente. */
+    public List<Conta> getContas() { return visaoContas; }
 }
 
 abstract class Conta {
     protected int numero;
-    protected double saldo;
+    protected long saldo; // em centavos
+    protected long reservado; // bloqueado por um lote de transferências em andamento
     protected Cliente titular;
-    protected List<Transacao> transacoes = new ArrayList<>();
+    protected DiarioTransacoes transacoes = new DiarioTransacoes();
+    // Preenchidos pelo Banco persistente; sem registro a conta funciona só em memória.
+    RegistroOperacoes registro;
+    long ultimoLsn;
+    // Preenchido pelo Banco; cada movimentação vira um lançamento de partidas dobradas.
+    Razao razao;
 
     public Conta(int numero, Cliente titular) {
         this.numero = numero;
         this.titular = titular;
-        this.saldo = 0.0;
+        this.saldo = 0L;
     }
 
     public int getNumero() { return numero; }
-    public double getSaldo() { return saldo; }
+    public synchronized long getSaldo() { return saldo; }
     public Cliente getTitular() { return titular; }
 
-    public void depositar(double valor) {
-        saldo += valor;
-        transacoes.add(new Transacao("Depósito", valor, new Date()));
-    }
+    // A operação é anexada ao registro ainda sob o monitor da conta, para que a ordem no
+    // log seja a ordem aplicada; a espera pelo fsync (group commit) acontece fora dele.
+    public void depositar(long valor) {
+        long inicio = System.nanoTime();
+        long lsn;
+        synchronized (this) {
+            long agora = DiarioTransacoes.agoraNanos();
+            saldo += valor;
+            transacoes.registrar(TipoTransacao.DEPOSITO, valor, 0, saldo, agora);
+            lancar(Razao.CAIXA, numero, valor, TipoLancamento.DEPOSITO);
+            lsn = anexar(RegistroOperacoes.DEPOSITO, 0, valor, agora);
+        }
+        confirmar(lsn);
+        Metricas.DEPOSITO.registrar(System.nanoTime() - inicio);
+    }
+
+    public boolean sacar(long valor) {
+        long inicio = System.nanoTime();
+        long lsn;
+        synchronized (this) {
+            if (!temSaldoPara(valor)) {
+                Metricas.SAQUE_RECUSADO.registrar(System.nanoTime() - inicio);
+                return false;
+            }
+            long agora = DiarioTransacoes.agoraNanos();
+            saldo -= valor;
+            transacoes.registrar(TipoTransacao.SAQUE, -valor, 0, saldo, agora);
+            lancar(numero, Razao.CAIXA, valor, TipoLancamento.SAQUE);
+            lsn = anexar(RegistroOperacoes.SAQUE, 0, valor, agora);
+        }
+        confirmar(lsn);
+        Metricas.SAQUE.registrar(System.nanoTime() - inicio);
+        return true;
+    }
+
+    protected boolean temSaldoPara(long valor) {
+        return saldo - reservado + limite() >= valor;
+    }
+
+    protected long limite() {
+        return 0L;
+    }
+
+    // Trava as duas contas sempre em ordem crescente de número para evitar deadlock
+    // entre transferências cruzadas (A -> B e B -> A ao mesmo tempo).
+    public boolean transferir(Conta destino, long valor) {
+        long inicio = System.nanoTime();
+        Conta primeira = numero <= destino.numero ? this : destino;
+        Conta segunda = primeira == this ? destino : this;
+        long lsn;
+        synchronized (primeira) {
+            synchronized (segunda) {
+                if (!temSaldoPara(valor)) {
+                    Metricas.TRANSFERENCIA_RECUSADA.registrar(System.nanoTime() - inicio);
+                    return false;
+                }
+                long agora = DiarioTransacoes.agoraNanos();
+                saldo -= valor;
+                transacoes.registrar(TipoTransacao.SAQUE, -valor, 0, saldo, agora);
+                destino.saldo += valor;
+                destino.transacoes.registrar(TipoTransacao.TRANSFERENCIA_RECEBIDA, valor, numero, destino.saldo, agora);
+                transacoes.registrar(TipoTransacao.TRANSFERENCIA, -valor, destino.numero, saldo, agora);
+                // Um único lançamento liga o débito da origem ao crédito do destino.
+                lancar(numero, destino.numero, valor, TipoLancamento.TRANSFERENCIA);
+                lsn = anexar(RegistroOperacoes.TRANSFERENCIA, destino.numero, valor, agora);
+                if (registro != null) {
+                    destino.ultimoLsn = lsn;
+                }
+            }
+        }
+        confirmar(lsn);
+        Metricas.TRANSFERENCIA.registrar(System.nanoTime() - inicio);
+        return true;
+    }
+
+    public synchronized List<Transacao> getTransacoes() { return transacoes.listar(); }
+
+    public synchronized List<Transacao> getTransacoes(int inicio, int quantidade) {
+        return transacoes.pagina(inicio, quantidade);
+    }
+
+    public synchronized int getQuantidadeTransacoes() { return transacoes.tamanho(); }
+
+    /** Até {@code quantidade} movimentações do período [de, ate], a partir da posição {@code inicio} dentro dele. */
+    public synchronized List<Transacao> getTransacoes(long de, long ate, int inicio, int quantidade) {
+        int primeira = transacoes.posicaoDesde(de);
+        int fim = transacoes.posicaoApos(ate);
+        int desde = (int) Math.min(fim, primeira + (long) inicio);
+        return transacoes.pagina(desde, Math.min(quantidade, fim - desde));
+    }
+
+    /** Saldo ao fim do instante informado (epoch em nanossegundos). */
+    public synchronized long getSaldoEm(long instante) {
+        return transacoes.saldoEm(instante);
+    }
+
+    /** Quantidade de movimentações com instante em [de, ate]. */
+    public synchronized int contarTransacoes(long de, long ate) {
+        return Math.max(0, transacoes.posicaoApos(ate) - transacoes.posicaoDesde(de));
+    }
+
+    /**
+     * Acrescenta ao buffer a página solicitada do extrato do período [de, ate], uma linha por
+     * movimentação com o saldo resultante. O buffer é do chamador e pode ser reaproveitado.
+     * @return quantidade de linhas escritas
+     */
+    public synchronized int escreverExtrato(long de, long ate, int pagina, int porPagina, StringBuilder buffer) {
+        int inicio = transacoes.posicaoDesde(de);
+        int fim = transacoes.posicaoApos(ate);
+        int primeira = (int) Math.min(fim, inicio + (long) pagina * porPagina);
+        int ultima = (int) Math.min(fim, primeira + (long) porPagina);
+        transacoes.escrever(primeira, ultima, buffer);
+        return ultima - primeira;
+    }
+
+    public abstract void aplicarRendimento();
+
+    // Primeira fase de um lote: separa o valor do saldo disponível sem movimentar a conta.
+    synchronized boolean reservar(long valor) {
+        if (!temSaldoPara(valor)) {
+            return false;
+        }
+        reservado += valor;
+        return true;
+    }
+
+    synchronized void liberar(long valor) {
+        reservado -= valor;
+    }
+
+    /**
+     * Aplica a perna local de uma transferência entre partições já confirmada: o débito
+     * (delta negativo) consome o valor reservado na preparação; o crédito só soma. A outra
+     * ponta fica na outra partição, então o lançamento usa a conta de trânsito do razão. O
+     * registro leva o id da transferência, que é também a decisão de confirmá-la.
+     * @return LSN a aguardar (0 sem persistência)
+     */
+    synchronized long liquidar(long id, long delta, int contraparte) {
+        long agora = DiarioTransacoes.agoraNanos();
+        saldo += delta;
+        if (delta < 0) {
+            reservado += delta;
+            transacoes.registrar(TipoTransacao.TRANSFERENCIA, delta, contraparte, saldo, agora);
+            lancar(numero, Razao.TRANSITO, -delta, TipoLancamento.TRANSFERENCIA);
+        } else {
+            transacoes.registrar(TipoTransacao.TRANSFERENCIA_RECEBIDA, delta, contraparte, saldo, agora);
+            lancar(Razao.TRANSITO, numero, delta, TipoLancamento.TRANSFERENCIA);
+        }
+        if (registro == null) {
+            return 0L;
+        }
+        ultimoLsn = registro.anexarTransferenciaExterna(id, numero, contraparte, delta, agora);
+        return ultimoLsn;
+    }
+
+    // Usado na recuperação: ignora operações que o snapshot já refletia. O instante é o
+    // gravado no log, para o extrato por período continuar o mesmo depois de reiniciar.
+    synchronized void reaplicar(long lsn, TipoTransacao tipo, long delta, int contraparte, long instante) {
+        if (lsn <= ultimoLsn) {
+            return;
+        }
+        saldo += delta;
+        transacoes.registrar(tipo, delta, contraparte, saldo, instante);
+        ultimoLsn = lsn;
+    }
+
+    // Recuperação da ponta de origem de transferir(), com as mesmas linhas de extrato; para a
+    // própria conta, também a linha do crédito. O destino é reaplicado à parte.
+    synchronized void reaplicarTransferencia(long lsn, Conta destino, long valor, long instante) {
+        if (lsn <= ultimoLsn) {
+            return;
+        }
+        saldo -= valor;
+        transacoes.registrar(TipoTransacao.SAQUE, -valor, 0, saldo, instante);
+        if (destino == this) {
+            saldo += valor;
+            transacoes.registrar(TipoTransacao.TRANSFERENCIA_RECEBIDA, valor, numero, saldo, instante);
+        }
+        transacoes.registrar(TipoTransacao.TRANSFERENCIA, -valor, destino.numero, saldo, instante);
+        ultimoLsn = lsn;
+    }
+
+    protected void lancar(int debito, int credito, long valor, TipoLancamento tipo) {
+        if (razao != null) {
+            razao.lancar(debito, credito, valor, tipo);
+        }
+    }
+
+    protected long anexar(byte operacao, int contraparte, long valor, long instante) {
+        if (registro == null) {
+            return 0L;
+        }
+        ultimoLsn = registro.anexar(operacao, numero, contraparte, valor, instante);
+        return ultimoLsn;
+    }
+
+    protected void confirmar(long lsn) {
+        if (registro != null) {
+            registro.aguardar(lsn);
+        }
+    }
+}
+
+class ContaCorrente extends Conta {
+    private long limiteChequeEspecial = 50_000L; // R$ 500,00
+
+    public ContaCorrente(int numero, Cliente titular) { super(numero, titular); }
+
+    @Override
+    protected long limite() {
+        return limiteChequeEspecial;
+    }
+
+    @Override
+    public void aplicarRendimento() {
+        // Conta corrente não possui rendimento
+    }
+}
+
+class ContaPoupanca extends Conta {
+    public ContaPoupanca(int numero, Cliente titular) { super(numero, titular); }
+
+    @Override
+    public void aplicarRendimento() {
+        render();
+    }
+
+    // Aplica o rendimento do mês e devolve o valor creditado, em centavos.
+    long render() {
+        long[] lsn = new long[1];
+        long rendimento = render(lsn);
+        confirmar(lsn[0]);
+        return rendimento;
+    }
+
+    // Como render(), sem esperar o log: o LSN a aguardar fica em lsn[0], para quem credita
+    // muitas contas esperar uma vez só, pelo maior.
+    synchronized long render(long[] lsn) {
+        long agora = DiarioTransacoes.agoraNanos();
+        long rendimento = (saldo * 5 + 500) / 1000; // 0,5% ao mês, arredondado ao centavo
+        saldo += rendimento;
+        transacoes.registrar(TipoTransacao.RENDIMENTO, rendimento, 0, saldo, agora);
+        lancar(Razao.RENDIMENTOS, numero, rendimento, TipoLancamento.RENDIMENTO);
+        lsn[0] = anexar(RegistroOperacoes.RENDIMENTO, 0, rendimento, agora);
+        return rendimento;
+    }
+}
+
+final class Dinheiro {
+    private Dinheiro() {}
+
+    public static long paraCentavos(double valor) {
+        return Math.round(valor * 100);
+    }
+
+    public static String formatar(long centavos) {
+        return formatar(centavos, new StringBuilder(16)).toString();
+    }
+
+    // Formata sem String.format, direto no buffer de quem chama: "R$ 1234,56".
+    public static StringBuilder formatar(long centavos, StringBuilder sb) {
+        sb.append("R$ ");
+        if (centavos < 0) {
+            sb.append('-');
+        }
+        long absoluto = Math.abs(centavos);
+        long resto = absoluto % 100;
+        sb.append(absoluto / 100).append(',');
+        if (resto < 10) {
+            sb.append('0');
+        }
+        return sb.append(resto);
+    }
+}
+
+enum TipoTransacao {
+    DEPOSITO("Depósito"),
+    SAQUE("Saque"),
+    TRANSFERENCIA("Transferência para conta"),
+    RENDIMENTO("Rendimento Poupança"),
+    TRANSFERENCIA_RECEBIDA("Transferência recebida da conta");
+
+    // values() devolve uma cópia a cada chamada; o diário usa este array para decodificar o código.
+    static final TipoTransacao[] POR_CODIGO = values();
+
+    private final String descricao;
+
+    TipoTransacao(String descricao) { this.descricao = descricao; }
+
+    public String getDescricao() { return descricao; }
+}
+
+class Transacao {
+    private static final DateTimeFormatter FORMATO_DATA =
+            DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private long instante; // epoch em nanossegundos
+    private TipoTransacao tipo;
+    private long valor; // em centavos
+    private int contraparte;
+    private long saldoApos; // em centavos
+
+    public Transacao(long instante, TipoTransacao tipo, long valor, int contraparte, long saldoApos) {
+        this.instante = instante;
+        this.tipo = tipo;
+        this.valor = valor;
+        this.contraparte = contraparte;
+        this.saldoApos = saldoApos;
+    }
+
+    public long getInstante() { return instante; }
+    public TipoTransacao getTipo() { return tipo; }
+    public long getValor() { return valor; }
+    public int getContraparte() { return contraparte; }
+    public long getSaldoApos() { return saldoApos; }
+
+    public String getDescricao() {
+        if (tipo == TipoTransacao.TRANSFERENCIA || tipo == TipoTransacao.TRANSFERENCIA_RECEBIDA) {
+            return tipo.getDescricao() + " " + contraparte;
+        }
+        return tipo.getDescricao();
+    }
+
+    @Override
+    public String toString() {
+        return formatar(new StringBuilder(64), instante, tipo, valor, contraparte).toString();
+    }
+
+    static StringBuilder formatar(StringBuilder sb, long instante, TipoTransacao tipo, long valor, int contraparte) {
+        sb.append('[');
+        FORMATO_DATA.formatTo(Instant.ofEpochSecond(0L, instante), sb);
+        sb.append("] ").append(tipo.getDescricao());
+        if (tipo == TipoTransacao.TRANSFERENCIA || tipo == TipoTransacao.TRANSFERENCIA_RECEBIDA) {
+            sb.append(' ').append(contraparte);
+        }
+        sb.append(": ");
+        return Dinheiro.formatar(valor, sb);
+    }
+}
+
+/**
+ * Registro compacto das movimentações de uma conta em arrays primitivos paralelos.
+ * Gravar uma movimentação não aloca objetos; {@link Transacao} só é criada na leitura.
+ * Quando o segmento em memória atinge a capacidade, ele é despejado como um bloco na
+ * {@link ArenaDiarios}, compartilhada por todas as contas, e a conta guarda só a posição de
+ * cada bloco, de modo que o heap ocupado por conta fica limitado independentemente do
+ * tamanho do histórico.
+ * Cada registro guarda o saldo da conta logo após a movimentação e os instantes são
+ * não decrescentes, então "saldo no instante T" e "movimentações entre T1 e T2" são
+ * respondidos por busca binária, sem percorrer o histórico.
+ * Não é thread-safe: a conta dona do diário o acessa sob o próprio monitor.
+ */
+class DiarioTransacoes {
+    // Âncora para converter System.nanoTime() em epoch sem alocar (Instant/Date).
+    private static final long ORIGEM_NANOS = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+    // instante (8) + valor (8) + saldo (8) + contraparte (4) + tipo (1), alinhado em 32 bytes
+    private static final int TAMANHO_REGISTRO = 32;
+    static final int CAPACIDADE_PADRAO = Integer.getInteger("banco.diario.capacidade", 1024);
+
+    private final int capacidade;
+    private long[] instantes;
+    private long[] valores;
+    private long[] saldos;
+    private byte[] tipos;
+    private int[] contrapartes;
+    private int tamanho;
+    private long saldoInicial;
+    private long ultimoInstante;
+
+    private static final long[] SEM_BLOCOS = new long[0];
+
+    private long[] blocos = SEM_BLOCOS; // posição na arena de cada bloco despejado, todos cheios
+    private int despejados;
+
+    public DiarioTransacoes() {
+        this(CAPACIDADE_PADRAO);
+    }
+
+    public DiarioTransacoes(int capacidade) {
+        if (capacidade <= 0 || capacidade > ArenaDiarios.MAXIMO_BLOCO / TAMANHO_REGISTRO) {
+            throw new IllegalArgumentException("Capacidade do diário fora do limite: " + capacidade);
+        }
+        this.capacidade = capacidade;
+        int inicial = Math.min(8, capacidade);
+        instantes = new long[inicial];
+        valores = new long[inicial];
+        saldos = new long[inicial];
+        tipos = new byte[inicial];
+        contrapartes = new int[inicial];
+    }
+
+    static long agoraNanos() {
+        return ORIGEM_NANOS + System.nanoTime();
+    }
+
+    /** Saldo da conta antes da primeira movimentação registrada (o do snapshot, na recuperação). */
+    public void setSaldoInicial(long saldoInicial) { this.saldoInicial = saldoInicial; }
+
+    public void registrar(TipoTransacao tipo, long valor, int contraparte, long saldoApos) {
+        registrar(tipo, valor, contraparte, saldoApos, agoraNanos());
+    }
+
+    /** Registra com o instante informado (ver {@link #agoraNanos}), mantidos os instantes não decrescentes. */
+    public void registrar(TipoTransacao tipo, long valor, int contraparte, long saldoApos, long instante) {
+        if (tamanho == instantes.length) {
+            if (tamanho == capacidade) {
+                despejar();
+            } else {
+                crescer();
+            }
+        }
+        ultimoInstante = Math.max(ultimoInstante, instante);
+        instantes[tamanho] = ultimoInstante;
+        valores[tamanho] = valor;
+        saldos[tamanho] = saldoApos;
+        tipos[tamanho] = (byte) tipo.ordinal();
+        contrapartes[tamanho] = contraparte;
+        tamanho++;
+    }
+
+    public int tamanho() { return despejados + tamanho; }
+
+    public Transacao get(int indice) {
+        Objects.checkIndex(indice, tamanho());
+        if (indice >= despejados) {
+            int i = indice - despejados;
+            return new Transacao(instantes[i], TipoTransacao.POR_CODIGO[tipos[i]], valores[i], contrapartes[i], saldos[i]);
+        }
+        long posicao = posicao(indice);
+        ByteBuffer m = ArenaDiarios.padrao().janela(posicao);
+        int pos = ArenaDiarios.deslocamento(posicao);
+        return new Transacao(m.getLong(pos), TipoTransacao.POR_CODIGO[m.get(pos + 28)], m.getLong(pos + 8),
+                m.getInt(pos + 24), m.getLong(pos + 16));
+    }
+
+    public List<Transacao> pagina(int inicio, int quantidade) {
+        int fim = Math.min(tamanho(), inicio + quantidade);
+        List<Transacao> lista = new ArrayList<>(Math.max(0, fim - inicio));
+        for (int i = Math.max(0, inicio); i < fim; i++) {
+            lista.add(get(i));
+        }
+        return lista;
+    }
+
+    public List<Transacao> listar() {
+        return pagina(0, tamanho());
+    }
+
+    /** Índice da primeira movimentação com instante maior que o informado. */
+    public int posicaoApos(long instante) {
+        int baixo = 0;
+        int alto = tamanho();
+        while (baixo < alto) {
+            int meio = (baixo + alto) >>> 1;
+            if (instante(meio) <= instante) {
+                baixo = meio + 1;
+            } else {
+                alto = meio;
+            }
+        }
+        return baixo;
+    }
+
+    /** Índice da primeira movimentação com instante maior ou igual ao informado. */
+    public int posicaoDesde(long instante) {
+        return instante == Long.MIN_VALUE ? 0 : posicaoApos(instante - 1);
+    }
+
+    public long saldoEm(long instante) {
+        int posicao = posicaoApos(instante);
+        return posicao == 0 ? saldoInicial : saldo(posicao - 1);
+    }
+
+    /** Acrescenta ao buffer uma linha por movimentação no intervalo [de, ate), sem criar Transacao. */
+    public void escrever(int de, int ate, StringBuilder sb) {
+        for (int i = de; i < ate; i++) {
+            long instante;
+            long valor;
+            long saldo;
+            int contraparte;
+            byte tipo;
+            if (i >= despejados) {
+                int j = i - despejados;
+                instante = instantes[j];
+                valor = valores[j];
+                saldo = saldos[j];
+                contraparte = contrapartes[j];
+                tipo = tipos[j];
+            } else {
+                long posicao = posicao(i);
+                ByteBuffer m = ArenaDiarios.padrao().janela(posicao);
+                int pos = ArenaDiarios.deslocamento(posicao);
+                instante = m.getLong(pos);
+                valor = m.getLong(pos + 8);
+                saldo = m.getLong(pos + 16);
+                contraparte = m.getInt(pos + 24);
+                tipo = m.get(pos + 28);
+            }
+            Transacao.formatar(sb, instante, TipoTransacao.POR_CODIGO[tipo], valor, contraparte);
+            Dinheiro.formatar(saldo, sb.append(" | Saldo: ")).append('\n');
+        }
+    }
+
+    private long instante(int indice) {
+        return indice >= despejados ? instantes[indice - despejados] : lerDespejado(indice, 0);
+    }
+
+    private long saldo(int indice) {
+        return indice >= despejados ? saldos[indice - despejados] : lerDespejado(indice, 16);
+    }
+
+    private long lerDespejado(int indice, int campo) {
+        long posicao = posicao(indice);
+        return ArenaDiarios.padrao().janela(posicao).getLong(ArenaDiarios.deslocamento(posicao) + campo);
+    }
+
+    // Posição na arena de um registro já despejado.
+    private long posicao(int indice) {
+        return blocos[indice / capacidade] + (long) (indice % capacidade) * TAMANHO_REGISTRO;
+    }
+
+    private void crescer() {
+        int novaCapacidade = Math.min(capacidade, instantes.length * 2);
+        instantes = Arrays.copyOf(instantes, novaCapacidade);
+        valores = Arrays.copyOf(valores, novaCapacidade);
+        saldos = Arrays.copyOf(saldos, novaCapacidade);
+        tipos = Arrays.copyOf(tipos, novaCapacidade);
+        contrapartes = Arrays.copyOf(contrapartes, novaCapacidade);
+    }
+
+    // Copia o segmento em memória (cheio) para um bloco da arena e reaproveita os mesmos arrays.
+    private void despejar() {
+        ArenaDiarios arena = ArenaDiarios.padrao();
+        long posicao = arena.reservar(tamanho * TAMANHO_REGISTRO);
+        ByteBuffer janela = arena.janela(posicao);
+        int base = ArenaDiarios.deslocamento(posicao);
+        for (int i = 0; i < tamanho; i++) {
+            int pos = base + i * TAMANHO_REGISTRO;
+            janela.putLong(pos, instantes[i]).putLong(pos + 8, valores[i]).putLong(pos + 16, saldos[i])
+                    .putInt(pos + 24, contrapartes[i]).put(pos + 28, tipos[i]);
+        }
+        int bloco = despejados / capacidade;
+        if (bloco == blocos.length) {
+            blocos = Arrays.copyOf(blocos, Math.max(4, bloco * 2));
+        }
+        blocos[bloco] = posicao;
+        despejados += tamanho;
+        tamanho = 0;
+    }
+}
+
+/**
+ * Arquivo temporário único onde os diários de todas as contas despejam seus blocos cheios
+ * (ver {@link DiarioTransacoes}). Cada bloco recebe uma posição (long) no arquivo, que é mapeado
+ * em janelas de 1 GB compartilhadas, criadas sob demanda; um bloco nunca atravessa duas
+ * janelas. Assim o número de mapeamentos cresce com o volume despejado, não com o número de
+ * contas. O arquivo é aberto com DELETE_ON_CLOSE e não sobra no disco quando o processo termina.
+ * Escritas e leituras usam posições absolutas em blocos disjuntos; quem ordena a escrita de um
+ * bloco com sua leitura é o monitor da conta dona do diário.
+ */
+final class ArenaDiarios {
+    private static final int BITS_JANELA = 30;
+    private static final long JANELA = 1L << BITS_JANELA;
+    static final int MAXIMO_BLOCO = (int) JANELA;
+
+    private static final class Padrao {
+        static final ArenaDiarios ARENA = new ArenaDiarios();
+    }
+
+    private final Path arquivo;
+    private final FileChannel canal;
+    private final AtomicLong proxima = new AtomicLong();
+    private volatile MappedByteBuffer[] janelas = new MappedByteBuffer[4];
+
+    private ArenaDiarios() {
+        try {
+            arquivo = Files.createTempFile("diarios-", ".bin");
+            canal = FileChannel.open(arquivo, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Falha ao criar o arquivo dos diários", e);
+        }
+    }
+
+    static ArenaDiarios padrao() {
+        return Padrao.ARENA;
+    }
+
+    /** Deslocamento de uma posição dentro da sua janela. */
+    static int deslocamento(long posicao) {
+        return (int) (posicao & (JANELA - 1));
+    }
+
+    /** Reserva um bloco de {@code bytes} (até {@link #MAXIMO_BLOCO}) e devolve sua posição. */
+    long reservar(int bytes) {
+        while (true) {
+            long atual = proxima.get();
+            long inicio = atual;
+            if ((inicio >>> BITS_JANELA) != ((inicio + bytes - 1) >>> BITS_JANELA)) {
+                inicio = ((inicio >>> BITS_JANELA) + 1) << BITS_JANELA; // não cabe: começa na próxima janela
+            }
+            if (proxima.compareAndSet(atual, inicio + bytes)) {
+                return inicio;
+            }
+        }
+    }
+
+    /** A janela mapeada que contém a posição (use {@link #deslocamento} dentro dela). */
+    ByteBuffer janela(long posicao) {
+        int j = (int) (posicao >>> BITS_JANELA);
+        MappedByteBuffer[] atuais = janelas;
+        if (j < atuais.length && atuais[j] != null) {
+            return atuais[j];
+        }
+        return mapear(j);
+    }
+
+    private synchronized MappedByteBuffer mapear(int j) {
+        MappedByteBuffer[] atuais = janelas;
+        if (j < atuais.length && atuais[j] != null) {
+            return atuais[j];
+        }
+        atuais = Arrays.copyOf(atuais, Math.max(atuais.length, j + 1));
+        try {
+            atuais[j] = canal.map(FileChannel.MapMode.READ_WRITE, j * JANELA, JANELA);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Falha ao mapear o arquivo dos diários " + arquivo, e);
+        }
+        janelas = atuais;
+        return atuais[j];
+    }
+}
+
+class Banco implements ParticipanteTransferencias {
+    private static final String SNAPSHOT = "snapshot.bin";
+    private static final int MAGICO_SNAPSHOT = 0x42414E43; // "BANC"
+    private static final int VERSAO_SNAPSHOT = 2;
+    private static final int DECISOES_GUARDADAS = 1 << 20;
+
+    private Map<String, Cliente> clientes = new ConcurrentHashMap<>();
+    private final Collection<Cliente> visaoClientes = Collections.unmodifiableCollection(clientes.values());
+    private final IndiceClientes clientesPorCpf = new IndiceClientes(Cliente::getCpf);
+    private final IndiceClientes clientesPorNome = new IndiceClientes(c -> IndiceClientes.normalizar(c.getNome()));
+    private DiretorioContas contas = new DiretorioContas();
+    // Só as poupanças rendem; mantê-las à parte evita varrer as contas correntes no fim do mês.
+    private Set<ContaPoupanca> poupancas = ConcurrentHashMap.newKeySet();
+    private final int particao;
+    private final int particoes;
+    private final AlocadorNumeros numeros;
+    private Path diretorio;
+    private RegistroOperacoes registro;
+    private final Razao razao = new Razao();
+    // Lotes seguram a leitura; o snapshot segura a escrita e nunca vê um lote pela metade.
+    private final ReentrantReadWriteLock lotes = new ReentrantReadWriteLock();
+    // Criação de contas segura a leitura; o snapshot segura a escrita só para rotacionar o log.
+    private final ReentrantReadWriteLock criacao = new ReentrantReadWriteLock();
+    private static final String HASH_FICTICIO = HashSenha.gerar("");
+    private final CacheSessoes<Cliente> sessoes = new CacheSessoes<>(1_000_000, Duration.ofMinutes(30));
+    // 5 tentativas seguidas por CPF e origem, repostas a uma a cada 12 s.
+    private final LimitadorLogin tentativas = new LimitadorLogin(5, Duration.ofSeconds(12));
+    // Cadastros por origem, cada um com o custo do hash da senha: rajada configurável, um por segundo.
+    private final LimitadorLogin cadastros = new LimitadorLogin(
+            Integer.getInteger("banco.cadastro.rajada", 32), Duration.ofSeconds(1));
+    // Transferências entre partições preparadas aqui e ainda sem decisão, por id.
+    private final Map<Long, Preparada> preparadas = new ConcurrentHashMap<>();
+    // Decisões recentes (true = confirmada), para responder às mensagens repetidas pelo coordenador.
+    private final Map<Long, Boolean> decididas = Collections.synchronizedMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> maisAntiga) {
+            return size() > DECISOES_GUARDADAS;
+        }
+    });
+
+    public Banco() {
+        this(0, 1);
+    }
+
+    /**
+     * Banco que guarda só as contas de uma partição (ver {@link Particionamento}): as contas
+     * criadas aqui recebem números das faixas dela, e contas de outras faixas são recusadas.
+     */
+    public Banco(int particao, int particoes) {
+        if (particoes < 1 || particao < 0 || particao >= particoes) {
+            throw new IllegalArgumentException("Partição inválida: " + particao + " de " + particoes);
+        }
+        this.particao = particao;
+        this.particoes = particoes;
+        this.numeros = new AlocadorNumeros(DiretorioContas.PRIMEIRO_NUMERO, particao, particoes);
+    }
+
+    /**
+     * Abre um banco persistente no diretório: carrega o último snapshot, reaplica os
+     * segmentos do write-ahead log posteriores a ele e passa a registrar novas operações.
+     */
+    public static Banco abrir(Path diretorio) throws IOException {
+        return abrir(diretorio, 0, 1);
+    }
+
+    /** Como {@link #abrir(Path)}, para uma partição; o diretório deve ser sempre aberto com a mesma. */
+    public static Banco abrir(Path diretorio, int particao, int particoes) throws IOException {
+        Files.createDirectories(diretorio);
+        Banco banco = new Banco(particao, particoes);
+        long lsn = banco.carregarSnapshot(diretorio.resolve(SNAPSHOT));
+        RegistroOperacoes.Leitor recuperacao = banco.new Recuperacao();
+        List<Path> segmentos = RegistroOperacoes.listarSegmentos(diretorio);
+        for (int i = 0; i < segmentos.size(); i++) {
+            Path segmento = segmentos.get(i);
+            lsn = Math.max(lsn, RegistroOperacoes.primeiroLsn(segmento) - 1);
+            lsn = Math.max(lsn, RegistroOperacoes.ler(segmento, recuperacao, i == segmentos.size() - 1));
+        }
+        for (Preparada preparada : banco.preparadas.values()) {
+            if (preparada.delta < 0) {
+                preparada.conta.reservado -= preparada.delta; // débito ainda à espera da decisão
+            }
+        }
+        banco.diretorio = diretorio;
+        banco.registro = new RegistroOperacoes(diretorio, lsn);
+        for (Conta conta : banco.contas) {
+            conta.registro = banco.registro;
+            // O razão começa agora: os saldos recuperados entram como lançamentos de abertura.
+            if (conta.saldo != 0L) {
+                banco.razao.lancar(Razao.ABERTURA, conta.numero, conta.saldo, TipoLancamento.ABERTURA);
+            }
+        }
+        return banco;
+    }
+
+    /**
+     * Cadastra um cliente novo. Um CPF já cadastrado é recusado, nunca substituído: trocar o
+     * cliente trocaria a senha e, depois de um snapshot, o titular das contas dele.
+     * @return o cliente, ou null se o CPF já estava cadastrado
+     */
+    public Cliente cadastrarCliente(String nome, String cpf, String senha) {
+        if (clientes.containsKey(cpf)) {
+            return null; // sem gastar o hash da senha
+        }
+        Cliente cliente = new Cliente(nome, cpf, senha);
+        if (clientes.putIfAbsent(cpf, cliente) != null) {
+            return null;
+        }
+        indexar(cliente);
+        if (registro != null) {
+            registro.aguardar(registro.anexarCliente(nome, cpf, cliente.getHashSenha()));
+        }
+        return cliente;
+    }
+
+    /**
+     * Cadastra limitando os cadastros por origem, como o login, pois cada um calcula o hash da
+     * senha. Com os cadastros da origem esgotados a recusa é imediata.
+     * @return o cliente, ou null se o CPF já estava cadastrado ou os cadastros acabaram
+     *         (ver {@link #cadastrosEsgotados})
+     */
+    public Cliente cadastrarCliente(String nome, String cpf, String senha, String origem) {
+        if (!cadastros.tentar("", origem)) {
+            Metricas.CADASTRO_BLOQUEADO.increment();
+            return null;
+        }
+        return cadastrarCliente(nome, cpf, senha);
+    }
+
+    public boolean cadastrosEsgotados(String origem) {
+        return cadastros.esgotado("", origem);
+    }
+
+    public Cliente autenticarCliente(String cpf, String senha) {
+        return autenticarCliente(cpf, senha, "");
+    }
+
+    /**
+     * Autentica limitando as tentativas por CPF e origem (endereço do cliente, por exemplo).
+     * Com as tentativas esgotadas a recusa é imediata, sem calcular o hash da senha.
+     * @return o cliente, ou null se as credenciais forem inválidas ou as tentativas acabaram
+     *         (ver {@link #tentativasEsgotadas})
+     */
+    public Cliente autenticarCliente(String cpf, String senha, String origem) {
+        long inicio = System.nanoTime();
+        if (!tentativas.tentar(cpf, origem)) {
+            Metricas.AUTENTICACAO_BLOQUEADA.increment();
+            return null;
+        }
+        Cliente cliente = clientes.get(cpf);
+        if (cliente == null) {
+            // Mesmo custo de um CPF existente, para o tempo de resposta não revelar quais existem.
+            HashSenha.confere(senha, HASH_FICTICIO);
+            Metricas.AUTENTICACAO_RECUSADA.registrar(System.nanoTime() - inicio);
+            return null;
+        }
+        if (!cliente.autenticar(senha)) {
+            Metricas.AUTENTICACAO_RECUSADA.registrar(System.nanoTime() - inicio);
+            return null;
+        }
+        tentativas.zerar(cpf, origem);
+        Metricas.AUTENTICACAO.registrar(System.nanoTime() - inicio);
+        return cliente;
+    }
+
+    public boolean tentativasEsgotadas(String cpf, String origem) {
+        return tentativas.esgotado(cpf, origem);
+    }
+
+    /**
+     * Autentica uma vez (PBKDF2) e abre uma sessão.
+     * @return token opaco da sessão, ou null se a autenticação falhar
+     */
+    public String abrirSessao(String cpf, String senha, String origem) {
+        Cliente cliente = autenticarCliente(cpf, senha, origem);
+        return cliente == null ? null : sessoes.abrir(cliente);
+    }
+
+    /** Cliente da sessão em O(1), renovando seu prazo; null se o token não existe ou expirou. */
+    public Cliente validarSessao(String token) {
+        return sessoes.validar(token);
+    }
+
+    public boolean encerrarSessao(String token) {
+        return sessoes.encerrar(token);
+    }
+
+    public ContaCorrente criarContaCorrente(Cliente cliente) {
+        ContaCorrente cc = new ContaCorrente(numeros.proximo(), cliente);
+        registrarConta(cc, RegistroOperacoes.CONTA_CORRENTE);
+        return cc;
+    }
+
+    public ContaPoupanca criarContaPoupanca(Cliente cliente) {
+        ContaPoupanca cp = new ContaPoupanca(numeros.proximo(), cliente);
+        registrarConta(cp, RegistroOperacoes.CONTA_POUPANCA);
+        return cp;
+    }
+
+    private void registrarConta(Conta conta, byte operacao) {
+        // O log não rotaciona entre o registro e a entrada no diretório: o snapshot descartaria
+        // o segmento com a criação sem ter visto a conta.
+        criacao.readLock().lock();
+        try {
+            if (registro != null) {
+                conta.registro = registro;
+                conta.ultimoLsn = registro.anexarConta(operacao, conta.getNumero(), conta.getTitular().getCpf());
+            }
+            adicionar(conta);
+        } finally {
+            criacao.readLock().unlock();
+        }
+        conta.getTitular().adicionarConta(conta);
+        if (registro != null) {
+            registro.aguardar(conta.ultimoLsn);
+        }
+    }
+
+    private void adicionar(Conta conta) {
+        if (!pertence(conta.getNumero())) {
+            throw new IllegalStateException("Conta " + conta.getNumero() + " não pertence à partição " + particao);
+        }
+        conta.razao = razao;
+        contas.adicionar(conta);
+        if (conta instanceof ContaPoupanca) {
+            poupancas.add((ContaPoupanca) conta);
+        }
+    }
+
+    public Conta buscarConta(int numero) {
+        return contas.buscar(numero);
+    }
+
+    /** Se a conta com esse número, existindo, fica nesta partição. */
+    public boolean pertence(int numero) {
+        return Particionamento.particao(numero, particoes) == particao;
+    }
+
+    public int getParticao() { return particao; }
+    public int getParticoes() { return particoes; }
+
+    /** Titular da conta, pelo diretório de contas (O(1)); null se a conta não existe. */
+    public Cliente buscarTitular(int numero) {
+        Conta conta = contas.buscar(numero);
+        return conta == null ? null : conta.getTitular();
+    }
+
+    /** Contas do cliente, sem cópia; lista vazia se o CPF não está cadastrado. */
+    public List<Conta> buscarContas(String cpf) {
+        Cliente cliente = clientes.get(cpf);
+        return cliente == null ? Collections.emptyList() : cliente.getContas();
+    }
+
+    /**
+     * Clientes cujo CPF começa pelo prefixo, em ordem de CPF.
+     * @param limite quantidade máxima de clientes devolvidos
+     */
+    public List<Cliente> buscarClientesPorCpf(String prefixo, int limite) {
+        return coletar(clientesPorCpf.buscar(prefixo), limite);
+    }
+
+    /**
+     * Clientes cujo nome começa pelo prefixo, ignorando acentos, maiúsculas e pontuação;
+     * em ordem de nome e, entre homônimos, de CPF.
+     * @param limite quantidade máxima de clientes devolvidos
+     */
+    public List<Cliente> buscarClientesPorNome(String prefixo, int limite) {
+        return coletar(clientesPorNome.buscar(IndiceClientes.normalizar(prefixo)), limite);
+    }
+
+    private List<Cliente> coletar(Iterator<Cliente> encontrados, int limite) {
+        List<Cliente> resultado = new ArrayList<>(Math.min(limite, 64));
+        while (resultado.size() < limite && encontrados.hasNext()) {
+            Cliente cliente = encontrados.next();
+            // Um CPF recadastrado deixa a entrada antiga no índice de nomes; vale só o cliente atual.
+            if (clientes.get(cliente.getCpf()) == cliente) {
+                resultado.add(cliente);
+            }
+        }
+        return resultado;
+    }
+
+    private void indexar(Cliente cliente) {
+        clientesPorCpf.adicionar(cliente);
+        clientesPorNome.adicionar(cliente);
+    }
+
+    private void indexarTodos(Collection<Cliente> novos) {
+        clientesPorCpf.adicionarTodos(novos);
+        clientesPorNome.adicionarTodos(novos);
+    }
+
+    public boolean transferir(int origem, int destino, long valor) {
+        Conta contaOrigem = contas.buscar(origem);
+        Conta contaDestino = contas.buscar(destino);
+        if (contaOrigem == null || contaDestino == null) {
+            return false;
+        }
+        return contaOrigem.transferir(contaDestino, valor);
+    }
+
+    /**
+     * Executa um lote de transferências de forma atômica, compensando os movimentos.
+     * Os valores são somados por conta e cada conta recebe um único ajuste líquido:
+     * primeiro os débitos líquidos são reservados (em ordem de número, a mesma das
+     * transferências avulsas), depois o lote é gravado como um único registro no log e
+     * cada conta é travada uma vez para aplicar o ajuste e lançar suas transferências.
+     * @return false, sem alterar nenhuma conta, se algum débito líquido não couber no saldo
+     * @throws IllegalArgumentException se alguma conta não existir, algum valor não for positivo ou,
+     *         num banco persistente, o lote não couber num registro do log
+     */
+    public boolean transferirEmLote(LoteTransferencias lote) {
+        int n = lote.tamanho();
+        // Números distintos envolvidos, ordenados, e o índice de cada ponta de cada transferência.
+        int[] numerosEnvolvidos = new int[n * 2];
+        for (int i = 0; i < n; i++) {
+            if (lote.valor(i) <= 0) {
+                throw new IllegalArgumentException("Valor inválido na transferência " + i + ": " + lote.valor(i));
+            }
+            if (lote.origem(i) == lote.destino(i)) {
+                throw new IllegalArgumentException("Transferência " + i + " tem origem igual ao destino");
+            }
+            numerosEnvolvidos[2 * i] = lote.origem(i);
+            numerosEnvolvidos[2 * i + 1] = lote.destino(i);
+        }
+        Arrays.sort(numerosEnvolvidos);
+        int distintas = 0;
+        for (int i = 0; i < numerosEnvolvidos.length; i++) {
+            if (i == 0 || numerosEnvolvidos[i] != numerosEnvolvidos[i - 1]) {
+                numerosEnvolvidos[distintas++] = numerosEnvolvidos[i];
+            }
+        }
+        if (registro != null && !RegistroOperacoes.cabeLote(n)) {
+            throw new IllegalArgumentException("Lote grande demais: " + n + " transferências");
+        }
+        Conta[] envolvidas = new Conta[distintas];
+        for (int k = 0; k < distintas; k++) {
+            envolvidas[k] = contas.buscar(numerosEnvolvidos[k]);
+            if (envolvidas[k] == null) {
+                throw new IllegalArgumentException("Conta não encontrada: " + numerosEnvolvidos[k]);
+            }
+        }
+        long[] deltas = new long[distintas];
+        int[] origens = new int[n];
+        int[] destinos = new int[n];
+        int[] inicioPorConta = new int[distintas + 1];
+        for (int i = 0; i < n; i++) {
+            origens[i] = Arrays.binarySearch(numerosEnvolvidos, 0, distintas, lote.origem(i));
+            destinos[i] = Arrays.binarySearch(numerosEnvolvidos, 0, distintas, lote.destino(i));
+            deltas[origens[i]] = Math.subtractExact(deltas[origens[i]], lote.valor(i));
+            deltas[destinos[i]] = Math.addExact(deltas[destinos[i]], lote.valor(i));
+            inicioPorConta[origens[i] + 1]++;
+            inicioPorConta[destinos[i] + 1]++;
+        }
+        // Transferências agrupadas por conta (as duas pontas), para lançá-las sob uma única trava.
+        for (int k = 0; k < distintas; k++) {
+            inicioPorConta[k + 1] += inicioPorConta[k];
+        }
+        int[] porConta = new int[n * 2];
+        int[] preenchidas = Arrays.copyOf(inicioPorConta, distintas);
+        for (int i = 0; i < n; i++) {
+            porConta[preenchidas[origens[i]]++] = i;
+            porConta[preenchidas[destinos[i]]++] = i;
+        }
+
+        lotes.readLock().lock();
+        try {
+            for (int k = 0; k < distintas; k++) {
+                if (deltas[k] < 0 && !envolvidas[k].reservar(-deltas[k])) {
+                    for (int j = 0; j < k; j++) {
+                        if (deltas[j] < 0) {
+                            envolvidas[j].liberar(-deltas[j]);
+                        }
+                    }
+                    return false;
+                }
+            }
+            long lsn = 0L;
+            long agora = DiarioTransacoes.agoraNanos();
+            if (registro != null) {
+                lsn = registro.anexarLote(lote, agora);
+                registro.aguardar(lsn);
+            }
+            for (int k = 0; k < distintas; k++) {
+                Conta conta = envolvidas[k];
+                synchronized (conta) {
+                    if (deltas[k] < 0) {
+                        conta.reservado += deltas[k];
+                    }
+                    long corrente = conta.saldo;
+                    conta.saldo += deltas[k];
+                    for (int p = inicioPorConta[k]; p < inicioPorConta[k + 1]; p++) {
+                        int i = porConta[p];
+                        if (origens[i] == k) {
+                            corrente -= lote.valor(i);
+                            conta.transacoes.registrar(TipoTransacao.TRANSFERENCIA, -lote.valor(i), lote.destino(i), corrente, agora);
+                            // Cada transferência do lote vira um lançamento, feito pela ponta de origem.
+                            razao.lancar(lote.origem(i), lote.destino(i), lote.valor(i), TipoLancamento.TRANSFERENCIA);
+                        } else {
+                            corrente += lote.valor(i);
+                            conta.transacoes.registrar(TipoTransacao.TRANSFERENCIA_RECEBIDA, lote.valor(i), lote.origem(i), corrente, agora);
+                        }
+                    }
+                    conta.ultimoLsn = Math.max(conta.ultimoLsn, lsn);
+                }
+            }
+            return true;
+        } finally {
+            lotes.readLock().unlock();
+        }
+    }
+
+    /**
+     * Primeira fase de uma transferência entre partições: reserva o débito (delta negativo)
+     * ou confere que a conta do crédito existe. Repetir o mesmo id devolve o mesmo voto. Um
+     * voto favorável só é devolvido com a preparação já no log; a reserva é refeita a partir
+     * dela na recuperação.
+     * @return false se a conta não existe aqui, não tem saldo ou o id já foi desfeito
+     */
+    @Override
+    public boolean preparar(long id, int numero, int contraparte, long delta) {
+        Conta conta = contas.buscar(numero);
+        if (conta == null || delta == 0) {
+            return false;
+        }
+        boolean[] voto = new boolean[1];
+        long[] lsn = new long[1];
+        // Como em registrarConta: o snapshot nunca separa a preparação do seu registro no log.
+        criacao.readLock().lock();
+        try {
+            preparadas.compute(id, (chave, existente) -> {
+                if (existente != null) {
+                    voto[0] = true;
+                    lsn[0] = existente.lsn;
+                    return existente;
+                }
+                Boolean decisao = decididas.get(id);
+                if (decisao != null) {
+                    voto[0] = decisao;
+                    return null;
+                }
+                voto[0] = delta > 0 || conta.reservar(-delta);
+                if (!voto[0]) {
+                    return null;
+                }
+                // Registrado sob o bin, para um desfazer concorrente do mesmo id vir depois no log.
+                lsn[0] = registro == null ? 0L : registro.anexarPreparacao(id, numero, contraparte, delta);
+                return new Preparada(conta, contraparte, delta, lsn[0]);
+            });
+        } finally {
+            criacao.readLock().unlock();
+        }
+        // O voto só sai depois de durável, também quando repetido: a partição pode reiniciar
+        // antes da decisão, e a decisão tem de encontrar a preparação.
+        if (lsn[0] != 0L) {
+            registro.aguardar(lsn[0]);
+        }
+        return voto[0];
+    }
+
+    /**
+     * Segunda fase: aplica a perna preparada. Repetir um id já confirmado não faz nada.
+     * @throws IllegalStateException se o id não foi preparado aqui ou já foi desfeito
+     */
+    @Override
+    public void confirmar(long id) {
+        // A decisão é tomada sob o bin do mapa; a perna é aplicada fora dele, sem segurar as
+        // outras transferências do mesmo bin enquanto trava a conta e grava no log.
+        Preparada[] confirmada = new Preparada[1];
+        long lsn;
+        criacao.readLock().lock();
+        try {
+            preparadas.compute(id, (chave, preparada) -> {
+                if (preparada == null) {
+                    if (!Boolean.TRUE.equals(decididas.get(id))) {
+                        throw new IllegalStateException("Transferência " + id + " não preparada nesta partição");
+                    }
+                    return null;
+                }
+                decididas.put(id, true);
+                confirmada[0] = preparada;
+                return null;
+            });
+            Preparada preparada = confirmada[0];
+            if (preparada == null) {
+                return;
+            }
+            lsn = preparada.conta.liquidar(id, preparada.delta, preparada.contraparte);
+        } finally {
+            criacao.readLock().unlock();
+        }
+        if (registro != null) {
+            registro.aguardar(lsn);
+        }
+    }
+
+    /**
+     * Desfaz a preparação, liberando a reserva; vale também para ids nunca preparados aqui,
+     * para que uma preparação atrasada do mesmo id seja recusada.
+     * @throws IllegalStateException se o id já foi confirmado
+     */
+    @Override
+    public void desfazer(long id) {
+        long lsn = 0L;
+        criacao.readLock().lock();
+        try {
+            preparadas.compute(id, (chave, preparada) -> {
+                if (preparada != null && preparada.delta < 0) {
+                    preparada.conta.liberar(-preparada.delta);
+                } else if (preparada == null && Boolean.TRUE.equals(decididas.get(id))) {
+                    throw new IllegalStateException("Transferência " + id + " já confirmada");
+                }
+                decididas.put(id, false);
+                return null;
+            });
+            if (registro != null) {
+                lsn = registro.anexarDesfeita(id);
+            }
+        } finally {
+            criacao.readLock().unlock();
+        }
+        if (lsn != 0L) {
+            registro.aguardar(lsn);
+        }
+    }
+
+    private static final class Preparada {
+        final Conta conta;
+        final int contraparte;
+        final long delta;
+        final long lsn; // do registro da preparação (0 sem persistência)
+
+        Preparada(Conta conta, int contraparte, long delta, long lsn) {
+            this.conta = conta;
+            this.contraparte = contraparte;
+            this.delta = delta;
+            this.lsn = lsn;
+        }
+    }
+
+    public RelatorioRendimentos aplicarRendimentos() {
+        return aplicarRendimentos(null);
+    }
+
+    /**
+     * Aplica o rendimento mensal em todas as poupanças, em paralelo no ForkJoinPool comum.
+     * As poupanças são divididas em lotes; cada conta é travada só durante o próprio crédito,
+     * então depósitos e saques concorrentes continuam sendo atendidos durante a execução.
+     * Num banco persistente cada lote espera o log uma vez, pelo último registro que anexou.
+     * @param progresso notificado (de threads do pool) ao fim de cada lote; pode ser nulo
+     */
+    public RelatorioRendimentos aplicarRendimentos(ProgressoRendimentos progresso) {
+        long inicio = System.nanoTime();
+        ContaPoupanca[] alvo = poupancas.toArray(new ContaPoupanca[0]);
+        TarefaRendimentos tarefa = new TarefaRendimentos(registro, alvo, 0, alvo.length, progresso, new AtomicInteger(), new LongAdder());
+        ForkJoinPool.commonPool().invoke(tarefa);
+        return new RelatorioRendimentos(alvo.length, tarefa.total.sum(), System.nanoTime() - inicio);
+    }
+
+    /** Visão somente leitura, sem cópia, dos clientes cadastrados (em ordem arbitrária). */
+    public Collection<Cliente> getClientes() { return visaoClientes; }
+
+    /**
+     * Grava um snapshot binário compacto e descarta os segmentos do log que ele cobre.
+     * O snapshot é "fuzzy": as operações continuam durante a cópia e cada conta guarda o
+     * LSN da última operação refletida, para que a recuperação não aplique nada duas vezes.
+     */
+    public synchronized void salvarSnapshot() throws IOException {
+        if (registro == null) {
+            throw new IllegalStateException("Banco sem persistência");
+        }
+        lotes.writeLock().lock();
+        try {
+            gravarSnapshot();
+        } finally {
+            lotes.writeLock().unlock();
+        }
+    }
+
+    private void gravarSnapshot() throws IOException {
+        long lsnInicio;
+        List<Map.Entry<Long, Preparada>> emAberto;
+        long[] idsDecididos;
+        boolean[] decisoes;
+        // Preparações e decisões são copiadas junto com a rotação: cada uma segura a leitura
+        // desde a mudança no mapa até o seu registro, então a cópia é exata no LSN do corte.
+        criacao.writeLock().lock();
+        try {
+            lsnInicio = registro.rotacionar();
+            emAberto = new ArrayList<>(preparadas.entrySet());
+            synchronized (decididas) {
+                idsDecididos = new long[decididas.size()];
+                decisoes = new boolean[idsDecididos.length];
+                int i = 0;
+                for (Map.Entry<Long, Boolean> decisao : decididas.entrySet()) {
+                    idsDecididos[i] = decisao.getKey();
+                    decisoes[i++] = decisao.getValue();
+                }
+            }
+        } finally {
+            criacao.writeLock().unlock();
+        }
+        Path temporario = diretorio.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel canal = FileChannel.open(temporario, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(canal), 1 << 16))) {
+            out.writeInt(MAGICO_SNAPSHOT);
+            out.writeInt(VERSAO_SNAPSHOT);
+            out.writeLong(lsnInicio);
+            out.writeInt(numeros.limite());
+            // Contas antes dos clientes: todo titular de uma conta copiada já existia
+            // quando a cópia dos clientes começou.
+            for (Conta conta : contas) {
+                synchronized (conta) {
+                    out.writeByte(conta instanceof ContaPoupanca ? RegistroOperacoes.CONTA_POUPANCA : RegistroOperacoes.CONTA_CORRENTE);
+                    out.writeInt(conta.numero);
+                    out.writeUTF(conta.titular.getCpf());
+                    out.writeLong(conta.saldo);
+                    out.writeLong(conta.ultimoLsn);
+                }
+            }
+            out.writeByte(0);
+            for (Cliente cliente : clientes.values()) {
+                out.writeByte(RegistroOperacoes.CLIENTE);
+                out.writeUTF(cliente.getNome());
+                out.writeUTF(cliente.getCpf());
+                out.writeUTF(cliente.getHashSenha());
+            }
+            out.writeByte(0);
+            out.writeInt(emAberto.size());
+            for (Map.Entry<Long, Preparada> entrada : emAberto) {
+                Preparada preparada = entrada.getValue();
+                out.writeLong(entrada.getKey());
+                out.writeInt(preparada.conta.numero);
+                out.writeInt(preparada.contraparte);
+                out.writeLong(preparada.delta);
+            }
+            out.writeInt(idsDecididos.length);
+            for (int i = 0; i < idsDecididos.length; i++) {
+                out.writeLong(idsDecididos[i]);
+                out.writeBoolean(decisoes[i]);
+            }
+            out.flush();
+            canal.force(true);
+        }
+        Files.move(temporario, diretorio.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        registro.descartarAte(lsnInicio);
+    }
+
+    /**
+     * Carrega clientes e contas em massa de um arquivo do {@link ArquivoCarga} (CSV ou binário,
+     * reconhecido pelo cabeçalho), em paralelo. Serve para popular um banco antes de atendê-lo:
+     * a carga não é transacional e um CPF ou número de conta repetido a interrompe com
+     * IllegalStateException. Num banco persistente os registros não passam pelo log; ao final
+     * é gravado um snapshot que os contém.
+     * @return quantidade de clientes e contas carregados
+     */
+    public long importar(Path arquivo) throws IOException {
+        Carga carga = new Carga();
+        try {
+            ArquivoCarga.ler(arquivo, carga);
+        } finally {
+            // Os clientes carregados entram nos índices de uma vez, ordenados, em vez de um a um.
+            indexarTodos(carga.carregados);
+        }
+        if (registro != null) {
+            salvarSnapshot();
+            // Só agora as contas carregadas passam a registrar operações: o snapshot já as contém.
+            for (Conta conta : contas) {
+                synchronized (conta) {
+                    if (conta.registro == null) {
+                        conta.registro = registro;
+                    }
+                }
+            }
+        }
+        return carga.registros.sum();
+    }
+
+    /** Grava todos os clientes e contas num arquivo que {@link #importar} lê de volta. */
+    public void exportar(Path arquivo, ArquivoCarga.Formato formato) throws IOException {
+        lotes.writeLock().lock();
+        try {
+            ArquivoCarga.escrever(arquivo, formato, contas, clientes.values());
+        } finally {
+            lotes.writeLock().unlock();
+        }
+    }
+
+    public void fechar() throws IOException {
+        if (registro != null) {
+            registro.close();
+        }
+        razao.close();
+    }
+
+    /**
+     * Confere o saldo de cada conta com o saldo projetado pelo razão. Lotes ficam suspensos
+     * durante a conferência e cada conta é travada só enquanto é comparada, depois de o razão
+     * aplicar tudo o que já havia sido lançado.
+     * @return números das contas cujo saldo diverge do razão (vazio se tudo confere)
+     */
+    public List<Integer> conciliar() {
+        List<Integer> divergentes = new ArrayList<>();
+        lotes.writeLock().lock();
+        try {
+            Razao.Projecao projecao = razao.getProjecao();
+            for (Conta conta : contas) {
+                synchronized (conta) {
+                    razao.aguardar(razao.ultimaSequencia());
+                    if (projecao.saldo(conta.numero) != conta.saldo) {
+                        divergentes.add(conta.numero);
+                    }
+                }
+            }
+        } finally {
+            lotes.writeLock().unlock();
+        }
+        return divergentes;
+    }
+
+    /**
+     * Retrato dos saldos num mesmo ponto do razão, para relatórios que não podem travar as
+     * contas nem ver um estado pela metade. Cada operação vira um só lançamento, então qualquer
+     * corte entre lançamentos é consistente; lotes ficam suspensos só até o corte, para ele não
+     * cair no meio de um. Depósitos, saques e transferências seguem sem esperar.
+     */
+    public RetratoSaldos retratoSaldos() {
+        lotes.writeLock().lock();
+        try {
+            return new RetratoSaldos(razao.retratar(), contas, numeros.limite());
+        } finally {
+            lotes.writeLock().unlock();
+        }
+    }
+
+    /** O razão de partidas dobradas alimentado pelas contas deste banco. */
+    Razao getRazao() {
+        return razao;
+    }
+
+    private long carregarSnapshot(Path arquivo) throws IOException {
+        if (!Files.exists(arquivo)) {
+            return 0L;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(arquivo), 1 << 16))) {
+            if (in.readInt() != MAGICO_SNAPSHOT || in.readInt() != VERSAO_SNAPSHOT) {
+                throw new IOException("Snapshot inválido: " + arquivo);
+            }
+            long lsn = in.readLong();
+            numeros.garantirAcima(in.readInt() - 1);
+            List<Conta> lidas = new ArrayList<>();
+            List<String> titulares = new ArrayList<>();
+            for (byte tipo = in.readByte(); tipo != 0; tipo = in.readByte()) {
+                int numero = in.readInt();
+                titulares.add(in.readUTF());
+                Conta conta = tipo == RegistroOperacoes.CONTA_POUPANCA ? new ContaPoupanca(numero, null) : new ContaCorrente(numero, null);
+                conta.saldo = in.readLong();
+                conta.transacoes.setSaldoInicial(conta.saldo);
+                conta.ultimoLsn = in.readLong();
+                lidas.add(conta);
+            }
+            List<Cliente> lidos = new ArrayList<>();
+            for (byte tipo = in.readByte(); tipo != 0; tipo = in.readByte()) {
+                Cliente cliente = Cliente.restaurar(in.readUTF(), in.readUTF(), in.readUTF());
+                clientes.put(cliente.getCpf(), cliente);
+                lidos.add(cliente);
+            }
+            indexarTodos(lidos);
+            for (int i = 0; i < lidas.size(); i++) {
+                Conta conta = lidas.get(i);
+                conta.titular = clientes.get(titulares.get(i));
+                conta.titular.adicionarConta(conta);
+                adicionar(conta);
+                numeros.garantirAcima(conta.numero);
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                long id = in.readLong();
+                preparadas.put(id, new Preparada(buscarConta(in.readInt()), in.readInt(), in.readLong(), 0L));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                decididas.put(in.readLong(), in.readBoolean());
+            }
+            return lsn;
+        }
+    }
+
+    private static class TarefaRendimentos extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int LOTE = 4096;
+
+        private final RegistroOperacoes registro;
+        private final ContaPoupanca[] contas;
+        private final int inicio;
+        private final int fim;
+        private final ProgressoRendimentos progresso;
+        private final AtomicInteger processadas;
+        final LongAdder total;
+
+        TarefaRendimentos(RegistroOperacoes registro, ContaPoupanca[] contas, int inicio, int fim,
+                          ProgressoRendimentos progresso, AtomicInteger processadas, LongAdder total) {
+            this.registro = registro;
+            this.contas = contas;
+            this.inicio = inicio;
+            this.fim = fim;
+            this.progresso = progresso;
+            this.processadas = processadas;
+            this.total = total;
+        }
+
+        @Override
+        protected void compute() {
+            if (fim - inicio > LOTE) {
+                int meio = (inicio + fim) >>> 1;
+                invokeAll(new TarefaRendimentos(registro, contas, inicio, meio, progresso, processadas, total),
+                          new TarefaRendimentos(registro, contas, meio, fim, progresso, processadas, total));
+                return;
+            }
+            // Todos os registros do lote são anexados antes de um único fsync aguardado, em vez
+            // de um por conta segurando o trabalhador do pool comum.
+            long soma = 0L;
+            long[] lsn = new long[1];
+            long maiorLsn = 0L;
+            for (int i = inicio; i < fim; i++) {
+                soma += contas[i].render(lsn);
+                maiorLsn = Math.max(maiorLsn, lsn[0]);
+            }
+            if (maiorLsn != 0L) {
+                registro.aguardar(maiorLsn);
+            }
+            total.add(soma);
+            int feitas = processadas.addAndGet(fim - inicio);
+            if (progresso != null) {
+                progresso.atualizar(feitas, contas.length);
+            }
+        }
+    }
+
+    // Cria os clientes e contas lidos por importar(); chamada por várias threads ao mesmo tempo.
+    private class Carga implements ArquivoCarga.Destino {
+        final LongAdder registros = new LongAdder();
+        final Queue<Cliente> carregados = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void cliente(String nome, String cpf, String senha) {
+            Cliente cliente = Cliente.restaurar(nome, cpf, senha);
+            if (clientes.putIfAbsent(cpf, cliente) != null) {
+                throw new IllegalStateException("Cliente já cadastrado: " + cpf);
+            }
+            carregados.add(cliente);
+            registros.increment();
+        }
+
+        @Override
+        public void conta(byte tipo, int numero, String cpf, long saldo) {
+            Cliente titular = clientes.get(cpf);
+            if (titular == null) {
+                throw new IllegalStateException("Titular da conta " + numero + " não encontrado: " + cpf);
+            }
+            Conta conta = tipo == RegistroOperacoes.CONTA_POUPANCA ? new ContaPoupanca(numero, titular) : new ContaCorrente(numero, titular);
+            conta.saldo = saldo;
+            conta.transacoes.setSaldoInicial(saldo);
+            adicionar(conta);
+            titular.adicionarConta(conta);
+            numeros.garantirAcima(numero);
+            if (saldo != 0L) {
+                razao.lancar(Razao.ABERTURA, numero, saldo, TipoLancamento.ABERTURA);
+            }
+            registros.increment();
+        }
+    }
+
+    // Reaplica o log sobre o estado carregado do snapshot, ignorando o que ele já refletia.
+    private class Recuperacao implements RegistroOperacoes.Leitor {
+        // Um CPF nunca é recadastrado (cadastrarCliente recusa), então o cadastro que o snapshot
+        // já tinha continua sendo o objeto titular das contas carregadas.
+        @Override
+        public void cliente(long lsn, String nome, String cpf, String hashSenha) {
+            if (clientes.containsKey(cpf)) {
+                return;
+            }
+            Cliente cliente = Cliente.restaurar(nome, cpf, hashSenha);
+            clientes.put(cpf, cliente);
+            indexar(cliente);
+        }
+
+        @Override
+        public void conta(long lsn, byte operacao, int numero, String cpf) {
+            if (contas.buscar(numero) != null) {
+                return;
+            }
+            Cliente titular = clientes.get(cpf);
+            Conta conta = operacao == RegistroOperacoes.CONTA_POUPANCA ? new ContaPoupanca(numero, titular) : new ContaCorrente(numero, titular);
+            conta.ultimoLsn = lsn;
+            adicionar(conta);
+            titular.adicionarConta(conta);
+            numeros.garantirAcima(numero);
+        }
+
+        // Uma linha por transferência em cada ponta, na ordem do lote, como em transferirEmLote.
+        // Todas têm o mesmo LSN, então cada conta decide antes se o snapshot já refletia o lote.
+        @Override
+        public void lote(long lsn, long instante, int[] origens, int[] destinos, long[] valores) {
+            Map<Conta, Boolean> reaplicar = new HashMap<>();
+            for (int i = 0; i < origens.length; i++) {
+                Conta origem = contas.buscar(origens[i]);
+                Conta destino = contas.buscar(destinos[i]);
+                if (reaplicar.computeIfAbsent(origem, c -> lsn > c.ultimoLsn)) {
+                    origem.saldo -= valores[i];
+                    origem.transacoes.registrar(TipoTransacao.TRANSFERENCIA, -valores[i], destinos[i], origem.saldo, instante);
+                }
+                if (reaplicar.computeIfAbsent(destino, c -> lsn > c.ultimoLsn)) {
+                    destino.saldo += valores[i];
+                    destino.transacoes.registrar(TipoTransacao.TRANSFERENCIA_RECEBIDA, valores[i], origens[i], destino.saldo, instante);
+                }
+            }
+            reaplicar.forEach((conta, aplicado) -> {
+                if (aplicado) {
+                    conta.ultimoLsn = lsn;
+                }
+            });
+        }
+
+        @Override
+        public void operacao(long lsn, byte operacao, int numero, int contraparte, long valor, long instante) {
+            Conta conta = contas.buscar(numero);
+            switch (operacao) {
+                case RegistroOperacoes.DEPOSITO:
+                    conta.reaplicar(lsn, TipoTransacao.DEPOSITO, valor, 0, instante);
+                    break;
+                case RegistroOperacoes.SAQUE:
+                    conta.reaplicar(lsn, TipoTransacao.SAQUE, -valor, 0, instante);
+                    break;
+                case RegistroOperacoes.RENDIMENTO:
+                    conta.reaplicar(lsn, TipoTransacao.RENDIMENTO, valor, 0, instante);
+                    break;
+                case RegistroOperacoes.TRANSFERENCIA:
+                    Conta destino = contas.buscar(contraparte);
+                    conta.reaplicarTransferencia(lsn, destino, valor, instante);
+                    if (destino != conta) {
+                        destino.reaplicar(lsn, TipoTransacao.TRANSFERENCIA_RECEBIDA, valor, numero, instante);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Operação desconhecida no registro: " + operacao);
+            }
+        }
+
+        // Preparações e decisões refazem os mapas como estavam; as reservas saem das preparações
+        // que sobrarem no fim (ver abrir). O snapshot guarda os mapas no ponto em que o log foi
+        // rotacionado, então nenhum registro aqui já estava refletido neles.
+        @Override
+        public void preparacao(long lsn, long id, int numero, int contraparte, long delta) {
+            preparadas.put(id, new Preparada(contas.buscar(numero), contraparte, delta, lsn));
+        }
+
+        @Override
+        public void transferenciaExterna(long lsn, long id, int numero, int contraparte, long valor, long instante) {
+            preparadas.remove(id);
+            decididas.put(id, true);
+            contas.buscar(numero).reaplicar(lsn, valor < 0 ? TipoTransacao.TRANSFERENCIA : TipoTransacao.TRANSFERENCIA_RECEBIDA,
+                    valor, contraparte, instante);
+        }
+
+        @Override
+        public void desfeita(long lsn, long id) {
+            preparadas.remove(id);
+            decididas.put(id, false);
+        }
+    }
+}
+
+/**
+ * Hash de senha com PBKDF2 (HMAC-SHA256) e sal aleatório, guardado como
+ * "pbkdf2$iterações$sal$hash" (Base64). As iterações ficam no próprio hash, então mudar
+ * -Dbanco.pbkdf2.iteracoes não invalida senhas já gravadas.
+ */
+final class HashSenha {
+    private static final String PREFIXO = "pbkdf2$";
+    private static final int ITERACOES = Integer.getInteger("banco.pbkdf2.iteracoes", 100_000);
+    private static final SecureRandom ALEATORIO = new SecureRandom();
+
+    private HashSenha() {}
+
+    public static String gerar(String senha) {
+        byte[] sal = new byte[16];
+        ALEATORIO.nextBytes(sal);
+        byte[] hash = derivar(senha, sal, ITERACOES, 32);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIXO + ITERACOES + "$" + base64.encodeToString(sal) + "$" + base64.encodeToString(hash);
+    }
+
+    /** Confere a senha com o hash em tempo constante. */
+    public static boolean confere(String senha, String codificado) {
+        String[] partes = codificado.split("\\$");
+        if (partes.length != 4 || !codificada(codificado)) {
+            return false;
+        }
+        byte[] sal = Base64.getDecoder().decode(partes[2]);
+        byte[] esperado = Base64.getDecoder().decode(partes[3]);
+        return MessageDigest.isEqual(esperado, derivar(senha, sal, Integer.parseInt(partes[1]), esperado.length));
+    }
+
+    static boolean codificada(String valor) {
+        return valor.startsWith(PREFIXO);
+    }
+
+    private static byte[] derivar(String senha, byte[] sal, int iteracoes, int bytes) {
+        PBEKeySpec especificacao = new PBEKeySpec(senha.toCharArray(), sal, iteracoes, bytes * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(especificacao).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 indisponível", e);
+        } finally {
+            especificacao.clearPassword();
+        }
+    }
+}
+
+/**
+ * Sessões em memória: token opaco -> valor, com capacidade limitada e expiração por ociosidade.
+ * As entradas são repartidas em faixas pelo hash do token; cada faixa é um LinkedHashMap em
+ * ordem de acesso com trava própria, então consulta, renovação e descarte da menos usada são
+ * O(1) e threads em faixas diferentes não disputam trava.
+ */
+class CacheSessoes<V> {
+    private static final int FAIXAS = 64;
+
+    private final Faixa<V>[] faixas;
+    private final long validadeNanos;
+    private final SecureRandom aleatorio = new SecureRandom();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    CacheSessoes(int capacidade, Duration validade) {
+        this.validadeNanos = validade.toNanos();
+        this.faixas = new Faixa[FAIXAS];
+        for (int i = 0; i < FAIXAS; i++) {
+            faixas[i] = new Faixa<>(Math.max(1, capacidade / FAIXAS));
+        }
+    }
+
+    /** Cria uma sessão com token aleatório de 256 bits. */
+    public String abrir(V valor) {
+        byte[] bytes = new byte[32];
+        aleatorio.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        Faixa<V> faixa = faixa(token);
+        long agora = System.nanoTime();
+        synchronized (faixa) {
+            faixa.descartarExpiradas(agora, validadeNanos);
+            faixa.put(token, new Entrada<>(valor, agora));
+        }
+        return token;
+    }
+
+    public V validar(String token) {
+        if (token == null) {
+            return null;
+        }
+        Faixa<V> faixa = faixa(token);
+        long agora = System.nanoTime();
+        synchronized (faixa) {
+            Entrada<V> entrada = faixa.get(token);
+            if (entrada == null) {
+                return null;
+            }
+            if (agora - entrada.ultimoAcesso > validadeNanos) {
+                faixa.remove(token);
+                return null;
+            }
+            entrada.ultimoAcesso = agora;
+            return entrada.valor;
+        }
+    }
+
+    public boolean encerrar(String token) {
+        if (token == null) {
+            return false;
+        }
+        Faixa<V> faixa = faixa(token);
+        synchronized (faixa) {
+            return faixa.remove(token) != null;
+        }
+    }
+
+    private Faixa<V> faixa(String token) {
+        int h = token.hashCode();
+        return faixas[(h ^ (h >>> 16)) & (FAIXAS - 1)];
+    }
+
+    private static final class Entrada<V> {
+        final V valor;
+        long ultimoAcesso;
+
+        Entrada(V valor, long ultimoAcesso) {
+            this.valor = valor;
+            this.ultimoAcesso = ultimoAcesso;
+        }
+    }
+
+    private static final class Faixa<V> extends LinkedHashMap<String, Entrada<V>> {
+        private static final long serialVersionUID = 1L;
+        private final int capacidade;
+
+        Faixa(int capacidade) {
+            super(16, 0.75f, true);
+            this.capacidade = capacidade;
+        }
+
+        // As menos usadas ficam no começo: para na primeira ainda válida.
+        void descartarExpiradas(long agora, long validadeNanos) {
+            Iterator<Entrada<V>> entradas = values().iterator();
+            while (entradas.hasNext() && agora - entradas.next().ultimoAcesso > validadeNanos) {
+                entradas.remove();
+            }
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entrada<V>> maisAntiga) {
+            return size() > capacidade;
+        }
+    }
+}
+
+/**
+ * Limite de tentativas de login por par (conta, origem), contra força bruta.
+ * <p>
+ * Cada par tem um balde de fichas: até {@code rajada} tentativas seguidas, repostas a uma a
+ * cada {@code reposicao}. O balde é guardado na forma compacta do GCRA: um único long com o
+ * instante teórico da próxima chegada, reposto de forma preguiçosa na própria consulta, sem
+ * threads em segundo plano. A chave é um hash de 64 bits do par com semente aleatória, então
+ * cada balde ocupa 16 bytes e nenhuma String é criada por consulta.
+ * <p>
+ * Os baldes ficam em faixas independentes, cada uma uma tabela de endereçamento aberto com trava
+ * própria. Um balde que já se encheu de novo equivale a um balde ausente: quando a tabela da
+ * faixa enche, ela é reconstruída só com os baldes ainda em uso, o que descarta os ociosos.
+ */
+class LimitadorLogin {
+    private static final int FAIXAS = 64;
+
+    private final long intervaloNanos;
+    private final long toleranciaNanos;
+    private final long semente = new SecureRandom().nextLong();
+    private final long inicio = System.nanoTime();
+    private final Faixa[] faixas = new Faixa[FAIXAS];
+
+    /**
+     * @param rajada tentativas permitidas em sequência
+     * @param reposicao tempo para repor uma tentativa
+     */
+    LimitadorLogin(int rajada, Duration reposicao) {
+        if (rajada <= 0 || reposicao.isNegative() || reposicao.isZero()) {
+            throw new IllegalArgumentException("Rajada e reposição devem ser positivas");
+        }
+        this.intervaloNanos = reposicao.toNanos();
+        this.toleranciaNanos = Math.multiplyExact(rajada - 1L, intervaloNanos);
+        for (int i = 0; i < FAIXAS; i++) {
+            faixas[i] = new Faixa();
+        }
+    }
+
+    /** Consome uma tentativa do par; false, sem consumir nada, se elas se esgotaram. */
+    public boolean tentar(String conta, String origem) {
+        long chave = chave(conta, origem);
+        Faixa faixa = faixas[faixa(chave)];
+        long agora = agora();
+        synchronized (faixa) {
+            int i = faixa.posicao(chave);
+            long chegada = i >= 0 ? Math.max(faixa.chegadas[i], agora) : agora;
+            if (chegada - toleranciaNanos > agora) {
+                return false;
+            }
+            if (i < 0) {
+                i = faixa.inserir(chave, agora);
+            }
+            faixa.chegadas[i] = chegada + intervaloNanos;
+            return true;
+        }
+    }
+
+    /** Se a próxima tentativa do par seria recusada, sem consumir nada. */
+    public boolean esgotado(String conta, String origem) {
+        long chave = chave(conta, origem);
+        Faixa faixa = faixas[faixa(chave)];
+        long agora = agora();
+        synchronized (faixa) {
+            int i = faixa.posicao(chave);
+            return i >= 0 && faixa.chegadas[i] - toleranciaNanos > agora;
+        }
+    }
+
+    /** Devolve todas as tentativas do par, depois de um login bem-sucedido. */
+    public void zerar(String conta, String origem) {
+        long chave = chave(conta, origem);
+        Faixa faixa = faixas[faixa(chave)];
+        synchronized (faixa) {
+            int i = faixa.posicao(chave);
+            if (i >= 0) {
+                faixa.chegadas[i] = 0L; // cheio: sai na próxima reconstrução
+            }
+        }
+    }
+
+    /** Baldes guardados, incluindo ociosos ainda não descartados. */
+    public int tamanho() {
+        int total = 0;
+        for (Faixa faixa : faixas) {
+            synchronized (faixa) {
+                total += faixa.tamanho;
+            }
+        }
+        return total;
+    }
+
+    // Sempre positivo, para que 0 signifique "balde cheio".
+    private long agora() {
+        return System.nanoTime() - inicio + 1;
+    }
+
+    private long chave(String conta, String origem) {
+        long h = semente;
+        for (int i = 0; i < conta.length(); i++) {
+            h = (h ^ conta.charAt(i)) * 0x100000001B3L;
+        }
+        h = (h ^ 0xFFFF) * 0x100000001B3L;
+        for (int i = 0; i < origem.length(); i++) {
+            h = (h ^ origem.charAt(i)) * 0x100000001B3L;
+        }
+        // finalizador do MurmurHash3, para espalhar os bits usados por faixa e posição
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h == 0 ? 1 : h;
+    }
+
+    private static int faixa(long chave) {
+        return (int) (chave >>> 58) & (FAIXAS - 1);
+    }
+
+    private final class Faixa {
+        long[] chaves = new long[16]; // 0 = posição livre
+        long[] chegadas = new long[16];
+        int tamanho;
+
+        int posicao(long chave) {
+            int mascara = chaves.length - 1;
+            for (int i = (int) chave & mascara; chaves[i] != 0; i = (i + 1) & mascara) {
+                if (chaves[i] == chave) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int inserir(long chave, long agora) {
+            if ((tamanho + 1) * 4 > chaves.length * 3) {
+                reconstruir(agora);
+            }
+            int mascara = chaves.length - 1;
+            int i = (int) chave & mascara;
+            while (chaves[i] != 0) {
+                i = (i + 1) & mascara;
+            }
+            chaves[i] = chave;
+            tamanho++;
+            return i;
+        }
+
+        // Mantém só os baldes que ainda não se encheram e dimensiona para 4x esse número.
+        private void reconstruir(long agora) {
+            int emUso = 0;
+            for (int i = 0; i < chaves.length; i++) {
+                if (chaves[i] != 0 && chegadas[i] > agora) {
+                    emUso++;
+                }
+            }
+            int capacidade = Math.max(16, Integer.highestOneBit(Math.max(1, emUso * 4 - 1)) << 1);
+            long[] antigasChaves = chaves;
+            long[] antigasChegadas = chegadas;
+            chaves = new long[capacidade];
+            chegadas = new long[capacidade];
+            tamanho = 0;
+            int mascara = capacidade - 1;
+            for (int i = 0; i < antigasChaves.length; i++) {
+                if (antigasChaves[i] != 0 && antigasChegadas[i] > agora) {
+                    int j = (int) antigasChaves[i] & mascara;
+                    while (chaves[j] != 0) {
+                        j = (j + 1) & mascara;
+                    }
+                    chaves[j] = antigasChaves[i];
+                    chegadas[j] = antigasChegadas[i];
+                    tamanho++;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Índice das contas por número, aproveitando que os números são densos e sequenciais
+ * a partir de {@link #PRIMEIRO_NUMERO}: a conta fica na posição (numero - 1001) de um
+ * array segmentado, sem boxing da chave nem nó de mapa por entrada.
+ * Leituras não travam; a publicação usa acquire/release por elemento e o array de
+ * segmentos só é trocado (copiado) quando precisa crescer.
+ */
+class DiretorioContas implements Iterable<Conta> {
+    static final int PRIMEIRO_NUMERO = 1001;
+    private static final int BITS_SEGMENTO = 12;
+    private static final int TAMANHO_SEGMENTO = 1 << BITS_SEGMENTO;
+    private static final int MASCARA_SEGMENTO = TAMANHO_SEGMENTO - 1;
+    private static final VarHandle ELEMENTO = MethodHandles.arrayElementVarHandle(Conta[].class);
+
+    private volatile Conta[][] segmentos = new Conta[16][];
+    private final AtomicInteger quantidade = new AtomicInteger();
+
+    public Conta buscar(int numero) {
+        int indice = numero - PRIMEIRO_NUMERO;
+        if (indice < 0) {
+            return null;
+        }
+        Conta[][] atuais = segmentos;
+        int s = indice >>> BITS_SEGMENTO;
+        if (s >= atuais.length || atuais[s] == null) {
+            return null;
+        }
+        return (Conta) ELEMENTO.getAcquire(atuais[s], indice & MASCARA_SEGMENTO);
+    }
+
+    public void adicionar(Conta conta) {
+        int indice = conta.getNumero() - PRIMEIRO_NUMERO;
+        if (indice < 0) {
+            throw new IllegalArgumentException("Número de conta fora da faixa: " + conta.getNumero());
+        }
+        Conta[] segmento = segmento(indice >>> BITS_SEGMENTO);
+        if (!ELEMENTO.compareAndSet(segmento, indice & MASCARA_SEGMENTO, (Conta) null, conta)) {
+            throw new IllegalStateException("Conta já cadastrada: " + conta.getNumero());
+        }
+        quantidade.incrementAndGet();
+    }
+
+    public int tamanho() { return quantidade.get(); }
+
+    @Override
+    public Iterator<Conta> iterator() {
+        Conta[][] atuais = segmentos;
+        return new Iterator<Conta>() {
+            private int indice = -1;
+            private Conta proxima = avancar();
+
+            private Conta avancar() {
+                while (++indice < atuais.length * TAMANHO_SEGMENTO) {
+                    Conta[] segmento = atuais[indice >>> BITS_SEGMENTO];
+                    if (segmento == null) {
+                        indice |= MASCARA_SEGMENTO; // pula o segmento inteiro
+                        continue;
+                    }
+                    Conta conta = (Conta) ELEMENTO.getAcquire(segmento, indice & MASCARA_SEGMENTO);
+                    if (conta != null) {
+                        return conta;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() { return proxima != null; }
+
+            @Override
+            public Conta next() {
+                if (proxima == null) {
+                    throw new NoSuchElementException();
+                }
+                Conta atual = proxima;
+                proxima = avancar();
+                return atual;
+            }
+        };
+    }
+
+    private Conta[] segmento(int s) {
+        Conta[][] atuais = segmentos;
+        if (s < atuais.length && atuais[s] != null) {
+            return atuais[s];
+        }
+        synchronized (this) {
+            atuais = segmentos;
+            if (s >= atuais.length) {
+                atuais = Arrays.copyOf(atuais, Math.max(s + 1, atuais.length * 2));
+            } else if (atuais[s] != null) {
+                return atuais[s];
+            } else {
+                atuais = atuais.clone();
+            }
+            atuais[s] = new Conta[TAMANHO_SEGMENTO];
+            segmentos = atuais;
+            return atuais[s];
+        }
+    }
+}
+
+/**
+ * Índice de clientes por prefixo de uma chave textual (o CPF ou o nome normalizado).
+ * O grosso das entradas fica em dois arrays paralelos ordenados, sem objeto por entrada;
+ * as inserções recentes vão para um ConcurrentSkipListSet que, ao crescer, é intercalado
+ * num novo par de arrays sem bloquear as inserções seguintes. Uma busca é uma busca
+ * binária nos arrays e uma leitura sequencial, intercalada com as entradas recentes.
+ * Entradas nunca são removidas; chaves repetidas (homônimos) são desempatadas pelo CPF.
+ */
+class IndiceClientes {
+    private static final int MINIMO_CONSOLIDACAO = 1 << 16;
+    private static final Comparator<Entrada> ORDEM = (a, b) -> comparar(a.chave, a.cliente, b.chave, b.cliente);
+
+    private final Function<Cliente, String> chave;
+    private volatile Estado estado = new Estado(new String[0], new Cliente[0], null, novoConjunto());
+    private final AtomicInteger recentes = new AtomicInteger();
+    // Inserções seguram a leitura; a troca do conjunto de recentes segura a escrita.
+    private final ReentrantReadWriteLock troca = new ReentrantReadWriteLock();
+    private final ReentrantLock consolidacao = new ReentrantLock();
+
+    IndiceClientes(Function<Cliente, String> chave) {
+        this.chave = chave;
+    }
+
+    /**
+     * Forma usada nas chaves de nome: sem acentos, em minúsculas e com os termos
+     * separados por um único espaço.
+     */
+    static String normalizar(String texto) {
+        String decomposto = texto;
+        for (int i = 0; i < texto.length(); i++) {
+            if (texto.charAt(i) >= 0x80) {
+                decomposto = Normalizer.normalize(texto, Normalizer.Form.NFD);
+                break;
+            }
+        }
+        StringBuilder sb = new StringBuilder(decomposto.length());
+        boolean separar = false;
+        for (int i = 0; i < decomposto.length(); i++) {
+            char c = decomposto.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (separar && sb.length() > 0) {
+                    sb.append(' ');
+                }
+                separar = false;
+                sb.append(Character.toLowerCase(c));
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                separar = true;
+            }
+        }
+        return sb.toString();
+    }
+
+    public void adicionar(Cliente cliente) {
+        Entrada entrada = new Entrada(chave.apply(cliente), cliente);
+        troca.readLock().lock();
+        try {
+            estado.recentes.add(entrada);
+        } finally {
+            troca.readLock().unlock();
+        }
+        if (recentes.incrementAndGet() >= limite(estado) && consolidacao.tryLock()) {
+            try {
+                consolidar(new Entrada[0]);
+            } finally {
+                consolidacao.unlock();
+            }
+        }
+    }
+
+    /**
+     * Carga em massa: as chaves são calculadas e ordenadas de uma vez e intercaladas
+     * direto nos arrays, sem passar pelo conjunto de inserções recentes.
+     */
+    public void adicionarTodos(Collection<Cliente> novos) {
+        Cliente[] clientes = novos.toArray(new Cliente[0]);
+        Entrada[] lote = new Entrada[clientes.length];
+        Arrays.parallelSetAll(lote, i -> new Entrada(chave.apply(clientes[i]), clientes[i]));
+        Arrays.parallelSort(lote, ORDEM);
+        consolidacao.lock();
+        try {
+            consolidar(lote);
+        } finally {
+            consolidacao.unlock();
+        }
+    }
+
+    /**
+     * Clientes cuja chave começa pelo prefixo, em ordem de chave e CPF. O iterador percorre
+     * o índice sem copiá-lo e reflete o estado do momento da chamada e, em parte, inserções
+     * feitas durante a iteração.
+     */
+    public Iterator<Cliente> buscar(String prefixo) {
+        Estado atual = estado;
+        Entrada inicio = new Entrada(prefixo, null);
+        List<Iterator<Entrada>> fontes = new ArrayList<>(3);
+        fontes.add(atual.desde(prefixo));
+        if (atual.congeladas != null) {
+            fontes.add(atual.congeladas.tailSet(inicio).iterator());
+        }
+        fontes.add(atual.recentes.tailSet(inicio).iterator());
+        return new Intercalacao(fontes, prefixo);
+    }
+
+    private static int limite(Estado estado) {
+        return Math.max(MINIMO_CONSOLIDACAO, estado.chaves.length / 4);
+    }
+
+    // Chamado por uma thread de cada vez (consolidacao); as inserções seguem durante a intercalação.
+    // O lote, já ordenado, é mais novo que as inserções recentes e as substitui nas repetidas.
+    private void consolidar(Entrada[] lote) {
+        Estado atual;
+        troca.writeLock().lock();
+        try {
+            atual = estado;
+            if (lote.length == 0 && recentes.get() < limite(atual)) {
+                return;
+            }
+            atual = new Estado(atual.chaves, atual.clientes, atual.recentes, novoConjunto());
+            estado = atual;
+            recentes.set(0);
+        } finally {
+            troca.writeLock().unlock();
+        }
+        // A partir daqui ninguém mais insere em atual.congeladas.
+        Entrada[] novas = atual.congeladas.toArray(new Entrada[0]);
+        if (lote.length > 0) {
+            int congeladas = novas.length;
+            novas = Arrays.copyOf(novas, congeladas + lote.length);
+            System.arraycopy(lote, 0, novas, congeladas, lote.length);
+            Arrays.parallelSort(novas, ORDEM); // estável: nas repetidas o lote fica por último
+        }
+        String[] chaves = atual.chaves;
+        Cliente[] clientes = atual.clientes;
+        int n = chaves.length + novas.length;
+        String[] novasChaves = new String[n];
+        Cliente[] novosClientes = new Cliente[n];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < chaves.length || j < novas.length) {
+            int cmp = i == chaves.length ? 1
+                    : j == novas.length ? -1
+                    : comparar(chaves[i], clientes[i], novas[j].chave, novas[j].cliente);
+            if (cmp < 0) {
+                novasChaves[k] = chaves[i];
+                novosClientes[k++] = clientes[i++];
+            } else {
+                // Na mesma chave e CPF, o cliente mais recente substitui o antigo.
+                while (j + 1 < novas.length && ORDEM.compare(novas[j], novas[j + 1]) == 0) {
+                    j++;
+                }
+                novasChaves[k] = novas[j].chave;
+                novosClientes[k++] = novas[j++].cliente;
+                if (cmp == 0) {
+                    i++;
+                }
+            }
+        }
+        if (k < n) {
+            novasChaves = Arrays.copyOf(novasChaves, k);
+            novosClientes = Arrays.copyOf(novosClientes, k);
+        }
+        estado = new Estado(novasChaves, novosClientes, null, atual.recentes);
+    }
+
+    private static ConcurrentSkipListSet<Entrada> novoConjunto() {
+        return new ConcurrentSkipListSet<>(ORDEM);
+    }
+
+    // Ordem por chave e depois por CPF; cliente nulo marca o início de uma chave nas buscas.
+    private static int comparar(String chaveA, Cliente a, String chaveB, Cliente b) {
+        int cmp = chaveA.compareTo(chaveB);
+        if (cmp != 0 || a == b) {
+            return cmp;
+        }
+        if (a == null || b == null) {
+            return a == null ? -1 : 1;
+        }
+        return a.getCpf().compareTo(b.getCpf());
+    }
+
+    private static final class Entrada {
+        final String chave;
+        final Cliente cliente;
+
+        Entrada(String chave, Cliente cliente) {
+            this.chave = chave;
+            this.cliente = cliente;
+        }
+    }
+
+    // Imutável: os arrays nunca mudam depois de publicados; recentes é o único conjunto que recebe inserções.
+    private static final class Estado {
+        final String[] chaves;
+        final Cliente[] clientes;
+        final ConcurrentSkipListSet<Entrada> congeladas;
+        final ConcurrentSkipListSet<Entrada> recentes;
+
+        Estado(String[] chaves, Cliente[] clientes, ConcurrentSkipListSet<Entrada> congeladas,
+               ConcurrentSkipListSet<Entrada> recentes) {
+            this.chaves = chaves;
+            this.clientes = clientes;
+            this.congeladas = congeladas;
+            this.recentes = recentes;
+        }
+
+        Iterator<Entrada> desde(String prefixo) {
+            int baixo = 0;
+            int alto = chaves.length;
+            while (baixo < alto) {
+                int meio = (baixo + alto) >>> 1;
+                if (chaves[meio].compareTo(prefixo) < 0) {
+                    baixo = meio + 1;
+                } else {
+                    alto = meio;
+                }
+            }
+            int primeiro = baixo;
+            return new Iterator<Entrada>() {
+                private int indice = primeiro;
+
+                @Override
+                public boolean hasNext() { return indice < chaves.length; }
+
+                @Override
+                public Entrada next() {
+                    if (indice >= chaves.length) {
+                        throw new NoSuchElementException();
+                    }
+                    Entrada entrada = new Entrada(chaves[indice], clientes[indice]);
+                    indice++;
+                    return entrada;
+                }
+            };
+        }
+    }
+
+    // Intercala as fontes ordenadas; numa entrada repetida vale a da fonte mais recente (a última).
+    private static final class Intercalacao implements Iterator<Cliente> {
+        private final List<Iterator<Entrada>> fontes;
+        private final Entrada[] atuais;
+        private final String prefixo;
+
+        Intercalacao(List<Iterator<Entrada>> fontes, String prefixo) {
+            this.fontes = fontes;
+            this.prefixo = prefixo;
+            this.atuais = new Entrada[fontes.size()];
+            for (int f = 0; f < atuais.length; f++) {
+                atuais[f] = avancar(f);
+            }
+        }
+
+        private Entrada avancar(int f) {
+            Iterator<Entrada> fonte = fontes.get(f);
+            if (!fonte.hasNext()) {
+                return null;
+            }
+            Entrada entrada = fonte.next();
+            // As fontes estão ordenadas: a primeira chave fora do prefixo encerra a fonte.
+            return entrada.chave.startsWith(prefixo) ? entrada : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (Entrada entrada : atuais) {
+                if (entrada != null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Cliente next() {
+            Entrada menor = null;
+            for (Entrada entrada : atuais) {
+                if (entrada != null && (menor == null
+                        || comparar(entrada.chave, entrada.cliente, menor.chave, menor.cliente) <= 0)) {
+                    menor = entrada;
+                }
+            }
+            if (menor == null) {
+                throw new NoSuchElementException();
+            }
+            for (int f = 0; f < atuais.length; f++) {
+                Entrada entrada = atuais[f];
+                if (entrada != null && comparar(entrada.chave, entrada.cliente, menor.chave, menor.cliente) == 0) {
+                    atuais[f] = avancar(f);
+                }
+            }
+            return menor.cliente;
+        }
+    }
+}
+
+/**
+ * Divisão das contas entre partições pelo número: faixas de 4096 números consecutivos
+ * (o tamanho de um segmento do {@link DiretorioContas}) são distribuídas em rodízio. Cada
+ * partição continua com números densos nas suas faixas e o roteamento é só uma conta, sem
+ * tabela. Os clientes ficam na partição dada pelo CPF, onde também são criadas as contas deles.
+ */
+final class Particionamento {
+    static final int BITS_FAIXA = 12;
+    static final int MASCARA_FAIXA = (1 << BITS_FAIXA) - 1;
+
+    private Particionamento() {}
+
+    static int particao(int numero, int particoes) {
+        return ((numero - DiretorioContas.PRIMEIRO_NUMERO) >>> BITS_FAIXA) % particoes;
+    }
+
+    static int particaoDoCliente(String cpf, int particoes) {
+        return Math.floorMod(cpf.hashCode(), particoes);
+    }
+}
+
+/**
+ * Gera números de conta sem disputa entre threads: cada thread reserva um bloco de
+ * números com um único incremento atômico no contador global e o consome localmente.
+ * Os números continuam crescentes e densos (no máximo um bloco parcial por thread fica
+ * sem uso), o que mantém o {@link DiretorioContas} compacto.
+ */
+class AlocadorNumeros {
+    private static final int TAMANHO_BLOCO = 64;
+
+    private final int primeiro;
+    private final int particao;
+    private final int particoes;
+    // Contador lógico: só conta os números da partição, que numero() converte no número real.
+    private final AtomicInteger limite = new AtomicInteger();
+    // [próximo número lógico, fim exclusivo] do bloco reservado pela thread
+    private final ThreadLocal<int[]> blocos = ThreadLocal.withInitial(() -> new int[2]);
+
+    public AlocadorNumeros(int primeiro) {
+        this(primeiro, 0, 1);
+    }
+
+    /** Entrega só números das faixas da partição (ver {@link Particionamento}). */
+    public AlocadorNumeros(int primeiro, int particao, int particoes) {
+        this.primeiro = primeiro;
+        this.particao = particao;
+        this.particoes = particoes;
+    }
+
+    public int proximo() {
+        int[] bloco = blocos.get();
+        if (bloco[0] == bloco[1]) {
+            int inicio = limite.getAndAdd(TAMANHO_BLOCO);
+            if (inicio > Integer.MAX_VALUE - TAMANHO_BLOCO || numero(inicio + TAMANHO_BLOCO - 1) < 0) {
+                throw new IllegalStateException("Números de conta esgotados");
+            }
+            bloco[0] = inicio;
+            bloco[1] = inicio + TAMANHO_BLOCO;
+        }
+        return numero(bloco[0]++);
+    }
+
+    /** Primeiro número ainda não reservado por nenhuma thread. */
+    public int limite() { return numero(limite.get()); }
+
+    /** Garante que números até {@code numero} (inclusive) nunca sejam entregues. Usado na recuperação. */
+    public void garantirAcima(int numero) {
+        long anteriores = (long) numero - primeiro + 1; // números reais até o informado, de todas as partições
+        if (anteriores <= 0) {
+            return;
+        }
+        long faixa = anteriores >>> Particionamento.BITS_FAIXA;
+        long volta = faixa / particoes;
+        long posicao = faixa % particoes;
+        long logico = volta << Particionamento.BITS_FAIXA;
+        if (posicao == particao) {
+            logico += anteriores & Particionamento.MASCARA_FAIXA;
+        } else if (posicao > particao) {
+            logico += 1 << Particionamento.BITS_FAIXA;
+        }
+        int garantido = (int) Math.min(logico, Integer.MAX_VALUE);
+        limite.accumulateAndGet(garantido, Math::max);
+    }
+
+    // Número real do n-ésimo número da partição; negativo se passar do maior int.
+    private int numero(int logico) {
+        long faixa = (long) (logico >>> Particionamento.BITS_FAIXA) * particoes + particao;
+        long real = primeiro + (faixa << Particionamento.BITS_FAIXA) + (logico & Particionamento.MASCARA_FAIXA);
+        return real > Integer.MAX_VALUE ? -1 : (int) real;
+    }
+}
+
+/**
+ * Lote de transferências a ser executado por {@link Banco#transferirEmLote}, guardado
+ * em arrays primitivos paralelos (arquivos de folha e de liquidação têm milhares de linhas).
+ */
+class LoteTransferencias {
+    private int[] origens;
+    private int[] destinos;
+    private long[] valores;
+    private int tamanho;
+
+    public LoteTransferencias() {
+        this(64);
+    }
+
+    public LoteTransferencias(int capacidade) {
+        origens = new int[Math.max(1, capacidade)];
+        destinos = new int[origens.length];
+        valores = new long[origens.length];
+    }
+
+    public LoteTransferencias adicionar(int origem, int destino, long valor) {
+        if (tamanho == origens.length) {
+            int capacidade = tamanho * 2;
+            origens = Arrays.copyOf(origens, capacidade);
+            destinos = Arrays.copyOf(destinos, capacidade);
+            valores = Arrays.copyOf(valores, capacidade);
+        }
+        origens[tamanho] = origem;
+        destinos[tamanho] = destino;
+        valores[tamanho] = valor;
+        tamanho++;
+        return this;
+    }
+
+    public int tamanho() { return tamanho; }
+    public int origem(int i) { return origens[Objects.checkIndex(i, tamanho)]; }
+    public int destino(int i) { return destinos[Objects.checkIndex(i, tamanho)]; }
+    public long valor(int i) { return valores[Objects.checkIndex(i, tamanho)]; }
+}
+
+/**
+ * Uma partição vista pelo {@link CoordenadorTransferencias}: o próprio {@link Banco}, no mesmo
+ * processo, ou uma {@link ParticaoRemota}. As três mensagens são idempotentes pelo id da
+ * transferência, e preparações e decisões vão para o log da partição antes da resposta, então
+ * valem também depois de ela reiniciar. Falhas de comunicação aparecem como
+ * UncheckedIOException; uma decisão recusada (id desconhecido ou decidido ao contrário), como
+ * IllegalStateException.
+ */
+interface ParticipanteTransferencias {
+    /** Reserva o débito (delta negativo) ou confere a conta do crédito; false recusa a transferência. */
+    boolean preparar(long id, int numero, int contraparte, long delta);
+
+    void confirmar(long id);
+
+    void desfazer(long id);
+}
+
+/**
+ * Coordena transferências entre partições em duas fases: prepara o crédito no destino (a conta
+ * existe?) e o débito na origem (reserva o valor); se as duas aceitam, confirma as duas pernas,
+ * senão desfaz as preparadas. Cada transferência tem um id aleatório de 64 bits e as mensagens
+ * são idempotentes, então uma falha de comunicação é tratada reenviando a mesma mensagem. Uma
+ * decisão que não pôde ser entregue, ou que a partição recusou, fica numa fila, reenviada no
+ * máximo uma vez por segundo antes de uma transferência seguinte (ou por {@link #reenviarPendentes}).
+ * As decisões só existem em memória: se o coordenador cair entre as fases, a reserva preparada
+ * na origem fica presa até a partição ser reiniciada.
+ */
+class CoordenadorTransferencias {
+    enum Resultado { CONFIRMADA, SALDO_INSUFICIENTE, CONTA_NAO_ENCONTRADA }
+
+    private static final int TENTATIVAS = 5;
+    private static final long ESPERA_INICIAL = 5_000_000L; // 5 ms, dobrando a cada nova tentativa
+    private static final long INTERVALO_REENVIO = 1_000_000_000L;
+
+    private final Queue<Entrega> pendentes = new ConcurrentLinkedQueue<>();
+    // Com uma partição fora do ar, só uma transferência por segundo paga o reenvio das pendentes.
+    private final AtomicLong ultimoReenvio = new AtomicLong(System.nanoTime());
+
+    /**
+     * @return SALDO_INSUFICIENTE se a origem recusou (sem saldo ou inexistente),
+     *         CONTA_NAO_ENCONTRADA se o destino recusou
+     * @throws UncheckedIOException se uma partição não respondeu a nenhuma tentativa de preparar;
+     *         a transferência é desfeita
+     */
+    public Resultado transferir(ParticipanteTransferencias origem, int numeroOrigem,
+                                ParticipanteTransferencias destino, int numeroDestino, long valor) {
+        if (valor <= 0) {
+            throw new IllegalArgumentException("Valor inválido: " + valor);
+        }
+        long inicio = System.nanoTime();
+        long anterior = ultimoReenvio.get();
+        if (!pendentes.isEmpty() && inicio - anterior >= INTERVALO_REENVIO && ultimoReenvio.compareAndSet(anterior, inicio)) {
+            reenviarPendentes();
+        }
+        long id = ThreadLocalRandom.current().nextLong();
+        Resultado resultado;
+        try {
+            if (!repetir(() -> destino.preparar(id, numeroDestino, numeroOrigem, valor))) {
+                resultado = Resultado.CONTA_NAO_ENCONTRADA;
+            } else if (!repetir(() -> origem.preparar(id, numeroOrigem, numeroDestino, -valor))) {
+                resultado = Resultado.SALDO_INSUFICIENTE;
+                entregar(id, destino, false);
+            } else {
+                resultado = Resultado.CONFIRMADA;
+                entregar(id, origem, true);
+                entregar(id, destino, true);
+            }
+        } catch (UncheckedIOException e) {
+            // Não se sabe o que cada uma chegou a preparar: as duas desfazem.
+            entregar(id, destino, false);
+            entregar(id, origem, false);
+            Metricas.TRANSFERENCIA_PARTICOES_RECUSADA.registrar(System.nanoTime() - inicio);
+            throw e;
+        }
+        (resultado == Resultado.CONFIRMADA ? Metricas.TRANSFERENCIA_PARTICOES : Metricas.TRANSFERENCIA_PARTICOES_RECUSADA)
+                .registrar(System.nanoTime() - inicio);
+        return resultado;
+    }
+
+    /**
+     * Tenta de novo entregar as decisões pendentes, parando na primeira partição que ainda não responde.
+     * @return quantidade de decisões ainda pendentes
+     */
+    public int reenviarPendentes() {
+        for (Entrega entrega; (entrega = pendentes.poll()) != null; ) {
+            try {
+                entrega.enviar();
+            } catch (UncheckedIOException | IllegalStateException e) {
+                pendentes.add(entrega);
+                break;
+            }
+        }
+        return pendentes.size();
+    }
+
+    private void entregar(long id, ParticipanteTransferencias participante, boolean confirmar) {
+        Entrega entrega = new Entrega(id, participante, confirmar);
+        try {
+            entrega.enviar();
+        } catch (UncheckedIOException | IllegalStateException e) {
+            // Uma recusa também fica pendente: a perna já aplicada na outra ponta não pode
+            // ser esquecida, e a repetição é inofensiva porque as decisões são idempotentes.
+            pendentes.add(entrega);
+        }
+    }
+
+    private static boolean repetir(BooleanSupplier mensagem) {
+        for (int tentativa = 1; ; tentativa++) {
+            try {
+                return mensagem.getAsBoolean();
+            } catch (UncheckedIOException e) {
+                if (tentativa == TENTATIVAS) {
+                    throw e;
+                }
+                Metricas.REENVIO_PARTICAO.increment();
+                LockSupport.parkNanos(ESPERA_INICIAL << (tentativa - 1));
+            }
+        }
+    }
+
+    private static final class Entrega {
+        final long id;
+        final ParticipanteTransferencias participante;
+        final boolean confirmar;
+
+        Entrega(long id, ParticipanteTransferencias participante, boolean confirmar) {
+            this.id = id;
+            this.participante = participante;
+            this.confirmar = confirmar;
+        }
+
+        void enviar() {
+            repetir(() -> {
+                if (confirmar) {
+                    participante.confirmar(id);
+                } else {
+                    participante.desfazer(id);
+                }
+                return true;
+            });
+        }
+    }
+}
+
+/**
+ * Várias partições de {@link Banco} no mesmo processo, roteadas pelo número da conta (e pelo
+ * CPF, para clientes). Transferências dentro de uma partição seguem o caminho de sempre; entre
+ * partições passam pelo {@link CoordenadorTransferencias}.
+ */
+class BancoParticionado {
+    private final Banco[] particoes;
+    private final CoordenadorTransferencias coordenador = new CoordenadorTransferencias();
+
+    public BancoParticionado(int quantidade) {
+        particoes = new Banco[quantidade];
+        for (int i = 0; i < quantidade; i++) {
+            particoes[i] = new Banco(i, quantidade);
+        }
+    }
+
+    public int getQuantidadeParticoes() { return particoes.length; }
+    public Banco getParticao(int indice) { return particoes[indice]; }
+
+    public Banco particaoDaConta(int numero) {
+        return particoes[Particionamento.particao(numero, particoes.length)];
+    }
+
+    public Banco particaoDoCliente(String cpf) {
+        return particoes[Particionamento.particaoDoCliente(cpf, particoes.length)];
+    }
+
+    public Cliente cadastrarCliente(String nome, String cpf, String senha) {
+        return particaoDoCliente(cpf).cadastrarCliente(nome, cpf, senha);
+    }
+
+    public Cliente autenticarCliente(String cpf, String senha) {
+        return particaoDoCliente(cpf).autenticarCliente(cpf, senha);
+    }
+
+    public ContaCorrente criarContaCorrente(Cliente cliente) {
+        return particaoDoCliente(cliente.getCpf()).criarContaCorrente(cliente);
+    }
+
+    public ContaPoupanca criarContaPoupanca(Cliente cliente) {
+        return particaoDoCliente(cliente.getCpf()).criarContaPoupanca(cliente);
+    }
+
+    public Conta buscarConta(int numero) {
+        return particaoDaConta(numero).buscarConta(numero);
+    }
+
+    public boolean transferir(int origem, int destino, long valor) {
+        Banco bancoOrigem = particaoDaConta(origem);
+        Banco bancoDestino = particaoDaConta(destino);
+        if (bancoOrigem == bancoDestino) {
+            return bancoOrigem.transferir(origem, destino, valor);
+        }
+        return coordenador.transferir(bancoOrigem, origem, bancoDestino, destino, valor)
+                == CoordenadorTransferencias.Resultado.CONFIRMADA;
+    }
+
+    public void fechar() throws IOException {
+        for (Banco banco : particoes) {
+            banco.fechar();
+        }
+    }
+}
+
+interface ProgressoRendimentos {
+    void atualizar(int processadas, int total);
+}
+
+class RelatorioRendimentos {
+    private final int contas;
+    private final long totalCentavos;
+    private final long duracaoNanos;
+
+    public RelatorioRendimentos(int contas, long totalCentavos, long duracaoNanos) {
+        this.contas = contas;
+        this.totalCentavos = totalCentavos;
+        this.duracaoNanos = duracaoNanos;
+    }
+
+    public int getContas() { return contas; }
+    public long getTotalCentavos() { return totalCentavos; }
+    public long getDuracaoNanos() { return duracaoNanos; }
+
+    @Override
+    public String toString() {
+        return contas + " poupanças, " + Dinheiro.formatar(totalCentavos) + " em rendimentos, "
+                + (duracaoNanos / 1_000_000L) + " ms";
+    }
+}
+
+/**
+ * Saldos de todas as contas num mesmo ponto do razão, para relatórios (ver
+ * {@link Banco#retratoSaldos()}). O retrato divide com a projeção do razão os segmentos que não
+ * mudaram desde o corte, então tirá-lo não copia os saldos nem trava conta alguma. As
+ * varreduras rodam em paralelo no ForkJoinPool comum, um segmento de 4096 números por tarefa.
+ * Contas abertas depois do corte com número abaixo de {@link #getLimite()} entram com saldo zero.
+ */
+class RetratoSaldos {
+    /** Acumula o resultado de uma varredura; cada tarefa acumula num parcial próprio. */
+    interface Agregacao<A> {
+        A novo();
+
+        void acumular(A parcial, int numero, long saldo);
+
+        A combinar(A a, A b);
+    }
+
+    private final Razao.Projecao saldos;
+    private final DiretorioContas contas;
+    private final int limite;
+
+    RetratoSaldos(Razao.Projecao saldos, DiretorioContas contas, int limite) {
+        this.saldos = saldos;
+        this.contas = contas;
+        this.limite = limite;
+    }
+
+    /** Último lançamento do razão refletido no retrato. */
+    public long getSequencia() { return saldos.getSequencia(); }
+
+    /** Primeiro número de conta que o retrato não cobre. */
+    public int getLimite() { return limite; }
+
+    public long saldo(int numero) {
+        return saldos.saldo(numero);
+    }
+
+    public <A> A agregar(Agregacao<A> agregacao) {
+        int segmentos = Math.max(1, (limite + Razao.Projecao.SEGMENTO - 1) / Razao.Projecao.SEGMENTO);
+        return ForkJoinPool.commonPool().invoke(new Varredura<>(agregacao, 0, segmentos));
+    }
+
+    public long quantidade() {
+        return agregar(new Agregacao<long[]>() {
+            public long[] novo() { return new long[1]; }
+            public void acumular(long[] parcial, int numero, long saldo) { parcial[0]++; }
+            public long[] combinar(long[] a, long[] b) { a[0] += b[0]; return a; }
+        })[0];
+    }
+
+    /** Soma dos saldos das contas, em centavos. */
+    public long total() {
+        return agregar(new Agregacao<long[]>() {
+            public long[] novo() { return new long[1]; }
+            public void acumular(long[] parcial, int numero, long saldo) { parcial[0] += saldo; }
+            public long[] combinar(long[] a, long[] b) { a[0] += b[0]; return a; }
+        })[0];
+    }
+
+    /**
+     * Quantidade de contas por faixa de saldo. Com limites crescentes l0..ln-1, a posição 0
+     * conta saldos abaixo de l0, a posição k saldos em [lk-1, lk) e a última os a partir de ln-1.
+     */
+    public long[] distribuicao(long... limites) {
+        for (int k = 1; k < limites.length; k++) {
+            if (limites[k] <= limites[k - 1]) {
+                throw new IllegalArgumentException("Limites devem ser crescentes");
+            }
+        }
+        return agregar(new Agregacao<long[]>() {
+            public long[] novo() { return new long[limites.length + 1]; }
+
+            public void acumular(long[] parcial, int numero, long saldo) {
+                int k = Arrays.binarySearch(limites, saldo);
+                parcial[k >= 0 ? k + 1 : -k - 1]++;
+            }
+
+            public long[] combinar(long[] a, long[] b) {
+                for (int k = 0; k < a.length; k++) {
+                    a[k] += b[k];
+                }
+                return a;
+            }
+        });
+    }
+
+    /** Números das {@code n} contas de maior saldo, do maior para o menor. */
+    public int[] maiores(int n) {
+        if (n <= 0) {
+            return new int[0];
+        }
+        // Cada parcial guarda as n maiores em heap mínimo de {saldo, numero}.
+        Comparator<long[]> ordem = Comparator.<long[]>comparingLong(par -> par[0]).thenComparingLong(par -> -par[1]);
+        PriorityQueue<long[]> maiores = agregar(new Agregacao<PriorityQueue<long[]>>() {
+            public PriorityQueue<long[]> novo() { return new PriorityQueue<>(n + 1, ordem); }
+
+            public void acumular(PriorityQueue<long[]> parcial, int numero, long saldo) {
+                if (parcial.size() < n) {
+                    parcial.add(new long[] {saldo, numero});
+                } else if (ordem.compare(parcial.peek(), new long[] {saldo, numero}) < 0) {
+                    parcial.poll();
+                    parcial.add(new long[] {saldo, numero});
+                }
+            }
+
+            public PriorityQueue<long[]> combinar(PriorityQueue<long[]> a, PriorityQueue<long[]> b) {
+                for (long[] par : b) {
+                    acumular(a, (int) par[1], par[0]);
+                }
+                return a;
+            }
+        });
+        int[] numeros = new int[maiores.size()];
+        for (int k = numeros.length - 1; k >= 0; k--) {
+            numeros[k] = (int) maiores.poll()[1];
+        }
+        return numeros;
+    }
+
+    private final class Varredura<A> extends RecursiveTask<A> {
+        private static final long serialVersionUID = 1L;
+        private final Agregacao<A> agregacao;
+        private final int inicio;
+        private final int fim;
+
+        Varredura(Agregacao<A> agregacao, int inicio, int fim) {
+            this.agregacao = agregacao;
+            this.inicio = inicio;
+            this.fim = fim;
+        }
+
+        @Override
+        protected A compute() {
+            if (fim - inicio > 1) {
+                int meio = (inicio + fim) >>> 1;
+                Varredura<A> esquerda = new Varredura<>(agregacao, inicio, meio);
+                esquerda.fork();
+                A direita = new Varredura<>(agregacao, meio, fim).compute();
+                return agregacao.combinar(esquerda.join(), direita);
+            }
+            A parcial = agregacao.novo();
+            AtomicLongArray segmento = saldos.segmento(inicio);
+            int base = inicio * Razao.Projecao.SEGMENTO;
+            int de = Math.max(base, DiretorioContas.PRIMEIRO_NUMERO);
+            int ate = Math.min(base + Razao.Projecao.SEGMENTO, limite);
+            for (int numero = de; numero < ate; numero++) {
+                if (contas.buscar(numero) != null) {
+                    agregacao.acumular(parcial, numero, segmento == null ? 0L : segmento.get(numero - base));
+                }
+            }
+            return parcial;
+        }
+    }
+}
+
+/**
+ * Write-ahead log das operações do banco, gravado por um FileChannel em modo append.
+ * As threads anexam registros num buffer compartilhado e esperam o fsync; uma única
+ * thread gravadora descarrega o lote acumulado com um só force() (group commit).
+ * Cada registro tem um número de sequência (LSN) crescente e um CRC32, para que uma
+ * cauda parcialmente gravada seja descartada na recuperação.
+ */
+class RegistroOperacoes implements Closeable {
+    static final byte DEPOSITO = 1;
+    static final byte SAQUE = 2;
+    static final byte TRANSFERENCIA = 3;
+    static final byte RENDIMENTO = 4;
+    static final byte CLIENTE = 5;
+    static final byte CONTA_CORRENTE = 6;
+    static final byte CONTA_POUPANCA = 7;
+    static final byte LOTE = 8;
+    static final byte TRANSFERENCIA_EXTERNA = 9; // perna local confirmada de uma transferência entre partições; valor com sinal
+    static final byte PREPARACAO = 10;           // perna preparada e ainda sem decisão
+    static final byte DESFEITA = 11;             // decisão de desfazer uma transferência entre partições
+
+    // Registro: tamanho do corpo (4) + crc do corpo (4) + corpo [lsn (8) + operação (1) + dados].
+    // Movimentações e lotes levam o instante (epoch em ns) usado no extrato da conta.
+    private static final int CABECALHO = 8;
+    private static final int TAMANHO_BUFFER = 1 << 20;
+    // Maior corpo de registro; um tamanho acima disso só pode ser cabeçalho corrompido.
+    private static final int MAXIMO_CORPO = 64 << 20;
+
+    /** Recebe os registros lidos de um segmento durante a recuperação. */
+    interface Leitor {
+        void operacao(long lsn, byte operacao, int conta, int contraparte, long valor, long instante);
+        void cliente(long lsn, String nome, String cpf, String hashSenha);
+        void conta(long lsn, byte operacao, int numero, String cpf);
+        void lote(long lsn, long instante, int[] origens, int[] destinos, long[] valores);
+        void transferenciaExterna(long lsn, long id, int conta, int contraparte, long valor, long instante);
+        void preparacao(long lsn, long id, int conta, int contraparte, long delta);
+        void desfeita(long lsn, long id);
+    }
+
+    private final Path diretorio;
+    private final CRC32 crc = new CRC32();
+    private final Thread gravador;
+    private FileChannel canal;
+    private ByteBuffer pendente = ByteBuffer.allocate(TAMANHO_BUFFER);
+    private ByteBuffer reserva = ByteBuffer.allocate(TAMANHO_BUFFER);
+    private int inicioRegistro;
+    private long ultimoLsn;
+    private long lsnDuravel;
+    private boolean gravando;
+    private boolean fechado;
+    private IOException falha;
+
+    RegistroOperacoes(Path diretorio, long ultimoLsn) throws IOException {
+        this.diretorio = diretorio;
+        this.ultimoLsn = ultimoLsn;
+        this.lsnDuravel = ultimoLsn;
+        this.canal = abrirSegmento(ultimoLsn + 1);
+        this.gravador = new Thread(this::gravar, "registro-operacoes");
+        this.gravador.setDaemon(true);
+        this.gravador.start();
+    }
+
+    public synchronized long anexar(byte operacao, int conta, int contraparte, long valor, long instante) {
+        reservar(operacao, 24).putInt(conta).putInt(contraparte).putLong(valor).putLong(instante);
+        return concluir();
+    }
+
+    public synchronized long anexarTransferenciaExterna(long id, int conta, int contraparte, long valor, long instante) {
+        reservar(TRANSFERENCIA_EXTERNA, 32).putLong(id).putInt(conta).putInt(contraparte).putLong(valor).putLong(instante);
+        return concluir();
+    }
+
+    public synchronized long anexarPreparacao(long id, int conta, int contraparte, long delta) {
+        reservar(PREPARACAO, 24).putLong(id).putInt(conta).putInt(contraparte).putLong(delta);
+        return concluir();
+    }
+
+    public synchronized long anexarDesfeita(long id) {
+        reservar(DESFEITA, 8).putLong(id);
+        return concluir();
+    }
+
+    public synchronized long anexarCliente(String nome, String cpf, String hashSenha) {
+        byte[] n = nome.getBytes(StandardCharsets.UTF_8);
+        byte[] c = cpf.getBytes(StandardCharsets.UTF_8);
+        byte[] s = hashSenha.getBytes(StandardCharsets.UTF_8);
+        reservar(CLIENTE, 12 + n.length + c.length + s.length)
+                .putInt(n.length).put(n).putInt(c.length).put(c).putInt(s.length).put(s);
+        return concluir();
+    }
+
+    public synchronized long anexarConta(byte operacao, int numero, String cpf) {
+        byte[] c = cpf.getBytes(StandardCharsets.UTF_8);
+        reservar(operacao, 8 + c.length).putInt(numero).putInt(c.length).put(c);
+        return concluir();
+    }
+
+    /** Se um lote com essa quantidade de transferências cabe num único registro. */
+    static boolean cabeLote(int quantidade) {
+        return quantidade <= (MAXIMO_CORPO - 21) / 16;
+    }
+
+    /**
+     * Um lote inteiro vira um único registro, para que seja reaplicado por completo ou não seja.
+     * Guarda cada transferência, não só o ajuste líquido, para a recuperação refazer o extrato.
+     */
+    public synchronized long anexarLote(LoteTransferencias lote, long instante) {
+        int quantidade = lote.tamanho();
+        ByteBuffer b = reservar(LOTE, 12 + quantidade * 16).putLong(instante).putInt(quantidade);
+        for (int i = 0; i < quantidade; i++) {
+            b.putInt(lote.origem(i)).putInt(lote.destino(i)).putLong(lote.valor(i));
+        }
+        return concluir();
+    }
+
+    /** Bloqueia até que o registro com o LSN informado esteja em disco. */
+    public synchronized void aguardar(long lsn) {
+        try {
+            while (lsnDuravel < lsn && falha == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrompido aguardando o registro de operações", e);
+        }
+        if (lsnDuravel < lsn) {
+            throw new UncheckedIOException("Falha ao gravar o registro de operações", falha);
+        }
+    }
+
+    /**
+     * Descarrega o que estiver pendente e passa a gravar num novo segmento.
+     * @return o último LSN do segmento encerrado
+     */
+    synchronized long rotacionar() throws IOException {
+        try {
+            while ((pendente.position() > 0 || gravando) && falha == null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrompido rotacionando o registro de operações");
+        }
+        if (falha != null) {
+            throw falha;
+        }
+        canal.close();
+        canal = abrirSegmento(ultimoLsn + 1);
+        return ultimoLsn;
+    }
+
+    /** Remove os segmentos cujos registros estão todos cobertos por um snapshot até o LSN informado. */
+    synchronized void descartarAte(long lsn) throws IOException {
+        List<Path> segmentos = listarSegmentos(diretorio);
+        for (int i = 0; i + 1 < segmentos.size(); i++) {
+            if (primeiroLsn(segmentos.get(i + 1)) <= lsn + 1) {
+                Files.delete(segmentos.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            fechado = true;
+            notifyAll();
+        }
+        try {
+            gravador.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            canal.close();
+            if (falha != null) {
+                throw falha;
+            }
+        }
+    }
+
+    private ByteBuffer reservar(byte operacao, int dados) {
+        int corpo = 9 + dados;
+        if (corpo > MAXIMO_CORPO) {
+            throw new IllegalArgumentException("Registro grande demais para o log: " + corpo + " bytes");
+        }
+        try {
+            while (!fechado && falha == null && pendente.remaining() < CABECALHO + corpo) {
+                if (pendente.position() == 0 && !gravando) {
+                    // Registro maior que o buffer (lote grande): os dois buffers crescem.
+                    pendente = ByteBuffer.allocate(Math.max(CABECALHO + corpo, pendente.capacity() * 2));
+                    reserva = ByteBuffer.allocate(pendente.capacity());
+                    break;
+                }
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrompido aguardando espaço no registro de operações", e);
+        }
+        if (fechado) {
+            throw new IllegalStateException("Registro de operações fechado");
+        }
+        if (falha != null) {
+            throw new UncheckedIOException("Falha ao gravar o registro de operações", falha);
+        }
+        if (pendente.position() == 0) {
+            notifyAll(); // a thread gravadora só dorme com o buffer vazio
+        }
+        inicioRegistro = pendente.position();
+        return pendente.putInt(corpo).putInt(0).putLong(++ultimoLsn).put(operacao);
+    }
+
+    private long concluir() {
+        int corpo = pendente.position() - inicioRegistro - CABECALHO;
+        crc.reset();
+        crc.update(pendente.array(), inicioRegistro + CABECALHO, corpo);
+        pendente.putInt(inicioRegistro + 4, (int) crc.getValue());
+        return ultimoLsn;
+    }
+
+    private void gravar() {
+        while (true) {
+            ByteBuffer lote;
+            FileChannel destino;
+            long ate;
+            synchronized (this) {
+                while (pendente.position() == 0 && !fechado) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pendente.position() == 0) {
+                    return;
+                }
+                lote = pendente;
+                pendente = reserva;
+                reserva = lote;
+                destino = canal;
+                ate = ultimoLsn;
+                gravando = true;
+                notifyAll(); // libera quem esperava espaço no buffer
+            }
+            try {
+                lote.flip();
+                while (lote.hasRemaining()) {
+                    destino.write(lote);
+                }
+                destino.force(false);
+                lote.clear();
+            } catch (IOException e) {
+                synchronized (this) {
+                    falha = e;
+                    gravando = false;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                lsnDuravel = ate;
+                gravando = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private FileChannel abrirSegmento(long primeiroLsn) throws IOException {
+        Path arquivo = diretorio.resolve(String.format("wal-%020d.log", primeiroLsn));
+        return FileChannel.open(arquivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Lê um segmento entregando cada registro íntegro ao leitor. No último segmento, uma cauda
+     * incompleta ou com CRC inválido (escrita interrompida por queda) é truncada; nos demais,
+     * que foram rotacionados já gravados por inteiro, ela é corrupção e a leitura falha.
+     * @return o LSN do último registro válido, ou 0 se o segmento estiver vazio
+     * @throws IOException se um segmento que não é o último estiver corrompido
+     */
+    static long ler(Path segmento, Leitor leitor, boolean ultimoSegmento) throws IOException {
+        long ultimo = 0L;
+        long valido = 0L;
+        long tamanhoArquivo = Files.size(segmento);
+        CRC32 verificador = new CRC32();
+        byte[] corpo = new byte[64];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segmento), 1 << 16))) {
+            while (true) {
+                int tamanho;
+                int esperado;
+                try {
+                    tamanho = in.readInt();
+                    esperado = in.readInt();
+                    if (tamanho < 9 || tamanho > MAXIMO_CORPO || tamanho > tamanhoArquivo - valido - CABECALHO) {
+                        break;
+                    }
+                    if (corpo.length < tamanho) {
+                        corpo = new byte[Math.max(tamanho, corpo.length * 2)];
+                    }
+                    in.readFully(corpo, 0, tamanho);
+                } catch (EOFException e) {
+                    break;
+                }
+                verificador.reset();
+                verificador.update(corpo, 0, tamanho);
+                if ((int) verificador.getValue() != esperado) {
+                    break;
+                }
+                ultimo = despachar(ByteBuffer.wrap(corpo, 0, tamanho), leitor);
+                valido += CABECALHO + tamanho;
+            }
+        }
+        if (valido < tamanhoArquivo) {
+            if (!ultimoSegmento) {
+                throw new IOException("Segmento corrompido: " + segmento + " na posição " + valido);
+            }
+            try (FileChannel c = FileChannel.open(segmento, StandardOpenOption.WRITE)) {
+                c.truncate(valido);
+            }
+        }
+        return ultimo;
+    }
+
+    private static long despachar(ByteBuffer b, Leitor leitor) {
+        long lsn = b.getLong();
+        byte operacao = b.get();
+        switch (operacao) {
+            case CLIENTE:
+                leitor.cliente(lsn, lerTexto(b), lerTexto(b), lerTexto(b));
+                break;
+            case CONTA_CORRENTE:
+            case CONTA_POUPANCA:
+                leitor.conta(lsn, operacao, b.getInt(), lerTexto(b));
+                break;
+            case LOTE:
+                long instante = b.getLong();
+                int quantidade = b.getInt();
+                int[] origens = new int[quantidade];
+                int[] destinos = new int[quantidade];
+                long[] valores = new long[quantidade];
+                for (int i = 0; i < quantidade; i++) {
+                    origens[i] = b.getInt();
+                    destinos[i] = b.getInt();
+                    valores[i] = b.getLong();
+                }
+                leitor.lote(lsn, instante, origens, destinos, valores);
+                break;
+            case TRANSFERENCIA_EXTERNA:
+                leitor.transferenciaExterna(lsn, b.getLong(), b.getInt(), b.getInt(), b.getLong(), b.getLong());
+                break;
+            case PREPARACAO:
+                leitor.preparacao(lsn, b.getLong(), b.getInt(), b.getInt(), b.getLong());
+                break;
+            case DESFEITA:
+                leitor.desfeita(lsn, b.getLong());
+                break;
+            default:
+                leitor.operacao(lsn, operacao, b.getInt(), b.getInt(), b.getLong(), b.getLong());
+        }
+        return lsn;
+    }
+
+    private static String lerTexto(ByteBuffer b) {
+        int tamanho = b.getInt();
+        String s = new String(b.array(), b.arrayOffset() + b.position(), tamanho, StandardCharsets.UTF_8);
+        b.position(b.position() + tamanho);
+        return s;
+    }
+
+    static List<Path> listarSegmentos(Path diretorio) throws IOException {
+        List<Path> segmentos = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(diretorio, "wal-*.log")) {
+            for (Path p : ds) {
+                segmentos.add(p);
+            }
+        }
+        Collections.sort(segmentos);
+        return segmentos;
+    }
+
+    static long primeiroLsn(Path segmento) {
+        String nome = segmento.getFileName().toString();
+        return Long.parseLong(nome.substring(4, nome.length() - 4));
+    }
+}
+
+enum TipoLancamento {
+    DEPOSITO, SAQUE, TRANSFERENCIA, RENDIMENTO, ABERTURA;
+
+    static final TipoLancamento[] POR_CODIGO = values();
+}
+
+/**
+ * Razão de partidas dobradas, alimentado por todas as movimentações das contas do {@link Banco}.
+ * <p>
+ * Cada lançamento debita uma conta e credita outra pelo mesmo valor: depósito (caixa -> conta),
+ * saque (conta -> caixa), transferência (origem -> destino, um único lançamento que liga os dois
+ * lados) e rendimento (despesa de rendimentos -> poupança). As contas internas usam números
+ * abaixo de {@link DiretorioContas#PRIMEIRO_NUMERO}, e a soma de todos os saldos do razão é zero.
+ * <p>
+ * Os lançamentos entram, numerados em sequência, num buffer circular de arrays primitivos: quem
+ * movimenta a conta reserva uma sequência, preenche a posição e a publica, ainda sob o monitor
+ * da conta, de modo que a ordem do razão é a ordem aplicada em cada conta. Uma única thread
+ * consome o buffer em ordem, é a única que escreve nos saldos projetados ({@link Projecao}) e
+ * arquiva os lançamentos para reprocessamento. O produtor só espera se o buffer estiver cheio.
+ * A thread só é criada no primeiro lançamento. O arquivo guarda os lançamentos desde o último
+ * ponto de controle: a cada {@code -Dbanco.razao.retencao} lançamentos (16M por padrão) o
+ * consumidor congela a projeção como ponto de controle e esvazia o arquivo.
+ * A conta continua validando o saldo pelo próprio campo; a projeção é a visão derivada do
+ * razão, usada para auditoria e conciliação ({@link Banco#conciliar()}).
+ */
+class Razao implements Closeable {
+    static final int CAIXA = 0;       // dinheiro que entra e sai do banco
+    static final int RENDIMENTOS = 1; // despesa com o rendimento das poupanças
+    static final int ABERTURA = 2;    // contrapartida dos saldos existentes quando o razão começa
+    static final int TRANSITO = 3;    // transferências entre partições: soma zero considerando todas elas
+
+    private static final int CAPACIDADE = 1 << 16;
+    private static final int MASCARA = CAPACIDADE - 1;
+    private static final int LANCAMENTOS_POR_BLOCO = 1 << 16;
+    // Lançamentos aplicados de uma vez, sem olhar pedidos de retrato.
+    private static final int APLICADOS_POR_VEZ = 4096;
+    // Arquivado: instante (8) + valor (8) + débito (4) + crédito (4) + tipo (1), alinhado em 32.
+    private static final int TAMANHO_ARQUIVADO = 32;
+    private static final long RETENCAO = Long.getLong("banco.razao.retencao", 1L << 24);
+    private static final VarHandle PUBLICADAS = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final AtomicLong proxima = new AtomicLong();
+    private final long[] publicadas = new long[CAPACIDADE]; // sequência publicada em cada posição
+    private final int[] debitos = new int[CAPACIDADE];
+    private final int[] creditos = new int[CAPACIDADE];
+    private final long[] valores = new long[CAPACIDADE];
+    private final long[] instantes = new long[CAPACIDADE];
+    private final byte[] tipos = new byte[CAPACIDADE];
+    private volatile long aplicada = -1L;
+    private volatile boolean dormindo;
+    private volatile boolean fechado;
+    private volatile boolean iniciado;
+    private volatile Throwable falha; // o que parou o consumidor
+
+    private final Projecao projecao = new Projecao();
+    private final Thread consumidor;
+    // Atendidos pelo consumidor entre dois lançamentos; o monitor ordena os pedidos com o fechamento.
+    private final Queue<PedidoRetrato> pedidos = new ConcurrentLinkedQueue<>();
+    // Do consumidor; o reprocessamento o lê sob o mesmo monitor.
+    private final ByteBuffer bloco = ByteBuffer.allocate(LANCAMENTOS_POR_BLOCO * TAMANHO_ARQUIVADO);
+    private Path arquivo;
+    private FileChannel canalArquivo;
+    private long arquivados;
+    private Projecao controle; // saldos até o primeiro lançamento arquivado; null se nada foi descartado
+
+    Razao() {
+        Arrays.fill(publicadas, -1L);
+        consumidor = new Thread(this::executar, "razao");
+        consumidor.setDaemon(true);
+    }
+
+    /**
+     * Publica um lançamento. Chamado sob o monitor das contas envolvidas.
+     * @return sequência do lançamento
+     */
+    long lancar(int debito, int credito, long valor, TipoLancamento tipo) {
+        if (!iniciado) {
+            iniciar();
+        }
+        long sequencia = proxima.getAndIncrement();
+        for (int tentativas = 0; sequencia - CAPACIDADE > aplicada; tentativas++) {
+            esperar(tentativas); // buffer cheio: o consumidor ainda não liberou esta posição
+        }
+        int i = (int) sequencia & MASCARA;
+        debitos[i] = debito;
+        creditos[i] = credito;
+        valores[i] = valor;
+        instantes[i] = DiarioTransacoes.agoraNanos();
+        tipos[i] = (byte) tipo.ordinal();
+        PUBLICADAS.setVolatile(publicadas, i, sequencia);
+        if (dormindo) {
+            LockSupport.unpark(consumidor);
+        }
+        return sequencia;
+    }
+
+    /** Sequência do último lançamento reservado até agora (-1 se nenhum). */
+    long ultimaSequencia() {
+        return proxima.get() - 1;
+    }
+
+    /** Espera a projeção aplicar todos os lançamentos até a sequência informada. */
+    void aguardar(long sequencia) {
+        for (int tentativas = 0; aplicada < sequencia; tentativas++) {
+            esperar(tentativas);
+        }
+    }
+
+    private synchronized void iniciar() {
+        if (!iniciado && !fechado) {
+            consumidor.start();
+            iniciado = true;
+        }
+    }
+
+    /** Saldos mantidos pelo consumidor; podem estar alguns lançamentos atrás das contas. */
+    Projecao getProjecao() {
+        return projecao;
+    }
+
+    /**
+     * Cópia imutável da projeção num corte entre dois lançamentos, depois de aplicado tudo o que
+     * já havia sido lançado. O consumidor só copia o índice de segmentos; cada segmento é copiado
+     * quando recebe o primeiro lançamento depois do corte, e só se algum retrato ainda o divide.
+     */
+    Projecao retratar() {
+        iniciar();
+        PedidoRetrato pedido = new PedidoRetrato(ultimaSequencia());
+        synchronized (pedidos) {
+            if (fechado) {
+                throw new IllegalStateException("Razão encerrado", falha);
+            }
+            pedidos.add(pedido);
+        }
+        LockSupport.unpark(consumidor);
+        return pedido.resultado.join();
+    }
+
+    /**
+     * Reconstrói os saldos a partir do último ponto de controle (do zero, se não houve) e dos
+     * lançamentos arquivados depois dele, na ordem do razão. Serve para conferir a projeção e
+     * para reconciliação.
+     */
+    Projecao reprocessar() {
+        synchronized (bloco) {
+            Projecao reconstruida = controle == null ? new Projecao() : controle.copiar();
+            if (canalArquivo != null) {
+                try {
+                    ByteBuffer leitura = ByteBuffer.allocate(LANCAMENTOS_POR_BLOCO * TAMANHO_ARQUIVADO);
+                    long posicao = 0L;
+                    long fim = arquivados * TAMANHO_ARQUIVADO;
+                    while (posicao < fim) {
+                        leitura.limit((int) Math.min(leitura.capacity(), fim - posicao));
+                        int lidos = canalArquivo.read(leitura, posicao);
+                        if (lidos < 0) {
+                            throw new EOFException("Razão arquivado truncado em " + arquivo);
+                        }
+                        posicao += lidos;
+                        leitura.flip();
+                        reaplicar(leitura, reconstruida);
+                        leitura.compact();
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Falha ao ler o razão arquivado em " + arquivo, e);
+                }
+            }
+            ByteBuffer emMemoria = bloco.duplicate();
+            emMemoria.flip();
+            reaplicar(emMemoria, reconstruida);
+            return reconstruida;
+        }
+    }
+
+    private static void reaplicar(ByteBuffer lancamentos, Projecao destino) {
+        while (lancamentos.remaining() >= TAMANHO_ARQUIVADO) {
+            int inicio = lancamentos.position();
+            long valor = lancamentos.getLong(inicio + 8);
+            destino.mover(lancamentos.getInt(inicio + 16), lancamentos.getInt(inicio + 20), valor);
+            lancamentos.position(inicio + TAMANHO_ARQUIVADO);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            synchronized (pedidos) {
+                fechado = true;
+            }
+        }
+        LockSupport.unpark(consumidor);
+        try {
+            consumidor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        synchronized (bloco) {
+            if (canalArquivo != null) {
+                try {
+                    canalArquivo.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Falha ao fechar o razão arquivado em " + arquivo, e);
+                }
+            }
+        }
+    }
+
+    // Se o consumidor parar por erro, quem espera por ele (produtor com o buffer cheio,
+    // aguardar, retratar) recebe a falha em vez de esperar para sempre.
+    private void executar() {
+        try {
+            consumir();
+        } catch (RuntimeException | Error e) {
+            falha = e;
+            throw e;
+        } finally {
+            synchronized (pedidos) {
+                fechado = true;
+                for (PedidoRetrato pedido; (pedido = pedidos.poll()) != null; ) {
+                    pedido.resultado.completeExceptionally(new IllegalStateException("Razão encerrado", falha));
+                }
+            }
+        }
+    }
+
+    private void consumir() {
+        long sequencia = 0;
+        while (true) {
+            int i = (int) sequencia & MASCARA;
+            if ((long) PUBLICADAS.getVolatile(publicadas, i) != sequencia) {
+                if (!pedidos.isEmpty()) {
+                    atenderPedidos(sequencia - 1);
+                }
+                if (fechado && sequencia > ultimaSequencia()) {
+                    atenderPedidos(sequencia - 1);
+                    return;
+                }
+                dormindo = true;
+                if ((long) PUBLICADAS.getVolatile(publicadas, i) != sequencia && !fechado) {
+                    LockSupport.park(this);
+                }
+                dormindo = false;
+                continue;
+            }
+            // Aplica de uma vez o que já foi publicado em sequência, até APLICADOS_POR_VEZ.
+            long limite = sequencia + APLICADOS_POR_VEZ;
+            synchronized (bloco) {
+                do {
+                    projecao.mover(debitos[i], creditos[i], valores[i]);
+                    arquivar(i);
+                    sequencia++;
+                    i = (int) sequencia & MASCARA;
+                } while (sequencia < limite && (long) PUBLICADAS.getVolatile(publicadas, i) == sequencia);
+            }
+            aplicada = sequencia - 1;
+            if (!pedidos.isEmpty()) {
+                atenderPedidos(sequencia - 1);
+            }
+            if (arquivados >= RETENCAO) {
+                marcarControle(sequencia - 1);
+            }
+        }
+    }
+
+    // Só o consumidor, entre dois lançamentos: a projeção vira o ponto de controle e o arquivo,
+    // que só tinha lançamentos anteriores a ela, é esvaziado.
+    private void marcarControle(long aplicadaAte) {
+        synchronized (bloco) {
+            controle = projecao.congelar(aplicadaAte);
+            try {
+                canalArquivo.truncate(0L);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Falha ao esvaziar o razão arquivado em " + arquivo, e);
+            }
+            arquivados = 0L;
+            bloco.clear();
+        }
+    }
+
+    // Só o consumidor: atende com um mesmo retrato os pedidos feitos até a sequência já aplicada.
+    private void atenderPedidos(long aplicadaAte) {
+        Projecao retrato = null;
+        for (Iterator<PedidoRetrato> it = pedidos.iterator(); it.hasNext(); ) {
+            PedidoRetrato pedido = it.next();
+            if (pedido.minimo <= aplicadaAte) {
+                if (retrato == null) {
+                    retrato = projecao.congelar(aplicadaAte);
+                }
+                it.remove();
+                pedido.resultado.complete(retrato);
+            }
+        }
+    }
+
+    private static final class PedidoRetrato {
+        final long minimo; // último lançamento que o retrato tem de refletir
+        final CompletableFuture<Projecao> resultado = new CompletableFuture<>();
+
+        PedidoRetrato(long minimo) {
+            this.minimo = minimo;
+        }
+    }
+
+    private void arquivar(int i) {
+        if (!bloco.hasRemaining()) {
+            despejar();
+        }
+        int inicio = bloco.position();
+        bloco.putLong(instantes[i]).putLong(valores[i]).putInt(debitos[i]).putInt(creditos[i]).put(tipos[i]);
+        bloco.position(inicio + TAMANHO_ARQUIVADO);
+    }
+
+    // Bloco cheio vai para um arquivo temporário, apagado quando o razão fecha.
+    private void despejar() {
+        bloco.flip();
+        try {
+            if (canalArquivo == null) {
+                arquivo = Files.createTempFile("razao-", ".bin");
+                canalArquivo = FileChannel.open(arquivo, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                        StandardOpenOption.DELETE_ON_CLOSE);
+            }
+            long posicao = arquivados * TAMANHO_ARQUIVADO;
+            while (bloco.hasRemaining()) {
+                posicao += canalArquivo.write(bloco, posicao);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Falha ao arquivar o razão em " + arquivo, e);
+        }
+        arquivados += LANCAMENTOS_POR_BLOCO;
+        bloco.clear();
+    }
+
+    private void esperar(int tentativas) {
+        if (falha != null) {
+            throw new IllegalStateException("O consumidor do razão parou", falha);
+        }
+        if (tentativas < 100) {
+            Thread.onSpinWait();
+        } else if (tentativas < 200) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(50_000L);
+        }
+    }
+
+    /**
+     * Saldos por número de conta, em segmentos de 4096 posições criados sob demanda.
+     * Só um thread escreve (o consumidor do razão ou quem reprocessa); leituras são livres.
+     * Um retrato ({@link #congelar}) divide os segmentos com a projeção, que passa a escrever
+     * numa cópia de cada segmento dividido quando ele recebe o próximo lançamento.
+     */
+    static final class Projecao {
+        static final int SEGMENTO = 4096;
+
+        private volatile AtomicLongArray[] segmentos = new AtomicLongArray[16];
+        // Segmentos também vistos por algum retrato; só o escritor usa.
+        private boolean[] compartilhados = new boolean[16];
+        private long sequencia = -1L; // num retrato, o último lançamento refletido
+
+        /** Num retrato, o último lançamento refletido. */
+        long getSequencia() {
+            return sequencia;
+        }
+
+        /** Segmento com os saldos dos números [s * SEGMENTO, (s + 1) * SEGMENTO); null se nenhum foi movimentado. */
+        AtomicLongArray segmento(int s) {
+            AtomicLongArray[] atuais = segmentos;
+            return s < atuais.length ? atuais[s] : null;
+        }
+
+        // Cópia que pode receber lançamentos sem alterar esta; cada segmento é copiado na primeira escrita.
+        Projecao copiar() {
+            Projecao copia = new Projecao();
+            copia.segmentos = segmentos.clone();
+            copia.compartilhados = new boolean[copia.segmentos.length];
+            Arrays.fill(copia.compartilhados, true);
+            return copia;
+        }
+
+        // Só o escritor.
+        Projecao congelar(long sequencia) {
+            Projecao retrato = new Projecao();
+            retrato.segmentos = segmentos.clone();
+            retrato.sequencia = sequencia;
+            Arrays.fill(compartilhados, true);
+            return retrato;
+        }
+
+        long saldo(int numero) {
+            AtomicLongArray[] atuais = segmentos;
+            int s = numero / SEGMENTO;
+            if (s >= atuais.length || atuais[s] == null) {
+                return 0L;
+            }
+            return atuais[s].get(numero % SEGMENTO);
+        }
+
+        void mover(int debito, int credito, long valor) {
+            somar(debito, -valor);
+            somar(credito, valor);
+        }
+
+        private void somar(int numero, long delta) {
+            int s = numero / SEGMENTO;
+            AtomicLongArray[] atuais = segmentos;
+            if (s >= atuais.length || atuais[s] == null) {
+                atuais = Arrays.copyOf(atuais, Math.max(atuais.length, Integer.highestOneBit(s) << 1));
+                atuais[s] = new AtomicLongArray(SEGMENTO);
+                if (compartilhados.length < atuais.length) {
+                    compartilhados = Arrays.copyOf(compartilhados, atuais.length);
+                }
+                compartilhados[s] = false;
+                segmentos = atuais;
+            } else if (compartilhados[s]) {
+                AtomicLongArray copia = new AtomicLongArray(SEGMENTO);
+                for (int k = 0; k < SEGMENTO; k++) {
+                    copia.lazySet(k, atuais[s].get(k));
+                }
+                atuais[s] = copia;
+                compartilhados[s] = false;
+                segmentos = atuais;
+            }
+            AtomicLongArray segmento = atuais[s];
+            segmento.lazySet(numero % SEGMENTO, segmento.get(numero % SEGMENTO) + delta);
+        }
+    }
+}
+
+/**
+ * Importação e exportação em massa de clientes e contas, em CSV ou num formato binário compacto.
+ * <p>
+ * CSV: UTF-8, um registro por linha, campos separados por vírgula. Textos com vírgula ou aspas
+ * vão entre aspas, com as aspas internas dobradas. Os saldos são em centavos.
+ * <pre>
+ * cliente,nome,cpf,senha
+ * corrente,número,cpf,saldo
+ * poupanca,número,cpf,saldo
+ * </pre>
+ * A senha é o hash exportado ("pbkdf2$..."); uma senha em texto também é aceita e convertida,
+ * ao custo de um PBKDF2 por cliente.
+ * <p>
+ * Binário: [int mágico][int versão] seguido de blocos [int tamanho][registros]. Cada registro é
+ * [byte tipo] e, para cliente, três textos [short bytes][UTF-8] (nome, CPF, senha) ou, para
+ * conta, [int número][texto CPF][long saldo]. Os tipos são os do {@link RegistroOperacoes}.
+ * <p>
+ * A leitura mapeia o arquivo em pedaços de 64 MB, alinhados a linhas ou a blocos, processados em
+ * paralelo no ForkJoinPool comum. Números e tipos são lidos direto dos bytes; só viram String os
+ * textos guardados nos objetos e o CPF usado para achar o titular. São duas passadas, clientes e
+ * depois contas, então a ordem dos registros no arquivo não importa. A escrita é sequencial, por
+ * um único buffer reaproveitado, sem formatar Strings.
+ */
+final class ArquivoCarga {
+    enum Formato { CSV, BINARIO }
+
+    /** Recebe os registros lidos; chamado por várias threads ao mesmo tempo. */
+    interface Destino {
+        void cliente(String nome, String cpf, String senha);
+
+        /** @param tipo {@link RegistroOperacoes#CONTA_CORRENTE} ou {@link RegistroOperacoes#CONTA_POUPANCA} */
+        void conta(byte tipo, int numero, String cpf, long saldo);
+    }
+
+    private static final int MAGICO = 0x42434152; // "BCAR"
+    private static final int VERSAO = 1;
+    private static final long PEDACO = Long.getLong("banco.carga.pedaco", 64L << 20);
+    private static final int TAMANHO_BLOCO = 1 << 20;
+    private static final int MAIOR_REGISTRO = 1 << 18; // três textos de até 64 KB e o resto
+    private static final byte[] CSV_CLIENTE = "cliente".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CSV_CORRENTE = "corrente".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CSV_POUPANCA = "poupanca".getBytes(StandardCharsets.US_ASCII);
+
+    private ArquivoCarga() {}
+
+    /**
+     * Lê o arquivo (o formato é reconhecido pelo cabeçalho) e entrega os clientes e depois as contas.
+     * @throws IOException se o arquivo não puder ser lido ou tiver um registro inválido
+     */
+    static void ler(Path arquivo, Destino destino) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.READ)) {
+            long tamanho = canal.size();
+            boolean binario = ehBinario(canal, tamanho);
+            long[] limites = binario ? limitesBlocos(canal, tamanho) : limitesCsv(tamanho);
+            for (byte passada : new byte[] {RegistroOperacoes.CLIENTE, RegistroOperacoes.CONTA_CORRENTE}) {
+                ForkJoinPool.commonPool().invoke(
+                        new TarefaLeitura(arquivo, canal, tamanho, binario, limites, 0, limites.length - 1, passada, destino));
+            }
+        } catch (RuntimeException e) {
+            // O ForkJoinPool pode relançar uma cópia da exceção da outra thread, com a original como causa.
+            Throwable original = e.getCause() != null && e.getCause().getClass() == e.getClass() ? e.getCause() : e;
+            if (original instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) original).getCause();
+            }
+            throw (RuntimeException) original;
+        }
+    }
+
+    private static boolean ehBinario(FileChannel canal, long tamanho) throws IOException {
+        if (tamanho < 8) {
+            return false;
+        }
+        ByteBuffer cabecalho = ByteBuffer.allocate(8);
+        while (cabecalho.hasRemaining() && canal.read(cabecalho, cabecalho.position()) > 0) {
+            // lê os 8 bytes
+        }
+        if (cabecalho.getInt(0) != MAGICO) {
+            return false;
+        }
+        if (cabecalho.getInt(4) != VERSAO) {
+            throw new IOException("Versão de arquivo de carga não suportada: " + cabecalho.getInt(4));
+        }
+        return true;
+    }
+
+    // Divisões nominais; cada pedaço trata as linhas que começam dentro dele.
+    private static long[] limitesCsv(long tamanho) {
+        int pedacos = (int) Math.max(1, (tamanho + PEDACO - 1) / PEDACO);
+        long[] limites = new long[pedacos + 1];
+        for (int i = 1; i < pedacos; i++) {
+            limites[i] = i * PEDACO;
+        }
+        limites[pedacos] = tamanho;
+        return limites;
+    }
+
+    // Percorre só os cabeçalhos dos blocos e agrupa blocos inteiros em pedaços de ~64 MB.
+    private static long[] limitesBlocos(FileChannel canal, long tamanho) throws IOException {
+        long[] limites = new long[16];
+        int quantidade = 0;
+        limites[quantidade++] = 8;
+        ByteBuffer cabecalho = ByteBuffer.allocate(4);
+        long posicao = 8;
+        while (posicao < tamanho) {
+            cabecalho.clear();
+            while (cabecalho.hasRemaining()) {
+                if (canal.read(cabecalho, posicao + cabecalho.position()) < 0) {
+                    throw new IOException("Bloco truncado na posição " + posicao);
+                }
+            }
+            int bloco = cabecalho.getInt(0);
+            if (bloco < 0 || posicao + 4 + bloco > tamanho) {
+                throw new IOException("Bloco inválido na posição " + posicao);
+            }
+            posicao += 4 + bloco;
+            if (posicao - limites[quantidade - 1] >= PEDACO || posicao == tamanho) {
+                if (quantidade == limites.length) {
+                    limites = Arrays.copyOf(limites, quantidade * 2);
+                }
+                limites[quantidade++] = posicao;
+            }
+        }
+        if (quantidade == 1) {
+            limites[quantidade++] = tamanho;
+        }
+        return Arrays.copyOf(limites, quantidade);
+    }
+
+    private static class TarefaLeitura extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Path arquivo;
+        private final FileChannel canal;
+        private final long tamanho;
+        private final boolean binario;
+        private final long[] limites;
+        private final int inicio;
+        private final int fim;
+        private final byte passada;
+        private final Destino destino;
+
+        TarefaLeitura(Path arquivo, FileChannel canal, long tamanho, boolean binario, long[] limites,
+                      int inicio, int fim, byte passada, Destino destino) {
+            this.arquivo = arquivo;
+            this.canal = canal;
+            this.tamanho = tamanho;
+            this.binario = binario;
+            this.limites = limites;
+            this.inicio = inicio;
+            this.fim = fim;
+            this.passada = passada;
+            this.destino = destino;
+        }
+
+        @Override
+        protected void compute() {
+            if (fim - inicio > 1) {
+                int meio = (inicio + fim) >>> 1;
+                invokeAll(new TarefaLeitura(arquivo, canal, tamanho, binario, limites, inicio, meio, passada, destino),
+                          new TarefaLeitura(arquivo, canal, tamanho, binario, limites, meio, fim, passada, destino));
+                return;
+            }
+            long de = limites[inicio];
+            long ate = limites[fim];
+            try {
+                if (binario) {
+                    new Leitura(arquivo, canal.map(FileChannel.MapMode.READ_ONLY, de, ate - de), de, true, passada, destino)
+                            .blocos();
+                } else {
+                    // Um byte antes, para saber se o pedaço começa numa linha, e folga para a última linha.
+                    long mapaDe = Math.max(0, de - 1);
+                    long mapaAte = Math.min(tamanho, ate + MAIOR_REGISTRO);
+                    Leitura leitura = new Leitura(arquivo, canal.map(FileChannel.MapMode.READ_ONLY, mapaDe, mapaAte - mapaDe),
+                            mapaDe, mapaAte == tamanho, passada, destino);
+                    leitura.linhas((int) (de - mapaDe), (int) (ate - mapaDe));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    // Estado de leitura de um pedaço mapeado; não é compartilhado entre threads.
+    private static final class Leitura {
+        private final Path arquivo;
+        private final ByteBuffer mapa;
+        private final long base;           // posição do mapa no arquivo, para as mensagens de erro
+        private final boolean fimDoArquivo; // o mapa vai até o fim do arquivo
+        private final byte passada;
+        private final Destino destino;
+        private byte[] texto = new byte[256];
+        private int posicao;
+
+        Leitura(Path arquivo, ByteBuffer mapa, long base, boolean fimDoArquivo, byte passada, Destino destino) {
+            this.arquivo = arquivo;
+            this.mapa = mapa;
+            this.base = base;
+            this.fimDoArquivo = fimDoArquivo;
+            this.passada = passada;
+            this.destino = destino;
+        }
+
+        void blocos() throws IOException {
+            try {
+                lerBlocos();
+            } catch (IndexOutOfBoundsException e) {
+                throw invalido(posicao); // registro que passa do fim do bloco
+            }
+        }
+
+        private void lerBlocos() throws IOException {
+            int limite = mapa.limit();
+            while (posicao < limite) {
+                int fimBloco = posicao + 4 + mapa.getInt(posicao);
+                posicao += 4;
+                while (posicao < fimBloco) {
+                    byte tipo = mapa.get(posicao++);
+                    if (tipo == RegistroOperacoes.CLIENTE) {
+                        if (passada == RegistroOperacoes.CLIENTE) {
+                            destino.cliente(textoBinario(), textoBinario(), textoBinario());
+                        } else {
+                            pularTextoBinario();
+                            pularTextoBinario();
+                            pularTextoBinario();
+                        }
+                    } else if (tipo == RegistroOperacoes.CONTA_CORRENTE || tipo == RegistroOperacoes.CONTA_POUPANCA) {
+                        if (passada == RegistroOperacoes.CLIENTE) {
+                            posicao += 4;
+                            pularTextoBinario();
+                            posicao += 8;
+                        } else {
+                            int numero = mapa.getInt(posicao);
+                            posicao += 4;
+                            String cpf = textoBinario();
+                            long saldo = mapa.getLong(posicao);
+                            posicao += 8;
+                            destino.conta(tipo, numero, cpf, saldo);
+                        }
+                    } else {
+                        throw invalido(posicao - 1);
+                    }
+                }
+                if (posicao != fimBloco) {
+                    throw invalido(fimBloco);
+                }
+            }
+        }
+
+        private String textoBinario() {
+            int tamanho = mapa.getShort(posicao) & 0xFFFF;
+            if (tamanho > texto.length) {
+                texto = new byte[Math.max(tamanho, texto.length * 2)];
+            }
+            mapa.get(posicao + 2, texto, 0, tamanho);
+            posicao += 2 + tamanho;
+            return new String(texto, 0, tamanho, StandardCharsets.UTF_8);
+        }
+
+        private void pularTextoBinario() {
+            posicao += 2 + (mapa.getShort(posicao) & 0xFFFF);
+        }
+
+        // Processa as linhas que começam em [de, ate) do mapa; a última pode passar de ate.
+        void linhas(int de, int ate) throws IOException {
+            posicao = de;
+            if (de > 0 && mapa.get(de - 1) != '\n') {
+                pularLinha(); // a linha começou no pedaço anterior
+            }
+            while (posicao < ate) {
+                int inicioLinha = posicao;
+                int fimTipo = posicao;
+                while (fimTipo < mapa.limit() && mapa.get(fimTipo) != ',' && mapa.get(fimTipo) != '\n') {
+                    fimTipo++;
+                }
+                byte tipo;
+                if (igual(inicioLinha, fimTipo, CSV_CLIENTE)) {
+                    tipo = RegistroOperacoes.CLIENTE;
+                } else if (igual(inicioLinha, fimTipo, CSV_CORRENTE)) {
+                    tipo = RegistroOperacoes.CONTA_CORRENTE;
+                } else if (igual(inicioLinha, fimTipo, CSV_POUPANCA)) {
+                    tipo = RegistroOperacoes.CONTA_POUPANCA;
+                } else if (fimTipo == inicioLinha || (fimTipo == inicioLinha + 1 && mapa.get(inicioLinha) == '\r')) {
+                    pularLinha(); // linha em branco
+                    continue;
+                } else {
+                    throw invalido(inicioLinha);
+                }
+                if ((tipo == RegistroOperacoes.CLIENTE) != (passada == RegistroOperacoes.CLIENTE)) {
+                    pularLinha();
+                    continue;
+                }
+                posicao = fimTipo;
+                if (tipo == RegistroOperacoes.CLIENTE) {
+                    String nome = textoCsv(inicioLinha);
+                    String cpf = textoCsv(inicioLinha);
+                    String senha = textoCsv(inicioLinha);
+                    fimDaLinha(inicioLinha);
+                    destino.cliente(nome, cpf, senha);
+                } else {
+                    long numero = numeroCsv(inicioLinha);
+                    String cpf = textoCsv(inicioLinha);
+                    long saldo = numeroCsv(inicioLinha);
+                    fimDaLinha(inicioLinha);
+                    if (numero < Integer.MIN_VALUE || numero > Integer.MAX_VALUE) {
+                        throw invalido(inicioLinha);
+                    }
+                    destino.conta(tipo, (int) numero, cpf, saldo);
+                }
+            }
+        }
+
+        private boolean igual(int de, int ate, byte[] palavra) {
+            if (ate - de != palavra.length) {
+                return false;
+            }
+            for (int i = 0; i < palavra.length; i++) {
+                if (mapa.get(de + i) != palavra[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Consome a vírgula e o campo seguinte, entre aspas ou não.
+        private String textoCsv(int inicioLinha) throws IOException {
+            if (posicao >= mapa.limit() || mapa.get(posicao) != ',') {
+                throw invalido(inicioLinha);
+            }
+            posicao++;
+            int tamanho = 0;
+            if (posicao < mapa.limit() && mapa.get(posicao) == '"') {
+                posicao++;
+                while (true) {
+                    if (posicao >= mapa.limit()) {
+                        throw invalido(inicioLinha);
+                    }
+                    byte b = mapa.get(posicao++);
+                    if (b == '"') {
+                        if (posicao < mapa.limit() && mapa.get(posicao) == '"') {
+                            posicao++;
+                        } else {
+                            break;
+                        }
+                    } else if (b == '\n') {
+                        throw invalido(inicioLinha);
+                    }
+                    tamanho = acrescentar(tamanho, b);
+                }
+            } else {
+                while (posicao < mapa.limit()) {
+                    byte b = mapa.get(posicao);
+                    if (b == ',' || b == '\n' || b == '\r') {
+                        break;
+                    }
+                    tamanho = acrescentar(tamanho, b);
+                    posicao++;
+                }
+            }
+            return new String(texto, 0, tamanho, StandardCharsets.UTF_8);
+        }
+
+        private int acrescentar(int tamanho, byte b) {
+            if (tamanho == texto.length) {
+                texto = Arrays.copyOf(texto, tamanho * 2);
+            }
+            texto[tamanho] = b;
+            return tamanho + 1;
+        }
+
+        private long numeroCsv(int inicioLinha) throws IOException {
+            if (posicao >= mapa.limit() || mapa.get(posicao) != ',') {
+                throw invalido(inicioLinha);
+            }
+            posicao++;
+            boolean negativo = posicao < mapa.limit() && mapa.get(posicao) == '-';
+            if (negativo) {
+                posicao++;
+            }
+            int digitos = 0;
+            long valor = 0;
+            while (posicao < mapa.limit()) {
+                int d = mapa.get(posicao) - '0';
+                if (d < 0 || d > 9) {
+                    break;
+                }
+                if (++digitos > 18) {
+                    throw invalido(inicioLinha);
+                }
+                valor = valor * 10 + d;
+                posicao++;
+            }
+            if (digitos == 0) {
+                throw invalido(inicioLinha);
+            }
+            return negativo ? -valor : valor;
+        }
+
+        private void fimDaLinha(int inicioLinha) throws IOException {
+            if (posicao < mapa.limit() && mapa.get(posicao) == '\r') {
+                posicao++;
+            }
+            if (posicao < mapa.limit() && mapa.get(posicao) == '\n') {
+                posicao++;
+            } else if (posicao < mapa.limit() || !fimDoArquivo) {
+                throw invalido(inicioLinha);
+            }
+        }
+
+        private void pularLinha() throws IOException {
+            int inicioLinha = posicao;
+            while (posicao < mapa.limit()) {
+                if (mapa.get(posicao++) == '\n') {
+                    return;
+                }
+            }
+            if (!fimDoArquivo) {
+                throw invalido(inicioLinha); // linha maior que a folga do mapa
+            }
+        }
+
+        private IOException invalido(int posicaoNoMapa) {
+            return new IOException("Registro inválido em " + arquivo + " na posição " + (base + posicaoNoMapa));
+        }
+    }
+
+    /**
+     * Grava as contas e depois os clientes, como o snapshot: todo titular de uma conta gravada
+     * já existia quando a cópia dos clientes começou. Cada saldo é lido sob o monitor da conta.
+     * @throws IllegalArgumentException se um texto tiver quebra de linha ou mais de 64 KB
+     */
+    static void escrever(Path arquivo, Formato formato, Iterable<Conta> contas, Iterable<Cliente> clientes) throws IOException {
+        try (FileChannel canal = FileChannel.open(arquivo, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Escrita escrita = new Escrita(canal, formato == Formato.BINARIO);
+            for (Conta conta : contas) {
+                byte tipo = conta instanceof ContaPoupanca ? RegistroOperacoes.CONTA_POUPANCA : RegistroOperacoes.CONTA_CORRENTE;
+                escrita.conta(tipo, conta.getNumero(), conta.getTitular().getCpf(), conta.getSaldo());
+            }
+            for (Cliente cliente : clientes) {
+                escrita.cliente(cliente.getNome(), cliente.getCpf(), cliente.getHashSenha());
+            }
+            escrita.terminar();
+        }
+    }
+
+    // Registros codificados direto num buffer de um bloco, gravado no canal quando enche.
+    private static final class Escrita {
+        private final FileChannel canal;
+        private final boolean binario;
+        private final ByteBuffer buffer = ByteBuffer.allocate(TAMANHO_BLOCO + MAIOR_REGISTRO);
+        private final byte[] digitos = new byte[20];
+        private int inicioBloco; // posição, no buffer, do tamanho do bloco binário em andamento
+
+        Escrita(FileChannel canal, boolean binario) {
+            this.canal = canal;
+            this.binario = binario;
+            if (binario) {
+                buffer.putInt(MAGICO).putInt(VERSAO);
+                inicioBloco = buffer.position();
+                buffer.putInt(0);
+            }
+        }
+
+        void cliente(String nome, String cpf, String senha) throws IOException {
+            if (binario) {
+                buffer.put(RegistroOperacoes.CLIENTE);
+                textoBinario(nome);
+                textoBinario(cpf);
+                textoBinario(senha);
+            } else {
+                buffer.put(CSV_CLIENTE);
+                textoCsv(nome);
+                textoCsv(cpf);
+                textoCsv(senha);
+                buffer.put((byte) '\n');
+            }
+            registroEscrito();
+        }
+
+        void conta(byte tipo, int numero, String cpf, long saldo) throws IOException {
+            if (binario) {
+                buffer.put(tipo).putInt(numero);
+                textoBinario(cpf);
+                buffer.putLong(saldo);
+            } else {
+                buffer.put(tipo == RegistroOperacoes.CONTA_POUPANCA ? CSV_POUPANCA : CSV_CORRENTE).put((byte) ',');
+                numero(numero);
+                textoCsv(cpf);
+                buffer.put((byte) ',');
+                numero(saldo);
+                buffer.put((byte) '\n');
+            }
+            registroEscrito();
+        }
+
+        void terminar() throws IOException {
+            if (binario && buffer.position() == inicioBloco + 4) {
+                buffer.position(inicioBloco); // bloco vazio
+            }
+            esvaziar(false);
+        }
+
+        private void registroEscrito() throws IOException {
+            if (buffer.position() >= TAMANHO_BLOCO) {
+                esvaziar(binario);
+            }
+        }
+
+        private void esvaziar(boolean novoBloco) throws IOException {
+            if (binario && buffer.position() > inicioBloco) {
+                buffer.putInt(inicioBloco, buffer.position() - inicioBloco - 4);
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                canal.write(buffer);
+            }
+            buffer.clear();
+            if (novoBloco) {
+                inicioBloco = 0;
+                buffer.putInt(0);
+            }
+        }
+
+        private void textoBinario(String texto) {
+            int inicio = buffer.position();
+            buffer.putShort((short) 0);
+            buffer.putShort(inicio, (short) utf8(texto, false));
+        }
+
+        private void textoCsv(String texto) {
+            buffer.put((byte) ',');
+            boolean aspas = texto.indexOf(',') >= 0 || texto.indexOf('"') >= 0;
+            if (aspas) {
+                buffer.put((byte) '"');
+            }
+            utf8(texto, aspas);
+            if (aspas) {
+                buffer.put((byte) '"');
+            }
+        }
+
+        // UTF-8 direto no buffer, sem o array intermediário de getBytes.
+        private int utf8(String texto, boolean dobrarAspas) {
+            int inicio = buffer.position();
+            for (int i = 0; i < texto.length(); i++) {
+                char c = texto.charAt(i);
+                if (c == '\n' || c == '\r') {
+                    throw new IllegalArgumentException("Texto com quebra de linha não cabe no arquivo de carga: " + texto);
+                }
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                    if (c == '"' && dobrarAspas) {
+                        buffer.put((byte) c);
+                    }
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xC0 | c >> 6)).put((byte) (0x80 | c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < texto.length() && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, texto.charAt(++i));
+                    buffer.put((byte) (0xF0 | cp >> 18)).put((byte) (0x80 | cp >> 12 & 0x3F))
+                          .put((byte) (0x80 | cp >> 6 & 0x3F)).put((byte) (0x80 | cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    buffer.put((byte) '?'); // surrogate sem par, como em getBytes
+                } else {
+                    buffer.put((byte) (0xE0 | c >> 12)).put((byte) (0x80 | c >> 6 & 0x3F)).put((byte) (0x80 | c & 0x3F));
+                }
+                if (buffer.position() - inicio > 0xFFFF) {
+                    throw new IllegalArgumentException("Texto com mais de 64 KB não cabe no arquivo de carga");
+                }
+            }
+            return buffer.position() - inicio;
+        }
+
+        // Decimal em ASCII sem criar String; trabalha com o valor negativo para cobrir Long.MIN_VALUE.
+        private void numero(long valor) {
+            int i = digitos.length;
+            long resto = valor < 0 ? valor : -valor;
+            do {
+                digitos[--i] = (byte) ('0' - resto % 10);
+                resto /= 10;
+            } while (resto != 0);
+            if (valor < 0) {
+                digitos[--i] = '-';
+            }
+            buffer.put(digitos, i, digitos.length - i);
+        }
+    }
+}
+
+/**
+ * Histograma de latências em baldes fixos, no estilo do HdrHistogram: 32 baldes lineares por
+ * potência de dois, então cada valor é representado com erro de no máximo ~3%, de 1 ns até
+ * ~18 min (acima disso cai no último balde). Registrar é um incremento atômico num array
+ * pré-alocado, sem alocação e sem trava. As contagens são repartidas em faixas pela thread, para
+ * núcleos diferentes não disputarem a mesma linha de cache; a leitura soma as faixas.
+ */
+class Histograma {
+    private static final int BITS_SUB = 5;
+    private static final int SUB = 1 << BITS_SUB;
+    private static final int MAIOR_EXPOENTE = 40; // 2^40 ns, ~18 min
+    static final int BALDES = (MAIOR_EXPOENTE - BITS_SUB + 2) * SUB;
+    private static final int FAIXAS = Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+    private static final int PASSO = BALDES + 16; // 128 bytes entre faixas
+
+    private final String nome;
+    private final AtomicLongArray contagens = new AtomicLongArray(FAIXAS * PASSO);
+    private final LongAdder soma = new LongAdder();
+
+    Histograma(String nome) {
+        this.nome = nome;
+    }
+
+    public String getNome() { return nome; }
+
+    public void registrar(long nanos) {
+        int faixa = (int) Thread.currentThread().getId() & (FAIXAS - 1);
+        contagens.getAndIncrement(faixa * PASSO + indice(Math.max(0L, nanos)));
+        soma.add(nanos);
+    }
+
+    static int indice(long valor) {
+        if (valor < SUB) {
+            return (int) valor;
+        }
+        int expoente = 63 - Long.numberOfLeadingZeros(valor);
+        if (expoente > MAIOR_EXPOENTE) {
+            return BALDES - 1;
+        }
+        return (expoente - BITS_SUB + 1) * SUB + (int) (valor >>> (expoente - BITS_SUB)) - SUB;
+    }
+
+    // Maior valor representado pelo balde (o "valor equivalente" reportado).
+    static long limiteDoBalde(int indice) {
+        if (indice < SUB) {
+            return indice;
+        }
+        int expoente = indice / SUB + BITS_SUB - 1;
+        return ((long) (SUB + indice % SUB + 1) << (expoente - BITS_SUB)) - 1;
+    }
+
+    /** Contagens somadas das faixas; sob escrita concorrente o retrato é aproximado. */
+    public Retrato retrato() {
+        long[] baldes = new long[BALDES];
+        long total = 0L;
+        for (int f = 0; f < FAIXAS; f++) {
+            for (int i = 0; i < BALDES; i++) {
+                long c = contagens.get(f * PASSO + i);
+                baldes[i] += c;
+                total += c;
+            }
+        }
+        return new Retrato(baldes, total, soma.sum());
+    }
+
+    static final class Retrato {
+        private final long[] baldes;
+        private final long contagem;
+        private final long soma;
+
+        Retrato(long[] baldes, long contagem, long soma) {
+            this.baldes = baldes;
+            this.contagem = contagem;
+            this.soma = soma;
+        }
+
+        public long getContagem() { return contagem; }
+
+        public double media() {
+            return contagem == 0 ? 0.0 : (double) soma / contagem;
+        }
+
+        /** Valor abaixo do qual (ou igual) estão {@code percentil}% das amostras; 0 se vazio. */
+        public long percentil(double percentil) {
+            long alvo = Math.max(1L, (long) Math.ceil(contagem * percentil / 100.0));
+            long acumulado = 0L;
+            for (int i = 0; i < baldes.length; i++) {
+                acumulado += baldes[i];
+                if (acumulado >= alvo) {
+                    return limiteDoBalde(i);
+                }
+            }
+            return 0L;
+        }
+
+        public long maximo() {
+            for (int i = baldes.length - 1; i >= 0; i--) {
+                if (baldes[i] != 0) {
+                    return limiteDoBalde(i);
+                }
+            }
+            return 0L;
+        }
+    }
+}
+
+/**
+ * Métricas dos caminhos quentes do banco: latência das operações de conta e da autenticação,
+ * separadas por resultado, em {@link Histograma}s, e contadores {@link LongAdder}. Registrar não
+ * aloca. A leitura é exposta por JMX ({@link #registrarJmx}), como texto ({@link #escrever}) e
+ * pela operação METRICAS do {@link ServidorBanco}.
+ */
+final class Metricas {
+    private static final List<Histograma> HISTOGRAMAS = new CopyOnWriteArrayList<>();
+    private static final Map<String, LongAdder> CONTADORES = new ConcurrentSkipListMap<>();
+    private static final Locale PT_BR = Locale.forLanguageTag("pt-BR");
+
+    static final Histograma DEPOSITO = histograma("conta.depositar");
+    static final Histograma SAQUE = histograma("conta.sacar.ok");
+    static final Histograma SAQUE_RECUSADO = histograma("conta.sacar.recusado");
+    static final Histograma TRANSFERENCIA = histograma("conta.transferir.ok");
+    static final Histograma TRANSFERENCIA_RECUSADA = histograma("conta.transferir.recusado");
+    static final Histograma AUTENTICACAO = histograma("banco.autenticar.ok");
+    static final Histograma AUTENTICACAO_RECUSADA = histograma("banco.autenticar.recusado");
+    static final LongAdder AUTENTICACAO_BLOQUEADA = contador("banco.autenticar.bloqueado");
+    static final LongAdder CADASTRO_BLOQUEADO = contador("banco.cadastrar.bloqueado");
+    static final Histograma TRANSFERENCIA_PARTICOES = histograma("particao.transferir.ok");
+    static final Histograma TRANSFERENCIA_PARTICOES_RECUSADA = histograma("particao.transferir.recusado");
+    static final LongAdder REENVIO_PARTICAO = contador("particao.reenvio");
+
+    private Metricas() {}
+
+    private static Histograma histograma(String nome) {
+        Histograma histograma = new Histograma(nome);
+        HISTOGRAMAS.add(histograma);
+        return histograma;
+    }
+
+    private static LongAdder contador(String nome) {
+        LongAdder contador = new LongAdder();
+        CONTADORES.put(nome, contador);
+        return contador;
+    }
+
+    /**
+     * Uma linha por métrica; latências em microssegundos:
+     * "conta.sacar.ok  contagem=10 média=3,1 p50=2,9 p99=8,2 p99,9=15,1 máx=15,1".
+     */
+    static StringBuilder escrever(StringBuilder sb) {
+        for (Histograma histograma : HISTOGRAMAS) {
+            Histograma.Retrato retrato = histograma.retrato();
+            sb.append(String.format(PT_BR, "%-30s contagem=%d média=%.1f p50=%.1f p99=%.1f p99,9=%.1f máx=%.1f%n",
+                    histograma.getNome(), retrato.getContagem(), retrato.media() / 1_000.0,
+                    retrato.percentil(50) / 1_000.0, retrato.percentil(99) / 1_000.0,
+                    retrato.percentil(99.9) / 1_000.0, retrato.maximo() / 1_000.0));
+        }
+        for (Map.Entry<String, LongAdder> contador : CONTADORES.entrySet()) {
+            sb.append(String.format("%-30s contagem=%d%n", contador.getKey(), contador.getValue().sum()));
+        }
+        return sb;
+    }
+
+    /** Publica as métricas no MBeanServer da plataforma como {@code banco:type=Metricas}. */
+    static void registrarJmx() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new Jmx(), new ObjectName("banco:type=Metricas"));
+    }
+
+    // Atributos somente leitura: "<histograma>.contagem|media_us|p50_us|p99_us|p999_us|max_us" e "<contador>".
+    private static final class Jmx implements DynamicMBean {
+        private static final String[] SUFIXOS = {"contagem", "media_us", "p50_us", "p99_us", "p999_us", "max_us"};
+
+        @Override
+        public Object getAttribute(String atributo) throws AttributeNotFoundException {
+            LongAdder contador = CONTADORES.get(atributo);
+            if (contador != null) {
+                return contador.sum();
+            }
+            int ponto = atributo.lastIndexOf('.');
+            String nome = ponto < 0 ? "" : atributo.substring(0, ponto);
+            for (Histograma histograma : HISTOGRAMAS) {
+                if (histograma.getNome().equals(nome)) {
+                    Histograma.Retrato retrato = histograma.retrato();
+                    switch (atributo.substring(ponto + 1)) {
+                        case "contagem": return retrato.getContagem();
+                        case "media_us": return retrato.media() / 1_000.0;
+                        case "p50_us": return retrato.percentil(50) / 1_000.0;
+                        case "p99_us": return retrato.percentil(99) / 1_000.0;
+                        case "p999_us": return retrato.percentil(99.9) / 1_000.0;
+                        case "max_us": return retrato.maximo() / 1_000.0;
+                        default: break;
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(atributo);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] atributos) {
+            AttributeList lista = new AttributeList();
+            for (String atributo : atributos) {
+                try {
+                    lista.add(new Attribute(atributo, getAttribute(atributo)));
+                } catch (AttributeNotFoundException e) {
+                    // atributos desconhecidos ficam de fora, como pede a interface
+                }
+            }
+            return lista;
+        }
+
+        @Override
+        public void setAttribute(Attribute atributo) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Métricas são somente leitura: " + atributo.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList atributos) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String acao, Object[] parametros, String[] assinatura) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(acao));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> atributos = new ArrayList<>();
+            for (Histograma histograma : HISTOGRAMAS) {
+                for (String sufixo : SUFIXOS) {
+                    String tipo = sufixo.equals("contagem") ? Long.class.getName() : Double.class.getName();
+                    atributos.add(new MBeanAttributeInfo(histograma.getNome() + "." + sufixo, tipo,
+                            "Latência de " + histograma.getNome(), true, false, false));
+                }
+            }
+            for (String nome : CONTADORES.keySet()) {
+                atributos.add(new MBeanAttributeInfo(nome, Long.class.getName(), nome, true, false, false));
+            }
+            return new MBeanInfo(Metricas.class.getName(), "Métricas do banco",
+                    atributos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+}
+
+/**
+ * Acesso de rede ao {@link Banco} por um protocolo binário com prefixo de tamanho, sobre NIO.
+ * <p>
+ * Requisição: [int tamanho][int id][byte operação][parâmetros]. Resposta: [int tamanho][int id]
+ * [byte status][resultado]. O tamanho conta os bytes depois dele; inteiros são big-endian,
+ * valores em centavos, instantes em epoch de nanossegundos e textos [short bytes][UTF-8].
+ * O cliente pode enviar muitas requisições sem esperar as respostas (pipelining): as de uma
+ * conexão são executadas em ordem e respondidas na mesma ordem, com o id de cada uma.
+ * <p>
+ * Uma única thread com Selector aceita conexões e lê em buffers diretos. As operações rodam num
+ * pool de trabalhadores, porque a confirmação no registro de operações espera o fsync; cada
+ * conexão tem no máximo um trabalhador por vez, que executa de uma só vez tudo o que já chegou
+ * e escreve as respostas direto no socket, deixando para o Selector só o que não coube.
+ * A sessão (cliente autenticado) pertence à conexão.
+ */
+class ServidorBanco implements Closeable {
+    // Operações: parâmetros -> resultado
+    static final byte CADASTRAR_CLIENTE = 1;    // texto nome, texto cpf, texto senha -> nada
+    static final byte AUTENTICAR = 2;           // texto cpf, texto senha -> texto token da sessão
+    static final byte CRIAR_CONTA_CORRENTE = 3; // nada -> int número
+    static final byte CRIAR_CONTA_POUPANCA = 4; // nada -> int número
+    static final byte DEPOSITAR = 5;            // int conta, long valor -> long saldo
+    static final byte SACAR = 6;                // int conta, long valor -> long saldo
+    static final byte TRANSFERIR = 7;           // int origem, int destino, long valor -> long saldo da origem
+    static final byte SALDO = 8;                // int conta -> long saldo
+    // int conta, long de, long ate, int início, int quantidade -> int total no período,
+    // long saldo ao fim do período, int n, n x (long instante, byte tipo, long valor, int contraparte, long saldo)
+    static final byte EXTRATO = 9;
+    static final byte RETOMAR_SESSAO = 10;      // texto token -> nada (nova conexão, sem refazer o hash da senha)
+    static final byte METRICAS = 11;            // nada -> texto com as métricas (Metricas.escrever)
+    // Entre partições, numa conexão autenticada com AUTENTICAR_PARTICAO (ver CoordenadorTransferencias):
+    static final byte AUTENTICAR_PARTICAO = 12; // texto segredo compartilhado -> nada
+    static final byte PREPARAR = 13;            // long id, int conta, int contraparte, long delta -> byte voto (1 aceita)
+    static final byte CONFIRMAR = 14;           // long id -> nada
+    static final byte DESFAZER = 15;            // long id -> nada
+
+    static final byte OK = 0;
+    static final byte REQUISICAO_INVALIDA = 1;
+    static final byte NAO_AUTENTICADO = 2;
+    static final byte CONTA_NAO_ENCONTRADA = 3;
+    static final byte SALDO_INSUFICIENTE = 4;
+    static final byte CREDENCIAIS_INVALIDAS = 5;
+    static final byte ERRO_INTERNO = 6;
+    static final byte TENTATIVAS_ESGOTADAS = 7;
+    static final byte DECISAO_CONFLITANTE = 8; // confirmar o que foi desfeito, ou o contrário
+    static final byte CPF_JA_CADASTRADO = 9;
+
+    static final int TAMANHO_MAXIMO = 1 << 20;
+    static final int EXTRATO_MAXIMO = 1000;
+    // Acima disso a conexão para de ser lida até o trabalhador alcançar (contrapressão).
+    private static final int LIMITE_PENDENTE = 4 << 20;
+    private static final int TAMANHO_LINHA_EXTRATO = 8 + 1 + 8 + 4 + 8;
+
+    private final Banco banco;
+    private final Selector seletor;
+    private final ServerSocketChannel aceitador;
+    private final ExecutorService trabalhadores;
+    private final ExecutorService trabalhadoresPares;
+    private final Queue<Conexao> alteradas = new ConcurrentLinkedQueue<>();
+    private final Thread laco;
+    private volatile boolean aberto = true;
+    // Por índice de partição; null na posição desta e vazio fora do modo particionado.
+    private final ParticaoRemota[] pares;
+    private final byte[] segredo;
+    // Palpites do segredo de partição por endereço remoto, com o mesmo limite do login de clientes.
+    private final LimitadorLogin tentativasPares = new LimitadorLogin(5, Duration.ofSeconds(12));
+    private final CoordenadorTransferencias coordenador = new CoordenadorTransferencias();
+
+    ServidorBanco(Banco banco, InetSocketAddress endereco, int quantidadeTrabalhadores) throws IOException {
+        this(banco, endereco, quantidadeTrabalhadores, Collections.emptyList(), null);
+    }
+
+    /**
+     * Servidor de uma partição do banco. {@code particoes} tem o endereço de cada partição na
+     * ordem dos índices (o desta é ignorado). Transferências para contas de outra partição são
+     * coordenadas daqui; as outras partições se conectam com o segredo compartilhado para preparar
+     * e confirmar as pernas das contas desta, atendidas por trabalhadores à parte, para que
+     * partições esperando umas pelas outras nunca ocupem os trabalhadores que responderiam.
+     */
+    ServidorBanco(Banco banco, InetSocketAddress endereco, int quantidadeTrabalhadores,
+                  List<InetSocketAddress> particoes, String segredo) throws IOException {
+        if (!particoes.isEmpty() && (particoes.size() != banco.getParticoes() || segredo == null)) {
+            throw new IllegalArgumentException("Informe os " + banco.getParticoes() + " endereços de partição e o segredo");
+        }
+        this.banco = banco;
+        this.segredo = segredo == null ? null : segredo.getBytes(StandardCharsets.UTF_8);
+        this.pares = new ParticaoRemota[particoes.size()];
+        for (int i = 0; i < pares.length; i++) {
+            if (i != banco.getParticao()) {
+                pares[i] = new ParticaoRemota(particoes.get(i), segredo);
+            }
+        }
+        this.seletor = Selector.open();
+        this.aceitador = ServerSocketChannel.open();
+        aceitador.bind(endereco, 1024);
+        aceitador.configureBlocking(false);
+        aceitador.register(seletor, SelectionKey.OP_ACCEPT);
+        this.trabalhadores = novosTrabalhadores("banco-trabalhador-", quantidadeTrabalhadores);
+        this.trabalhadoresPares = pares.length == 0 ? trabalhadores : novosTrabalhadores("banco-par-", quantidadeTrabalhadores);
+        this.laco = new Thread(this::executar, "banco-seletor");
+        laco.start();
+    }
+
+    private static ExecutorService novosTrabalhadores(String prefixo, int quantidade) {
+        AtomicInteger contador = new AtomicInteger();
+        return Executors.newFixedThreadPool(quantidade, tarefa -> {
+            Thread thread = new Thread(tarefa, prefixo + contador.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    int getPorta() throws IOException {
+        return ((InetSocketAddress) aceitador.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        aberto = false;
+        seletor.wakeup();
+        try {
+            laco.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        trabalhadores.shutdown();
+        trabalhadoresPares.shutdown();
+        for (ParticaoRemota par : pares) {
+            if (par != null) {
+                par.close();
+            }
+        }
+    }
+
+    private void executar() {
+        try {
+            while (aberto) {
+                seletor.select();
+                for (Conexao conexao; (conexao = alteradas.poll()) != null; ) {
+                    atualizarInteresse(conexao);
+                }
+                Iterator<SelectionKey> chaves = seletor.selectedKeys().iterator();
+                while (chaves.hasNext()) {
+                    SelectionKey chave = chaves.next();
+                    chaves.remove();
+                    if (!chave.isValid()) {
+                        continue;
+                    }
+                    if (chave.isAcceptable()) {
+                        aceitar();
+                        continue;
+                    }
+                    Conexao conexao = (Conexao) chave.attachment();
+                    try {
+                        if (chave.isReadable()) {
+                            ler(conexao);
+                        }
+                        if (chave.isValid() && chave.isWritable()) {
+                            escrever(conexao);
+                        }
+                    } catch (IOException e) {
+                        conexao.fechar();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Servidor do banco interrompido: " + e.getMessage());
+        } finally {
+            for (SelectionKey chave : seletor.keys()) {
+                try {
+                    chave.channel().close();
+                } catch (IOException ignorada) {
+                    // já encerrando
+                }
+            }
+            try {
+                seletor.close();
+            } catch (IOException ignorada) {
+                // já encerrando
+            }
+        }
+    }
+
+    private void aceitar() throws IOException {
+        for (SocketChannel canal; (canal = aceitador.accept()) != null; ) {
+            canal.configureBlocking(false);
+            canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            Conexao conexao = new Conexao(canal);
+            conexao.chave = canal.register(seletor, SelectionKey.OP_READ, conexao);
+        }
+    }
+
+    // Passa as requisições completas para a fila da conexão; o resto fica para a próxima leitura.
+    private void ler(Conexao conexao) throws IOException {
+        ByteBuffer entrada = conexao.entrada;
+        if (conexao.canal.read(entrada) < 0) {
+            conexao.fechar();
+            return;
+        }
+        entrada.flip();
+        boolean agendar = false;
+        boolean pausar;
+        synchronized (conexao) {
+            while (entrada.remaining() >= 4) {
+                int tamanho = entrada.getInt(entrada.position());
+                if (tamanho < 5 || tamanho > TAMANHO_MAXIMO) {
+                    conexao.fechar(); // fora do protocolo
+                    return;
+                }
+                if (entrada.remaining() < 4 + tamanho) {
+                    break;
+                }
+                conexao.recebidas = garantir(conexao.recebidas, 4 + tamanho);
+                int limite = entrada.limit();
+                entrada.limit(entrada.position() + 4 + tamanho);
+                conexao.recebidas.put(entrada);
+                entrada.limit(limite);
+            }
+            if (conexao.recebidas.position() > 0 && !conexao.agendada) {
+                conexao.agendada = true;
+                agendar = true;
+            }
+            pausar = conexao.recebidas.position() >= LIMITE_PENDENTE;
+        }
+        entrada.compact();
+        if (!entrada.hasRemaining()) {
+            // Uma requisição maior que o buffer: cresce até o máximo do protocolo.
+            ByteBuffer maior = ByteBuffer.allocateDirect(Math.min(entrada.capacity() * 2, TAMANHO_MAXIMO + 4));
+            entrada.flip();
+            conexao.entrada = maior.put(entrada);
+        }
+        if (pausar) {
+            conexao.chave.interestOps(conexao.chave.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (agendar) {
+            (conexao.par ? trabalhadoresPares : trabalhadores).execute(conexao);
+        }
+    }
+
+    private void escrever(Conexao conexao) throws IOException {
+        synchronized (conexao) {
+            conexao.saida.flip();
+            conexao.canal.write(conexao.saida);
+            conexao.saida.compact();
+        }
+        atualizarInteresse(conexao);
+    }
+
+    // Só na thread do Selector: lê se a fila não está cheia, escreve se sobrou resposta.
+    private void atualizarInteresse(Conexao conexao) {
+        if (!conexao.chave.isValid()) {
+            return;
+        }
+        int interesse;
+        synchronized (conexao) {
+            interesse = conexao.recebidas.position() < LIMITE_PENDENTE ? SelectionKey.OP_READ : 0;
+            if (conexao.saida.position() > 0) {
+                interesse |= SelectionKey.OP_WRITE;
+            }
+        }
+        conexao.chave.interestOps(interesse);
+    }
+
+    private static ByteBuffer garantir(ByteBuffer buffer, int adicional) {
+        if (buffer.remaining() >= adicional) {
+            return buffer;
+        }
+        int capacidade = Math.max(buffer.capacity() * 2, buffer.position() + adicional);
+        ByteBuffer maior = buffer.isDirect() ? ByteBuffer.allocateDirect(capacidade) : ByteBuffer.allocate(capacidade);
+        buffer.flip();
+        return maior.put(buffer);
+    }
+
+    static void escreverTexto(ByteBuffer destino, String texto) {
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        destino.putShort((short) bytes.length).put(bytes);
+    }
+
+    static String lerTexto(ByteBuffer origem) {
+        int tamanho = origem.getShort() & 0xFFFF;
+        if (tamanho > origem.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String texto = new String(origem.array(), origem.arrayOffset() + origem.position(), tamanho, StandardCharsets.UTF_8);
+        origem.position(origem.position() + tamanho);
+        return texto;
+    }
+
+    private final class Conexao implements Runnable {
+        final SocketChannel canal;
+        final String origem; // endereço remoto, chave do limite de tentativas de login
+        SelectionKey chave;
+        ByteBuffer entrada = ByteBuffer.allocateDirect(64 * 1024); // só a thread do Selector
+        // Protegidos pelo monitor da conexão.
+        ByteBuffer recebidas = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer saida = ByteBuffer.allocateDirect(64 * 1024);
+        boolean agendada;
+        // Só o trabalhador da vez; a troca de trabalhador passa pelo monitor da conexão.
+        ByteBuffer lote = ByteBuffer.allocate(64 * 1024);
+        ByteBuffer resposta = ByteBuffer.allocate(64 * 1024);
+        Cliente cliente;
+        volatile boolean par; // outra partição, autenticada pelo segredo; lida pela thread do Selector
+
+        Conexao(SocketChannel canal) throws IOException {
+            this.canal = canal;
+            this.origem = ((InetSocketAddress) canal.getRemoteAddress()).getHostString();
+        }
+
+        void fechar() {
+            try {
+                canal.close();
+            } catch (IOException ignorada) {
+                // a conexão já estava perdida
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                boolean retomarLeitura;
+                synchronized (this) {
+                    if (recebidas.position() == 0) {
+                        agendada = false;
+                        return;
+                    }
+                    ByteBuffer vazio = lote;
+                    lote = recebidas;
+                    recebidas = vazio;
+                    retomarLeitura = lote.position() >= LIMITE_PENDENTE;
+                }
+                if (retomarLeitura) {
+                    alteradas.add(this);
+                    seletor.wakeup();
+                }
+                lote.flip();
+                resposta.clear();
+                while (lote.hasRemaining()) {
+                    responder();
+                }
+                lote.clear();
+                resposta.flip();
+                boolean pendente;
+                synchronized (this) {
+                    saida = garantir(saida, resposta.remaining());
+                    saida.put(resposta);
+                    saida.flip();
+                    try {
+                        canal.write(saida);
+                    } catch (IOException e) {
+                        fechar();
+                    }
+                    saida.compact();
+                    pendente = saida.position() > 0;
+                }
+                if (pendente && canal.isOpen()) {
+                    alteradas.add(this);
+                    seletor.wakeup();
+                }
+            }
+        }
+
+        // Executa a requisição que começa na posição atual do lote e escreve a resposta.
+        private void responder() {
+            int tamanho = lote.getInt();
+            int fim = lote.position() + tamanho;
+            int limite = lote.limit();
+            lote.limit(fim);
+            int id = lote.getInt();
+            byte operacao = lote.get();
+            reservar(9);
+            int inicio = resposta.position();
+            resposta.putInt(0).putInt(id).put(OK);
+            byte status;
+            try {
+                status = executar(operacao);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                status = REQUISICAO_INVALIDA;
+            } catch (RuntimeException e) {
+                status = ERRO_INTERNO;
+            }
+            if (status != OK) {
+                resposta.position(inicio + 9);
+            }
+            resposta.putInt(inicio, resposta.position() - inicio - 4);
+            resposta.put(inicio + 8, status);
+            lote.limit(limite);
+            lote.position(fim);
+        }
 
-    public boolean sacar(double valor) {
-        if (saldo >= valor) {
-            saldo -= valor;
-            transacoes.add(new Transacao("Saque", -valor, new Date()));
-            return true;
+        private byte executar(byte operacao) {
+            switch (operacao) {
+                case CADASTRAR_CLIENTE: {
+                    String nome = lerTexto(lote);
+                    String cpf = lerTexto(lote);
+                    String senha = lerTexto(lote);
+                    if (cpf.isEmpty()) {
+                        return REQUISICAO_INVALIDA;
+                    }
+                    if (banco.cadastrarCliente(nome, cpf, senha, origem) == null) {
+                        return banco.cadastrosEsgotados(origem) ? TENTATIVAS_ESGOTADAS : CPF_JA_CADASTRADO;
+                    }
+                    return OK;
+                }
+                case AUTENTICAR: {
+                    String cpf = lerTexto(lote);
+                    String senha = lerTexto(lote);
+                    String token = banco.abrirSessao(cpf, senha, origem);
+                    if (token == null) {
+                        cliente = null;
+                        return banco.tentativasEsgotadas(cpf, origem) ? TENTATIVAS_ESGOTADAS : CREDENCIAIS_INVALIDAS;
+                    }
+                    cliente = banco.validarSessao(token);
+                    reservar(2 + token.length());
+                    escreverTexto(resposta, token);
+                    return OK;
+                }
+                case RETOMAR_SESSAO: {
+                    cliente = banco.validarSessao(lerTexto(lote));
+                    return cliente == null ? NAO_AUTENTICADO : OK;
+                }
+                case METRICAS: {
+                    String texto = Metricas.escrever(new StringBuilder(1024)).toString();
+                    reservar(2 + texto.getBytes(StandardCharsets.UTF_8).length);
+                    escreverTexto(resposta, texto);
+                    return OK;
+                }
+                case CRIAR_CONTA_CORRENTE:
+                case CRIAR_CONTA_POUPANCA: {
+                    if (cliente == null) {
+                        return NAO_AUTENTICADO;
+                    }
+                    Conta conta = operacao == CRIAR_CONTA_CORRENTE
+                            ? banco.criarContaCorrente(cliente) : banco.criarContaPoupanca(cliente);
+                    reservar(4).putInt(conta.getNumero());
+                    return OK;
+                }
+                case DEPOSITAR:
+                case SACAR:
+                case SALDO: {
+                    int numero = lote.getInt();
+                    long valor = operacao == SALDO ? 0L : lote.getLong();
+                    byte status = validar(numero, valor, operacao != SALDO);
+                    if (status != OK) {
+                        return status;
+                    }
+                    Conta conta = banco.buscarConta(numero);
+                    if (operacao == DEPOSITAR) {
+                        conta.depositar(valor);
+                    } else if (operacao == SACAR && !conta.sacar(valor)) {
+                        return SALDO_INSUFICIENTE;
+                    }
+                    reservar(8).putLong(conta.getSaldo());
+                    return OK;
+                }
+                case TRANSFERIR: {
+                    int origem = lote.getInt();
+                    int destino = lote.getInt();
+                    long valor = lote.getLong();
+                    byte status = validar(origem, valor, true);
+                    if (status != OK) {
+                        return status;
+                    }
+                    Conta contaOrigem = banco.buscarConta(origem);
+                    if (!banco.pertence(destino)) {
+                        return transferirEntreParticoes(contaOrigem, destino, valor);
+                    }
+                    Conta contaDestino = banco.buscarConta(destino);
+                    if (contaDestino == null) {
+                        return CONTA_NAO_ENCONTRADA;
+                    }
+                    if (!contaOrigem.transferir(contaDestino, valor)) {
+                        return SALDO_INSUFICIENTE;
+                    }
+                    reservar(8).putLong(contaOrigem.getSaldo());
+                    return OK;
+                }
+                case EXTRATO: {
+                    int numero = lote.getInt();
+                    long de = lote.getLong();
+                    long ate = lote.getLong();
+                    int inicioPeriodo = lote.getInt();
+                    int quantidade = Math.min(lote.getInt(), EXTRATO_MAXIMO);
+                    byte status = validar(numero, 0L, false);
+                    if (status != OK) {
+                        return status;
+                    }
+                    if (inicioPeriodo < 0 || quantidade < 0) {
+                        return REQUISICAO_INVALIDA;
+                    }
+                    Conta conta = banco.buscarConta(numero);
+                    List<Transacao> linhas;
+                    int total;
+                    long saldoFinal;
+                    synchronized (conta) {
+                        total = conta.contarTransacoes(de, ate);
+                        saldoFinal = conta.getSaldoEm(ate);
+                        linhas = conta.getTransacoes(de, ate, inicioPeriodo, quantidade);
+                    }
+                    reservar(16 + linhas.size() * TAMANHO_LINHA_EXTRATO).putInt(total).putLong(saldoFinal).putInt(linhas.size());
+                    for (Transacao t : linhas) {
+                        resposta.putLong(t.getInstante()).put((byte) t.getTipo().ordinal()).putLong(t.getValor())
+                                .putInt(t.getContraparte()).putLong(t.getSaldoApos());
+                    }
+                    return OK;
+                }
+                case AUTENTICAR_PARTICAO: {
+                    byte[] informado = lerTexto(lote).getBytes(StandardCharsets.UTF_8);
+                    if (!tentativasPares.tentar("particao", origem)) {
+                        par = false;
+                        return TENTATIVAS_ESGOTADAS;
+                    }
+                    par = segredo != null && MessageDigest.isEqual(segredo, informado);
+                    if (par) {
+                        tentativasPares.zerar("particao", origem);
+                    }
+                    return par ? OK : CREDENCIAIS_INVALIDAS;
+                }
+                case PREPARAR: {
+                    if (!par) {
+                        return NAO_AUTENTICADO;
+                    }
+                    long id = lote.getLong();
+                    int numero = lote.getInt();
+                    int contraparte = lote.getInt();
+                    long delta = lote.getLong();
+                    reservar(1).put(banco.preparar(id, numero, contraparte, delta) ? (byte) 1 : (byte) 0);
+                    return OK;
+                }
+                case CONFIRMAR:
+                case DESFAZER: {
+                    if (!par) {
+                        return NAO_AUTENTICADO;
+                    }
+                    long id = lote.getLong();
+                    try {
+                        if (operacao == CONFIRMAR) {
+                            banco.confirmar(id);
+                        } else {
+                            banco.desfazer(id);
+                        }
+                    } catch (IllegalStateException e) {
+                        return DECISAO_CONFLITANTE;
+                    }
+                    return OK;
+                }
+                default:
+                    return REQUISICAO_INVALIDA;
+            }
         }
-        return false;
-    }
 
-    public void transferir(Conta destino, double valor) {
-        if (sacar(valor)) {
-            destino.depositar(valor);
-            transacoes.add(new Transacao("Transferência para conta " + destino.getNumero(), -valor, new Date()));
+        // O trabalhador fica bloqueado nas duas fases; a outra partição responde por trabalhadores à parte.
+        private byte transferirEntreParticoes(Conta contaOrigem, int destino, long valor) {
+            ParticaoRemota par = pares.length == 0 ? null : pares[Particionamento.particao(destino, pares.length)];
+            if (par == null) {
+                return CONTA_NAO_ENCONTRADA;
+            }
+            switch (coordenador.transferir(banco, contaOrigem.getNumero(), par, destino, valor)) {
+                case SALDO_INSUFICIENTE:
+                    return SALDO_INSUFICIENTE;
+                case CONTA_NAO_ENCONTRADA:
+                    return CONTA_NAO_ENCONTRADA;
+                default:
+                    reservar(8).putLong(contaOrigem.getSaldo());
+                    return OK;
+            }
         }
-    }
 
-    public List<Transacao> getTransacoes() { return transacoes; }
+        // A conta tem de ser do cliente autenticado na conexão.
+        private byte validar(int numero, long valor, boolean exigeValor) {
+            if (cliente == null) {
+                return NAO_AUTENTICADO;
+            }
+            Conta conta = banco.buscarConta(numero);
+            if (conta == null || conta.getTitular() != cliente) {
+                return CONTA_NAO_ENCONTRADA;
+            }
+            return exigeValor && valor <= 0 ? REQUISICAO_INVALIDA : OK;
+        }
 
-    public abstract void aplicarRendimento();
+        private ByteBuffer reservar(int bytes) {
+            resposta = garantir(resposta, bytes);
+            return resposta;
+        }
+    }
 }
 
-class ContaCorrente extends Conta {
-    private double limiteChequeEspecial = 500.0;
+/**
+ * Outra partição do banco, acessada pelo protocolo do {@link ServidorBanco} numa conexão
+ * autenticada como par. Conexões bloqueantes livres são guardadas para reaproveitamento; uma
+ * falha de comunicação (inclusive resposta que não chega no prazo) descarta a conexão e vira
+ * UncheckedIOException, que o {@link CoordenadorTransferencias} trata reenviando a mensagem.
+ */
+class ParticaoRemota implements ParticipanteTransferencias, Closeable {
+    private static final int PRAZO_MS = 5_000;
 
-    public ContaCorrente(int numero, Cliente titular) { super(numero, titular); }
+    private final InetSocketAddress endereco;
+    private final String segredo;
+    private final Queue<Canal> livres = new ConcurrentLinkedQueue<>();
 
-    @Override
-    public boolean sacar(double valor) {
-        if (saldo + limiteChequeEspecial >= valor) {
-            saldo -= valor;
-            transacoes.add(new Transacao("Saque", -valor, new Date()));
-            return true;
-        }
-        return false;
+    ParticaoRemota(InetSocketAddress endereco, String segredo) {
+        this.endereco = endereco;
+        this.segredo = segredo;
     }
 
     @Override
-    public void aplicarRendimento() {
-        // Conta corrente não possui rendimento
+    public boolean preparar(long id, int numero, int contraparte, long delta) {
+        return chamar(ServidorBanco.PREPARAR, b -> b.putLong(id).putInt(numero).putInt(contraparte).putLong(delta)).get() != 0;
     }
-}
-
-class ContaPoupanca extends Conta {
-    public ContaPoupanca(int numero, Cliente titular) { super(numero, titular); }
 
     @Override
-    public void aplicarRendimento() {
-        double rendimento = saldo * 0.005; // 0,5% ao mês
-        saldo += rendimento;
-        transacoes.add(new Transacao("Rendimento Poupança", rendimento, new Date()));
-    }
-}
-
-class Transacao {
-    private String descricao;
-    private double valor;
-    private Date data;
-
-    public Transacao(String descricao, double valor, Date data) {
-        this.descricao = descricao;
-        this.valor = valor;
-        this.data = data;
+    public void confirmar(long id) {
+        chamar(ServidorBanco.CONFIRMAR, b -> b.putLong(id));
     }
 
     @Override
-    public String toString() {
-        return "[" + data + "] " + descricao + ": " + String.format("R$ %.2f", valor);
+    public void desfazer(long id) {
+        chamar(ServidorBanco.DESFAZER, b -> b.putLong(id));
     }
-}
-
-class Banco {
-    private Map<String, Cliente> clientes = new HashMap<>();
-    private Map<Integer, Conta> contas = new HashMap<>();
-    private static int proximoNumeroConta = 1001;
 
-    public Cliente cadastrarCliente(String nome, String cpf, String senha) {
-        Cliente cliente = new Cliente(nome, cpf, senha);
-        clientes.put(cpf, cliente);
-        return cliente;
+    @Override
+    public void close() {
+        for (Canal canal; (canal = livres.poll()) != null; ) {
+            canal.fechar();
+        }
     }
 
-    public Cliente autenticarCliente(String cpf, String senha) {
-        Cliente cliente = clientes.get(cpf);
-        if (cliente != null && cliente.autenticar(senha)) {
-            return cliente;
+    // Devolve o corpo da resposta depois do status, que tem de ser OK.
+    private ByteBuffer chamar(byte operacao, Consumer<ByteBuffer> parametros) {
+        Canal canal = livres.poll();
+        ByteBuffer resposta;
+        try {
+            if (canal == null) {
+                canal = new Canal();
+            }
+            resposta = canal.chamar(operacao, parametros);
+        } catch (IOException e) {
+            if (canal != null) {
+                canal.fechar();
+            }
+            throw new UncheckedIOException("Partição " + endereco + " não respondeu", e);
+        }
+        livres.add(canal);
+        byte status = resposta.get();
+        if (status != ServidorBanco.OK) {
+            throw new IllegalStateException("Partição " + endereco + " recusou a operação " + operacao
+                    + " (status " + status + ")");
         }
-        return null;
+        return resposta;
     }
 
-    public ContaCorrente criarContaCorrente(Cliente cliente) {
-        ContaCorrente cc = new ContaCorrente(proximoNumeroConta++, cliente);
-        contas.put(cc.getNumero(), cc);
-        cliente.adicionarConta(cc);
-        return cc;
-    }
+    private final class Canal {
+        private final Socket socket = new Socket();
+        private final DataInputStream entrada;
+        private final DataOutputStream saida;
+        private final ByteBuffer parametros = ByteBuffer.allocate(1024);
+        private int proximoId;
 
-    public ContaPoupanca criarContaPoupanca(Cliente cliente) {
-        ContaPoupanca cp = new ContaPoupanca(proximoNumeroConta++, cliente);
-        contas.put(cp.getNumero(), cp);
-        cliente.adicionarConta(cp);
-        return cp;
-    }
+        Canal() throws IOException {
+            try {
+                socket.connect(endereco, PRAZO_MS);
+                socket.setSoTimeout(PRAZO_MS);
+                socket.setTcpNoDelay(true);
+                entrada = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                saida = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                ByteBuffer resposta = chamar(ServidorBanco.AUTENTICAR_PARTICAO, b -> ServidorBanco.escreverTexto(b, segredo));
+                if (resposta.get() != ServidorBanco.OK) {
+                    throw new IllegalStateException("Partição " + endereco + " recusou o segredo");
+                }
+            } catch (IOException | RuntimeException e) {
+                fechar();
+                throw e;
+            }
+        }
 
-    public Conta buscarConta(int numero) {
-        return contas.get(numero);
-    }
+        // Devolve a resposta posicionada no status.
+        ByteBuffer chamar(byte operacao, Consumer<ByteBuffer> preencher) throws IOException {
+            parametros.clear();
+            preencher.accept(parametros);
+            int id = proximoId++;
+            saida.writeInt(4 + 1 + parametros.position());
+            saida.writeInt(id);
+            saida.writeByte(operacao);
+            saida.write(parametros.array(), 0, parametros.position());
+            saida.flush();
+            int tamanho = entrada.readInt();
+            if (tamanho < 5 || tamanho > ServidorBanco.TAMANHO_MAXIMO) {
+                throw new IOException("Resposta fora do protocolo: " + tamanho + " bytes");
+            }
+            byte[] corpo = new byte[tamanho];
+            entrada.readFully(corpo);
+            ByteBuffer resposta = ByteBuffer.wrap(corpo);
+            if (resposta.getInt() != id) {
+                throw new IOException("Resposta de outra requisição");
+            }
+            return resposta;
+        }
 
-    public void aplicarRendimentos() {
-        for (Conta conta : contas.values()) {
-            conta.aplicarRendimento();
+        void fechar() {
+            try {
+                socket.close();
+            } catch (IOException ignorada) {
+                // a conexão já estava perdida
+            }
         }
     }
-
-    public List<Cliente> getClientes() { return new ArrayList<>(clientes.values()); }
 }
 
 public class SistemaBancarioApp {
-    private static Banco banco = new Banco();
+    private static Banco banco = abrirBanco();
     private static Scanner sc = new Scanner(System.in);
 
     public static void main(String[] args) {
         System.out.println("=== Sistema Bancário OOP ===");
+        try {
+            Metricas.registrarJmx();
+        } catch (JMException e) {
+            System.out.println("Métricas indisponíveis por JMX: " + e.getMessage());
+        }
+
+        // Com -Dbanco.exportar=<arquivo> grava clientes e contas (CSV, ou binário se terminar em .bin) e sai.
+        String exportar = System.getProperty("banco.exportar");
+        if (exportar != null) {
+            try {
+                banco.exportar(Paths.get(exportar), exportar.endsWith(".bin") ? ArquivoCarga.Formato.BINARIO : ArquivoCarga.Formato.CSV);
+                System.out.println("Exportado para " + exportar);
+            } catch (IOException e) {
+                System.out.println("Não foi possível exportar para " + exportar + ": " + e.getMessage());
+            }
+            encerrarBanco();
+            return;
+        }
+
+        // Com -Dbanco.porta=<porta> o banco atende pela rede (ServidorBanco) em vez do menu.
+        // Particionado, recebe também -Dbanco.particoes=<host:porta,...>, -Dbanco.particao=<índice>
+        // e -Dbanco.particoes.segredo=<texto> (o mesmo em todas as partições).
+        String porta = System.getProperty("banco.porta");
+        if (porta != null) {
+            try {
+                ServidorBanco servidor = new ServidorBanco(banco, new InetSocketAddress(Integer.parseInt(porta)),
+                        Runtime.getRuntime().availableProcessors() * 4, enderecosParticoes(),
+                        System.getProperty("banco.particoes.segredo"));
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try {
+                        servidor.close();
+                    } catch (IOException ignorada) {
+                        // encerrando de qualquer forma
+                    }
+                    encerrarBanco();
+                    System.out.print(Metricas.escrever(new StringBuilder()));
+                }));
+                System.out.println("Atendendo na porta " + servidor.getPorta());
+            } catch (IOException e) {
+                System.out.println("Não foi possível abrir a porta " + porta + ": " + e.getMessage());
+            }
+            return;
+        }
 
         boolean rodando = true;
         Cliente clienteAtual = null;
@@ -188,17 +5405,24 @@ public class SistemaBancarioApp {
                         String cpf = sc.nextLine();
                         System.out.print("Senha: ");
                         String senha = sc.nextLine();
-                        Cliente novoCliente = banco.cadastrarCliente(nome, cpf, senha);
-                        System.out.println("Cliente cadastrado!");
+                        if (banco.cadastrarCliente(nome, cpf, senha, "console") != null) {
+                            System.out.println("Cliente cadastrado!");
+                        } else if (banco.cadastrosEsgotados("console")) {
+                            System.out.println("Muitos cadastros. Aguarde antes de tentar de novo.");
+                        } else {
+                            System.out.println("CPF já cadastrado.");
+                        }
                         break;
                     case 2:
                         System.out.print("CPF: ");
                         String cpfLogin = sc.nextLine();
                         System.out.print("Senha: ");
                         String senhaLogin = sc.nextLine();
-                        clienteAtual = banco.autenticarCliente(cpfLogin, senhaLogin);
+                        clienteAtual = banco.autenticarCliente(cpfLogin, senhaLogin, "console");
                         if (clienteAtual != null) {
                             System.out.println("Bem-vindo, " + clienteAtual.getNome());
+                        } else if (banco.tentativasEsgotadas(cpfLogin, "console")) {
+                            System.out.println("Muitas tentativas. Aguarde antes de tentar de novo.");
                         } else {
                             System.out.println("Credenciais inválidas.");
                         }
@@ -206,6 +5430,7 @@ public class SistemaBancarioApp {
                     case 0:
                         rodando = false;
                         System.out.println("Saindo...");
+                        encerrarBanco();
                         break;
                     default:
                         System.out.println("Opção inválida.");
@@ -230,7 +5455,7 @@ public class SistemaBancarioApp {
                         break;
                     case 3:
                         for (Conta c : clienteAtual.getContas()) {
-                            System.out.println("Conta #" + c.getNumero() + " - Saldo: R$ " + c.getSaldo());
+                            System.out.println("Conta #" + c.getNumero() + " - Saldo: " + Dinheiro.formatar(c.getSaldo()));
                         }
                         break;
                     case 4:
@@ -253,10 +5478,61 @@ public class SistemaBancarioApp {
         }
     }
 
+    // Com -Dbanco.dados=<diretório> o estado sobrevive a reinícios; sem ele tudo fica em memória.
+    private static Banco abrirBanco() {
+        String dados = System.getProperty("banco.dados");
+        int particoes = Math.max(1, enderecosParticoes().size());
+        int particao = Integer.getInteger("banco.particao", 0);
+        Banco aberto;
+        try {
+            aberto = dados == null ? new Banco(particao, particoes) : Banco.abrir(Paths.get(dados), particao, particoes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Não foi possível abrir os dados do banco em " + dados, e);
+        }
+        // Com -Dbanco.importar=<arquivo> o banco começa com os clientes e contas do arquivo (ArquivoCarga).
+        String importar = System.getProperty("banco.importar");
+        if (importar != null) {
+            try {
+                long inicio = System.nanoTime();
+                long registros = aberto.importar(Paths.get(importar));
+                System.out.println(registros + " registros importados em " + (System.nanoTime() - inicio) / 1_000_000L + " ms");
+            } catch (IOException e) {
+                throw new UncheckedIOException("Não foi possível importar " + importar, e);
+            }
+        }
+        return aberto;
+    }
+
+    private static List<InetSocketAddress> enderecosParticoes() {
+        String lista = System.getProperty("banco.particoes");
+        List<InetSocketAddress> enderecos = new ArrayList<>();
+        if (lista == null) {
+            return enderecos;
+        }
+        for (String item : lista.split(",")) {
+            int separador = item.lastIndexOf(':');
+            enderecos.add(new InetSocketAddress(item.substring(0, separador).trim(),
+                    Integer.parseInt(item.substring(separador + 1).trim())));
+        }
+        return enderecos;
+    }
+
+    private static void encerrarBanco() {
+        if (System.getProperty("banco.dados") == null) {
+            return;
+        }
+        try {
+            banco.salvarSnapshot();
+            banco.fechar();
+        } catch (IOException e) {
+            System.out.println("Falha ao salvar os dados do banco: " + e.getMessage());
+        }
+    }
+
     private static void acessarConta(Conta conta) {
         boolean gerenciando = true;
         while (gerenciando) {
-            System.out.println("Conta #" + conta.getNumero() + " | Saldo: R$ " + conta.getSaldo());
+            System.out.println("Conta #" + conta.getNumero() + " | Saldo: " + Dinheiro.formatar(conta.getSaldo()));
             System.out.println("1. Depositar");
             System.out.println("2. Sacar");
             System.out.println("3. Transferir");
@@ -267,13 +5543,13 @@ public class SistemaBancarioApp {
             switch (op) {
                 case 1:
                     System.out.print("Valor do depósito: ");
-                    double valorDep = sc.nextDouble(); sc.nextLine();
+                    long valorDep = Dinheiro.paraCentavos(sc.nextDouble()); sc.nextLine();
                     conta.depositar(valorDep);
                     System.out.println("Depósito realizado.");
                     break;
                 case 2:
                     System.out.print("Valor do saque: ");
-                    double valorSaq = sc.nextDouble(); sc.nextLine();
+                    long valorSaq = Dinheiro.paraCentavos(sc.nextDouble()); sc.nextLine();
                     if (conta.sacar(valorSaq)) {
                         System.out.println("Saque realizado.");
                     } else {
@@ -289,14 +5565,15 @@ public class SistemaBancarioApp {
                         break;
                     }
                     System.out.print("Valor da transferência: ");
-                    double valorTransf = sc.nextDouble(); sc.nextLine();
-                    conta.transferir(contaDestino, valorTransf);
-                    System.out.println("Transferência efetuada.");
+                    long valorTransf = Dinheiro.paraCentavos(sc.nextDouble()); sc.nextLine();
+                    if (conta.transferir(contaDestino, valorTransf)) {
+                        System.out.println("Transferência efetuada.");
+                    } else {
+                        System.out.println("Saldo insuficiente.");
+                    }
                     break;
                 case 4:
-                    for (Transacao t : conta.getTransacoes()) {
-                        System.out.println(t);
-                    }
+                    mostrarExtrato(conta);
                     break;
                 case 5:
                     gerenciando = false;
@@ -306,4 +5583,537 @@ public class SistemaBancarioApp {
             }
         }
     }
+
+    private static void mostrarExtrato(Conta conta) {
+        final int porPagina = 20;
+        long de = lerData("Data inicial (dd/mm/aaaa, Enter para todo o histórico): ", Long.MIN_VALUE, false);
+        long ate = lerData("Data final (dd/mm/aaaa, Enter para hoje): ", Long.MAX_VALUE, true);
+        if (ate != Long.MAX_VALUE) {
+            System.out.println("Saldo ao fim do período: " + Dinheiro.formatar(conta.getSaldoEm(ate)));
+        }
+        int total = conta.contarTransacoes(de, ate);
+        StringBuilder buffer = new StringBuilder(4096);
+        for (int pagina = 0; pagina * porPagina < total; pagina++) {
+            buffer.setLength(0);
+            conta.escreverExtrato(de, ate, pagina, porPagina, buffer);
+            System.out.print(buffer);
+            if ((pagina + 1) * porPagina < total) {
+                System.out.print("Mostrar mais? (s/n): ");
+                if (!sc.nextLine().trim().equalsIgnoreCase("s")) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // Converte a data digitada no início (ou no fim) do dia, em epoch-nanos; Enter devolve o padrão.
+    private static long lerData(String pergunta, long padrao, boolean fimDoDia) {
+        System.out.print(pergunta);
+        String texto = sc.nextLine().trim();
+        if (texto.isEmpty()) {
+            return padrao;
+        }
+        try {
+            LocalDate data = LocalDate.parse(texto, DateTimeFormatter.ofPattern("dd/MM/yyyy"));
+            Instant inicio = (fimDoDia ? data.plusDays(1) : data).atStartOfDay(ZoneId.systemDefault()).toInstant();
+            long nanos = inicio.getEpochSecond() * 1_000_000_000L + inicio.getNano();
+            return fimDoDia ? nanos - 1 : nanos;
+        } catch (DateTimeParseException e) {
+            System.out.println("Data inválida, considerando todo o período.");
+            return padrao;
+        }
+    }
+}
+
+/**
+ * Microbenchmarks dos caminhos quentes do banco, sem dependências externas.
+ * Cada cenário roda com 1 thread e com todas as CPUs, após um aquecimento, e reporta
+ * vazão, latência média e bytes alocados por operação (medidos por thread via
+ * com.sun.management.ThreadMXBean, o mesmo contador usado pelo profiler "gc" do JMH).
+ *
+ * Uso (depois de compilar): java -Xmx8g -cp <saída> BenchmarkBanco [contas...]
+ * Sem argumentos mede com 1.000 e 100.000 contas; 10000000 cobre a escala de produção.
+ */
+class BenchmarkBanco {
+    interface Operacao {
+        void executar(int thread, long iteracao);
+    }
+
+    private static final ThreadMXBean THREADS = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        // O custo real do PBKDF2 tornaria o cadastro de 100 mil clientes lento demais.
+        if (System.getProperty("banco.pbkdf2.iteracoes") == null) {
+            System.setProperty("banco.pbkdf2.iteracoes", "100");
+        }
+        int[] escalas = args.length == 0 ? new int[] {1_000, 100_000} : Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+        int cpus = Runtime.getRuntime().availableProcessors();
+        String[] chavesLogin = new String[1_000_000];
+        for (int i = 0; i < chavesLogin.length; i++) {
+            chavesLogin[i] = "cpf-" + i;
+        }
+        for (int threads : cpus > 1 ? new int[] {1, cpus} : new int[] {1}) {
+            // Rajada grande o bastante para nunca recusar: mede o custo da consulta, não a recusa.
+            LimitadorLogin limitador = new LimitadorLogin(Integer.MAX_VALUE / 2, Duration.ofSeconds(1));
+            for (String chave : chavesLogin) {
+                limitador.tentar(chave, "10.0.0.1");
+            }
+            medir("LimitadorLogin.tentar (1M chaves)", threads, 5_000_000, (t, i) ->
+                    limitador.tentar(chavesLogin[ThreadLocalRandom.current().nextInt(chavesLogin.length)], "10.0.0.1"));
+            Histograma histograma = new Histograma("benchmark");
+            medir("Histograma.registrar", threads, 20_000_000, (t, i) -> histograma.registrar(i & 0xFFFFF));
+        }
+        for (int escala : escalas) {
+            System.out.println("== " + escala + " contas ==");
+            Banco banco = new Banco();
+            Conta[] contas = new Conta[escala];
+            String[] cpfs = new String[Math.min(escala, 10_000)];
+            String[] senhas = new String[cpfs.length];
+            for (int i = 0; i < escala; i++) {
+                Cliente cliente = banco.cadastrarCliente("Cliente " + i, "cpf-" + i, "senha-" + i);
+                if (i < cpfs.length) {
+                    cpfs[i] = cliente.getCpf();
+                    senhas[i] = "senha-" + i;
+                }
+                contas[i] = i % 2 == 0 ? banco.criarContaCorrente(cliente) : banco.criarContaPoupanca(cliente);
+                contas[i].depositar(1_000_000_00L);
+            }
+            int[] numeros = Arrays.stream(contas).mapToInt(Conta::getNumero).toArray();
+            String[] tokens = new String[cpfs.length];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = banco.abrirSessao(cpfs[i], senhas[i], "");
+            }
+
+            for (int threads : cpus > 1 ? new int[] {1, cpus} : new int[] {1}) {
+                medir("Conta.depositar", threads, 2_000_000, (t, i) ->
+                        contas[ThreadLocalRandom.current().nextInt(escala)].depositar(100));
+                medir("Conta.sacar", threads, 2_000_000, (t, i) ->
+                        contas[ThreadLocalRandom.current().nextInt(escala)].sacar(100));
+                medir("Conta.transferir", threads, 2_000_000, (t, i) -> {
+                    ThreadLocalRandom r = ThreadLocalRandom.current();
+                    contas[r.nextInt(escala)].transferir(contas[r.nextInt(escala)], 100);
+                });
+                medir("Banco.buscarConta", threads, 5_000_000, (t, i) ->
+                        banco.buscarConta(numeros[ThreadLocalRandom.current().nextInt(escala)]));
+                medir("Banco.autenticarCliente", threads, 50_000, (t, i) -> {
+                    int k = ThreadLocalRandom.current().nextInt(cpfs.length);
+                    banco.autenticarCliente(cpfs[k], senhas[k]);
+                });
+                medir("Banco.validarSessao", threads, 5_000_000, (t, i) ->
+                        banco.validarSessao(tokens[ThreadLocalRandom.current().nextInt(tokens.length)]));
+            }
+            banco.aplicarRendimentos(); // aquecimento
+            System.out.println("Banco.aplicarRendimentos: " + banco.aplicarRendimentos());
+        }
+        System.out.print(Metricas.escrever(new StringBuilder()));
+    }
+
+    static void medir(String nome, int threads, long iteracoes, Operacao operacao) throws InterruptedException {
+        executar(threads, iteracoes / 10, operacao); // aquecimento
+        long[] alocado = new long[1];
+        long duracao = executar(threads, iteracoes, operacao, alocado);
+        long total = iteracoes * threads;
+        System.out.printf("%-34s %2d thread(s) %,14.0f ops/s %10.1f ns/op %8.1f B/op%n",
+                nome, threads, total / (duracao / 1e9), (double) duracao * threads / total, (double) alocado[0] / total);
+    }
+
+    private static long executar(int threads, long iteracoes, Operacao operacao) throws InterruptedException {
+        return executar(threads, iteracoes, operacao, new long[1]);
+    }
+
+    private static long executar(int threads, long iteracoes, Operacao operacao, long[] alocado) throws InterruptedException {
+        CyclicBarrier largada = new CyclicBarrier(threads);
+        LongAdder bytes = new LongAdder();
+        Thread[] trabalhadores = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int indice = t;
+            trabalhadores[t] = new Thread(() -> {
+                try {
+                    largada.await();
+                } catch (InterruptedException | BrokenBarrierException e) {
+                    return;
+                }
+                long antes = THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (long i = 0; i < iteracoes; i++) {
+                    operacao.executar(indice, i);
+                }
+                bytes.add(THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) - antes);
+            });
+            trabalhadores[t].start();
+        }
+        long inicio = System.nanoTime();
+        for (Thread t : trabalhadores) {
+            t.join();
+        }
+        alocado[0] = bytes.sum();
+        return System.nanoTime() - inicio;
+    }
+}
+
+/**
+ * Gerador de carga para o {@link ServidorBanco}. Cada conexão cadastra um cliente, abre duas
+ * contas e passa a enviar depósitos e transferências em rajadas de {@code janela} requisições
+ * por escrita, sem esperar as respostas (pipelining). A latência de cada requisição vai do envio
+ * da rajada até a chegada da sua resposta; no fim são impressos vazão, p50, p99 e p99,9.
+ * Uso: java -cp &lt;saída&gt; CargaBanco [host] [porta] [conexões] [janela] [segundos]
+ */
+class CargaBanco {
+    public static void main(String[] args) throws Exception {
+        InetSocketAddress endereco = new InetSocketAddress(args.length > 0 ? args[0] : "localhost",
+                args.length > 1 ? Integer.parseInt(args[1]) : 9090);
+        int conexoes = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int janela = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int segundos = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        long[][] latencias = new long[conexoes][];
+        int[] quantidades = new int[conexoes];
+        Thread[] threads = new Thread[conexoes];
+        long fim = System.nanoTime() + segundos * 1_000_000_000L;
+        for (int c = 0; c < conexoes; c++) {
+            int indice = c;
+            threads[c] = new Thread(() -> {
+                try {
+                    Medicao medicao = new Medicao();
+                    gerar(endereco, indice, janela, fim, medicao);
+                    latencias[indice] = medicao.latencias;
+                    quantidades[indice] = medicao.quantidade;
+                } catch (IOException e) {
+                    System.err.println("Conexão " + indice + ": " + e.getMessage());
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        int total = 0;
+        for (int q : quantidades) {
+            total += q;
+        }
+        long[] todas = new long[total];
+        int posicao = 0;
+        for (int c = 0; c < conexoes; c++) {
+            if (latencias[c] != null) {
+                System.arraycopy(latencias[c], 0, todas, posicao, quantidades[c]);
+                posicao += quantidades[c];
+            }
+        }
+        Arrays.sort(todas);
+        System.out.printf("%d conexões, janela %d: %,d requisições em %d s = %,.0f req/s%n",
+                conexoes, janela, total, segundos, (double) total / segundos);
+        if (total > 0) {
+            System.out.printf("latência p50 %.1f µs  p99 %.1f µs  p99,9 %.1f µs  máx %.1f µs%n",
+                    percentil(todas, 0.50) / 1e3, percentil(todas, 0.99) / 1e3,
+                    percentil(todas, 0.999) / 1e3, todas[total - 1] / 1e3);
+        }
+    }
+
+    private static final class Medicao {
+        long[] latencias = new long[1 << 16];
+        int quantidade;
+
+        void registrar(long nanos) {
+            if (quantidade == latencias.length) {
+                latencias = Arrays.copyOf(latencias, quantidade * 2);
+            }
+            latencias[quantidade++] = nanos;
+        }
+    }
+
+    private static long percentil(long[] ordenadas, double p) {
+        return ordenadas[Math.min(ordenadas.length - 1, (int) Math.ceil(p * ordenadas.length) - 1)];
+    }
+
+    private static void gerar(InetSocketAddress endereco, int indice, int janela, long fim, Medicao medicao)
+            throws IOException {
+        try (SocketChannel canal = SocketChannel.open(endereco)) {
+            canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer envio = ByteBuffer.allocateDirect(janela * 32 + 256);
+            ByteBuffer recebimento = ByteBuffer.allocateDirect(1 << 16);
+
+            String cpf = "carga-" + indice + "-" + System.nanoTime();
+            envio.clear();
+            requisicao(envio, 0, ServidorBanco.CADASTRAR_CLIENTE);
+            ServidorBanco.escreverTexto(envio, "Carga " + indice);
+            ServidorBanco.escreverTexto(envio, cpf);
+            ServidorBanco.escreverTexto(envio, "senha");
+            fecharRequisicao(envio, 0);
+            int inicio = envio.position();
+            requisicao(envio, 1, ServidorBanco.AUTENTICAR);
+            ServidorBanco.escreverTexto(envio, cpf);
+            ServidorBanco.escreverTexto(envio, "senha");
+            fecharRequisicao(envio, inicio);
+            inicio = envio.position();
+            requisicao(envio, 2, ServidorBanco.CRIAR_CONTA_CORRENTE);
+            fecharRequisicao(envio, inicio);
+            inicio = envio.position();
+            requisicao(envio, 3, ServidorBanco.CRIAR_CONTA_CORRENTE);
+            fecharRequisicao(envio, inicio);
+            enviar(canal, envio);
+            int[] contas = new int[2];
+            for (int i = 0; i < 4; i++) {
+                ByteBuffer resposta = proximaResposta(canal, recebimento);
+                int id = resposta.getInt();
+                if (resposta.get() != ServidorBanco.OK) {
+                    throw new IOException("falha ao preparar a conta de carga (requisição " + id + ")");
+                }
+                if (id >= 2) {
+                    contas[id - 2] = resposta.getInt();
+                }
+            }
+
+            int proximoId = 4;
+            while (System.nanoTime() < fim) {
+                envio.clear();
+                for (int i = 0; i < janela; i++) {
+                    inicio = envio.position();
+                    int id = proximoId++;
+                    if (i % 2 == 0) {
+                        requisicao(envio, id, ServidorBanco.DEPOSITAR);
+                        envio.putInt(contas[0]).putLong(100);
+                    } else {
+                        requisicao(envio, id, ServidorBanco.TRANSFERIR);
+                        envio.putInt(contas[0]).putInt(contas[1]).putLong(100);
+                    }
+                    fecharRequisicao(envio, inicio);
+                }
+                long enviado = System.nanoTime();
+                enviar(canal, envio);
+                for (int i = 0; i < janela; i++) {
+                    proximaResposta(canal, recebimento);
+                    medicao.registrar(System.nanoTime() - enviado);
+                }
+            }
+        }
+    }
+
+    static void requisicao(ByteBuffer envio, int id, byte operacao) {
+        envio.putInt(0).putInt(id).put(operacao);
+    }
+
+    static void fecharRequisicao(ByteBuffer envio, int inicio) {
+        envio.putInt(inicio, envio.position() - inicio - 4);
+    }
+
+    static void enviar(SocketChannel canal, ByteBuffer envio) throws IOException {
+        envio.flip();
+        while (envio.hasRemaining()) {
+            canal.write(envio);
+        }
+    }
+
+    // Devolve a próxima resposta a partir do id; o buffer guarda o que já chegou das seguintes.
+    static ByteBuffer proximaResposta(SocketChannel canal, ByteBuffer recebimento) throws IOException {
+        while (true) {
+            if (recebimento.position() >= 4 && recebimento.position() >= 4 + recebimento.getInt(0)) {
+                int tamanho = recebimento.getInt(0);
+                ByteBuffer resposta = ByteBuffer.allocate(tamanho);
+                recebimento.flip();
+                recebimento.position(4);
+                int limite = recebimento.limit();
+                recebimento.limit(4 + tamanho);
+                resposta.put(recebimento).flip();
+                recebimento.limit(limite);
+                recebimento.compact();
+                return resposta;
+            }
+            if (canal.read(recebimento) < 0) {
+                throw new EOFException("servidor fechou a conexão");
+            }
+        }
+    }
+}
+
+/**
+ * Vazão agregada conforme partições são acrescentadas: para 1, 2, ... N partições sobe um
+ * processo do SistemaBancarioApp por partição (portas consecutivas a partir da base), gera
+ * carga por algumas conexões em cada uma e encerra os processos. Metade das requisições são
+ * depósitos e metade transferências, das quais o percentual informado vai para a conta de uma
+ * conexão de outra partição (duas fases) e o resto fica entre as duas contas da própria conexão.
+ * Uso: CargaParticionada [máximo de partições] [porta base] [conexões por partição] [janela] [segundos] [% entre partições]
+ */
+class CargaParticionada {
+    public static void main(String[] args) throws Exception {
+        int maximo = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int portaBase = args.length > 1 ? Integer.parseInt(args[1]) : 9100;
+        int conexoes = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int janela = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int segundos = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        int percentualEntre = args.length > 5 ? Integer.parseInt(args[5]) : 10;
+
+        for (int particoes = 1; particoes <= maximo; particoes++) {
+            List<Process> processos = subir(particoes, portaBase);
+            try {
+                Resultado resultado = medir(particoes, portaBase, conexoes, janela, segundos, percentualEntre);
+                System.out.printf("%d partição(ões), %d conexões: %,d respostas em %d s = %,.0f req/s (%,d recusadas)%n",
+                        particoes, particoes * conexoes, resultado.respostas.sum(), segundos,
+                        (double) resultado.respostas.sum() / segundos, resultado.recusadas.sum());
+            } finally {
+                for (Process processo : processos) {
+                    processo.destroy();
+                }
+                for (Process processo : processos) {
+                    processo.waitFor();
+                }
+            }
+        }
+    }
+
+    private static final class Resultado {
+        final LongAdder respostas = new LongAdder();
+        final LongAdder recusadas = new LongAdder();
+    }
+
+    // Um processo por partição; volta quando todos anunciaram a porta.
+    private static List<Process> subir(int particoes, int portaBase) throws IOException {
+        StringBuilder enderecos = new StringBuilder();
+        for (int i = 0; i < particoes; i++) {
+            enderecos.append(i == 0 ? "" : ",").append("localhost:").append(portaBase + i);
+        }
+        String segredo = Long.toHexString(new SecureRandom().nextLong());
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<Process> processos = new ArrayList<>();
+        try {
+            for (int i = 0; i < particoes; i++) {
+                processos.add(new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "-Dbanco.porta=" + (portaBase + i), "-Dbanco.particoes=" + enderecos,
+                        "-Dbanco.particao=" + i, "-Dbanco.particoes.segredo=" + segredo, "SistemaBancarioApp")
+                        .redirectErrorStream(true).start());
+            }
+            for (Process processo : processos) {
+                aguardarPorta(processo);
+            }
+        } catch (IOException e) {
+            for (Process processo : processos) {
+                processo.destroyForcibly();
+            }
+            throw e;
+        }
+        return processos;
+    }
+
+    private static void aguardarPorta(Process processo) throws IOException {
+        BufferedReader saida = new BufferedReader(new InputStreamReader(processo.getInputStream(), StandardCharsets.UTF_8));
+        for (String linha; (linha = saida.readLine()) != null; ) {
+            if (linha.startsWith("Atendendo na porta")) {
+                // O resto da saída (as métricas ao encerrar) é descartado sem encher o pipe.
+                Thread dreno = new Thread(() -> {
+                    try {
+                        while (saida.readLine() != null) {
+                            // descartado
+                        }
+                    } catch (IOException ignorada) {
+                        // processo encerrado
+                    }
+                });
+                dreno.setDaemon(true);
+                dreno.start();
+                return;
+            }
+        }
+        throw new IOException("Partição encerrou sem abrir a porta");
+    }
+
+    private static Resultado medir(int particoes, int portaBase, int conexoesPorParticao, int janela, int segundos,
+                                   int percentualEntre) throws InterruptedException {
+        int total = particoes * conexoesPorParticao;
+        int[] destinos = new int[total]; // segunda conta de cada conexão; a conexão c fica na partição c % particoes
+        long[] fim = new long[1];
+        CyclicBarrier preparadas = new CyclicBarrier(total, () -> fim[0] = System.nanoTime() + segundos * 1_000_000_000L);
+        Resultado resultado = new Resultado();
+        Thread[] threads = new Thread[total];
+        for (int c = 0; c < total; c++) {
+            int indice = c;
+            threads[c] = new Thread(() -> {
+                try {
+                    gerar(indice, particoes, portaBase, janela, percentualEntre, destinos, preparadas, fim, resultado);
+                } catch (IOException | BrokenBarrierException e) {
+                    preparadas.reset();
+                    System.err.println("Conexão " + indice + ": " + e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return resultado;
+    }
+
+    private static void gerar(int indice, int particoes, int portaBase, int janela, int percentualEntre, int[] destinos,
+                              CyclicBarrier preparadas, long[] fim, Resultado resultado)
+            throws IOException, BrokenBarrierException, InterruptedException {
+        int particao = indice % particoes;
+        try (SocketChannel canal = SocketChannel.open(new InetSocketAddress("localhost", portaBase + particao))) {
+            canal.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+            ByteBuffer envio = ByteBuffer.allocateDirect(janela * 32 + 256);
+            ByteBuffer recebimento = ByteBuffer.allocateDirect(1 << 16);
+
+            String cpf = "particao-" + indice + "-" + System.nanoTime();
+            CargaBanco.requisicao(envio, 0, ServidorBanco.CADASTRAR_CLIENTE);
+            ServidorBanco.escreverTexto(envio, "Carga " + indice);
+            ServidorBanco.escreverTexto(envio, cpf);
+            ServidorBanco.escreverTexto(envio, "senha");
+            CargaBanco.fecharRequisicao(envio, 0);
+            int inicio = envio.position();
+            CargaBanco.requisicao(envio, 1, ServidorBanco.AUTENTICAR);
+            ServidorBanco.escreverTexto(envio, cpf);
+            ServidorBanco.escreverTexto(envio, "senha");
+            CargaBanco.fecharRequisicao(envio, inicio);
+            for (int id = 2; id < 4; id++) {
+                inicio = envio.position();
+                CargaBanco.requisicao(envio, id, ServidorBanco.CRIAR_CONTA_CORRENTE);
+                CargaBanco.fecharRequisicao(envio, inicio);
+            }
+            CargaBanco.enviar(canal, envio);
+            int[] contas = new int[2];
+            for (int i = 0; i < 4; i++) {
+                ByteBuffer resposta = CargaBanco.proximaResposta(canal, recebimento);
+                int id = resposta.getInt();
+                if (resposta.get() != ServidorBanco.OK) {
+                    throw new IOException("falha ao preparar a conta de carga (requisição " + id + ")");
+                }
+                if (id >= 2) {
+                    contas[id - 2] = resposta.getInt();
+                }
+            }
+            destinos[indice] = contas[1];
+            preparadas.await();
+
+            ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+            int conexoesPorParticao = destinos.length / particoes;
+            int proximoId = 4;
+            while (System.nanoTime() < fim[0]) {
+                envio.clear();
+                for (int i = 0; i < janela; i++) {
+                    inicio = envio.position();
+                    if (i % 2 == 0) {
+                        CargaBanco.requisicao(envio, proximoId++, ServidorBanco.DEPOSITAR);
+                        envio.putInt(contas[0]).putLong(100);
+                    } else {
+                        int destino = contas[1];
+                        if (particoes > 1 && aleatorio.nextInt(100) < percentualEntre) {
+                            int outra = (particao + 1 + aleatorio.nextInt(particoes - 1)) % particoes;
+                            destino = destinos[outra + particoes * aleatorio.nextInt(conexoesPorParticao)];
+                        }
+                        CargaBanco.requisicao(envio, proximoId++, ServidorBanco.TRANSFERIR);
+                        envio.putInt(contas[0]).putInt(destino).putLong(100);
+                    }
+                    CargaBanco.fecharRequisicao(envio, inicio);
+                }
+                CargaBanco.enviar(canal, envio);
+                for (int i = 0; i < janela; i++) {
+                    ByteBuffer resposta = CargaBanco.proximaResposta(canal, recebimento);
+                    resposta.getInt();
+                    if (resposta.get() != ServidorBanco.OK) {
+                        resultado.recusadas.increment();
+                    }
+                    resultado.respostas.increment();
+                }
+            }
+        }
+    }
 }